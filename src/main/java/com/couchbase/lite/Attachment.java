@@ -190,7 +190,7 @@ public final class Attachment {
                 InputStream body = attachment.getBodyIfNew();
                 if (body != null) {
                     // Copy attachment body into the database's blob store:
-                    BlobStoreWriter writer = blobStoreWriterForBody(body, database);
+                    BlobStoreWriter writer = blobStoreWriterForBody(body, database, attachment.getContentType());
                     metadataMutable.put("length", (long)writer.getLength());
                     metadataMutable.put("digest", writer.mD5DigestString());
                     metadataMutable.put("follows", true);
@@ -209,8 +209,8 @@ public final class Attachment {
     }
 
     @InterfaceAudience.Private
-    /* package */ static BlobStoreWriter blobStoreWriterForBody(InputStream body, Database database) {
-        BlobStoreWriter writer = database.getAttachmentWriter();
+    /* package */ static BlobStoreWriter blobStoreWriterForBody(InputStream body, Database database, String contentType) {
+        BlobStoreWriter writer = database.getAttachmentWriter(contentType);
         writer.read(body);
         writer.finish();
         return writer;
@@ -17,6 +17,7 @@
 
 package com.couchbase.lite;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -30,22 +31,57 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import com.couchbase.lite.util.Log;
 
 /**
  * A persistent content-addressable store for arbitrary-size data blobs.
- * Each blob is stored as a file named by its SHA-1 digest.
+ * Each blob is stored as a file named by its SHA-1 digest. When compression is enabled, blobs
+ * with a compressible content type are stored gzipped in a ".blobz" file; they are still keyed
+ * by the digest of the uncompressed data, and are decompressed transparently on read.
  * @exclude
  */
 public class BlobStore {
 
     public static String FILE_EXTENSION = ".blob";
+    public static String COMPRESSED_FILE_EXTENSION = ".blobz";
     public static String TMP_FILE_EXTENSION = ".blobtmp";
     public static String TMP_FILE_PREFIX = "tmp";
 
+    /** Number of hex digits in the name of each level of shard directory. */
+    private static final int SHARD_WIDTH = 2;
+    private static final int MAX_GC_THREADS = 4;
+
+    /**
+     * Walks shard directories for deleteBlobsExceptWithKeys(). Its threads go away when idle.
+     */
+    private static final ThreadPoolExecutor gcExecutor;
+    static {
+        int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_GC_THREADS));
+        gcExecutor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int counter = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CBLBlobStoreGC-" + (++counter));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        gcExecutor.allowCoreThreadTimeOut(true);
+    }
+    private static final int BUFFER_SIZE = 65536;
+
     private String path;
+    private volatile boolean compressionEnabled;
 
     public BlobStore(String path) {
         this.path = path;
@@ -56,6 +92,7 @@ public class BlobStore {
             throw new IllegalStateException(String.format("Unable to create directory for: %s", directory));
         }
 
+        migrateFlatLayout();
     }
 
     public static BlobKey keyForBlob(byte[] data) {
@@ -101,22 +138,155 @@ public class BlobStore {
         return result;
     }
 
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Enables gzip compression at rest for blobs with a compressible content type. Only affects
+     * blobs stored from now on; existing blobs are readable either way.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public static boolean isCompressibleContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+                || type.contains("javascript");
+    }
+
+    /** Whether a new blob of the given content type should be stored compressed. */
+    public boolean shouldCompress(String contentType) {
+        return compressionEnabled && isCompressibleContentType(contentType);
+    }
+
+    /**
+     * Returns the path of the blob's file. Blobs live in two levels of hex-prefix subdirectories
+     * (e.g. "ab/cd/abcd...blob") so no single directory grows too large; blobs in the old flat
+     * layout were moved there when the store was opened. Takes a single stat, to see whether
+     * the blob is stored compressed (".blobz").
+     */
     public String pathForKey(BlobKey key) {
-        return path + File.separator + BlobKey.convertToHex(key.getBytes()) + FILE_EXTENSION;
+        String hex = BlobKey.convertToHex(key.getBytes());
+        File compressed = shardedFileForHex(hex, true);
+        if (compressed.exists()) {
+            return compressed.getPath();
+        }
+        return shardedFileForHex(hex, false).getPath();
+    }
+
+    /** Whether a path returned by pathForKey() is that of a blob stored gzipped at rest. */
+    public static boolean isCompressedPath(String path) {
+        return path.endsWith(COMPRESSED_FILE_EXTENSION);
+    }
+
+    private File shardedFileForHex(String hex, boolean compressed) {
+        File dir = new File(new File(path, hex.substring(0, SHARD_WIDTH)),
+                hex.substring(SHARD_WIDTH, 2 * SHARD_WIDTH));
+        return new File(dir, hex + (compressed ? COMPRESSED_FILE_EXTENSION : FILE_EXTENSION));
     }
 
+    private static boolean isBlobFile(File file) {
+        String name = file.getName();
+        return name.endsWith(FILE_EXTENSION) || name.endsWith(COMPRESSED_FILE_EXTENSION);
+    }
+
+    /** Whether the blob is stored gzipped at rest. */
+    public boolean isCompressed(BlobKey key) {
+        return isCompressedPath(pathForKey(key));
+    }
+
+    private static boolean isShardDirectory(File file) {
+        String name = file.getName();
+        if (name.length() != SHARD_WIDTH || !file.isDirectory()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves any blobs stored in the old flat layout (e.g. by an older version, or copied in by
+     * Manager.replaceDatabase) into their shard directories. Cheap when there is nothing to do.
+     */
+    public void migrateFlatLayout() {
+        File[] contents = new File(path).listFiles();
+        if (contents == null) {
+            return;
+        }
+        int numMoved = 0;
+        for (File file : contents) {
+            if (file.isDirectory() || !file.getName().endsWith(FILE_EXTENSION)) {
+                continue;
+            }
+            BlobKey key = new BlobKey();
+            if (!getKeyForFilename(key, file.getPath())) {
+                continue;
+            }
+            File dest = shardedFileForHex(BlobKey.convertToHex(key.getBytes()), false);
+            dest.getParentFile().mkdirs();
+            if (dest.exists()) {
+                file.delete();
+            } else if (!file.renameTo(dest)) {
+                Log.w(Log.TAG_BLOB_STORE, "Unable to migrate blob %s to %s", file, dest);
+                continue;
+            }
+            ++numMoved;
+        }
+        if (numMoved > 0) {
+            Log.v(Log.TAG_BLOB_STORE, "Migrated %d blobs to sharded layout", numMoved);
+        }
+    }
+
+    /** Returns the decoded length of the blob, even if it is stored compressed. */
     public long getSizeOfBlob(BlobKey key) {
-        String path = pathForKey(key);
+        return getSizeOfBlobAtPath(pathForKey(key));
+    }
+
+    private static long getSizeOfBlobAtPath(String path) {
         File file = new File(path);
-        return file.length();
+        if (!isCompressedPath(path)) {
+            return file.length();
+        }
+        // The gzip trailer ends with the uncompressed length (mod 2^32), little-endian.
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(file.length() - 4);
+                long size = 0;
+                for (int i = 0; i < 4; i++) {
+                    size |= ((long) raf.read() & 0xff) << (8 * i);
+                }
+                return size;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(Log.TAG_BLOB_STORE, "Error reading size of compressed blob", e);
+            return 0;
+        }
     }
 
     public boolean getKeyForFilename(BlobKey outKey, String filename) {
-        if(!filename.endsWith(FILE_EXTENSION)) {
+        String extension;
+        if (filename.endsWith(FILE_EXTENSION)) {
+            extension = FILE_EXTENSION;
+        } else if (filename.endsWith(COMPRESSED_FILE_EXTENSION)) {
+            extension = COMPRESSED_FILE_EXTENSION;
+        } else {
             return false;
         }
-        //trim off extension
-        String rest = filename.substring(path.length() + 1, filename.length() - FILE_EXTENSION.length());
+        //trim off directory and extension
+        String name = new File(filename).getName();
+        String rest = name.substring(0, name.length() - extension.length());
 
         outKey.setBytes(BlobKey.convertFromHex(rest));
 
@@ -128,7 +298,11 @@ public class BlobStore {
         File file = new File(path);
         byte[] result = null;
         try {
-            result = getBytesFromFile(file);
+            if (isCompressedPath(path)) {
+                result = getBytesFromStream(openCompressed(file), getSizeOfBlobAtPath(path));
+            } else {
+                result = getBytesFromFile(file);
+            }
         } catch (IOException e) {
             Log.e(Log.TAG_BLOB_STORE, "Error reading file", e);
         }
@@ -140,50 +314,66 @@ public class BlobStore {
         File file = new File(path);
         if(file.canRead()) {
             try {
+                if (isCompressedPath(path)) {
+                    return openCompressed(file);
+                }
                 return new FileInputStream(file);
             } catch (FileNotFoundException e) {
                 Log.e(Log.TAG_BLOB_STORE, "Unexpected file not found in blob store", e);
                 return null;
+            } catch (IOException e) {
+                Log.e(Log.TAG_BLOB_STORE, "Error opening compressed blob", e);
+                return null;
             }
         }
         return null;
     }
 
+    private static InputStream openCompressed(File file) throws IOException {
+        return new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Copies the stream into the store in a single pass, hashing the bytes as they are written.
+     * Safe to call from several threads at once: each call hashes into its own temp file, and
+     * only the final rename touches the shared blob directory.
+     */
     public boolean storeBlobStream(InputStream inputStream, BlobKey outKey) {
+        return storeBlobStream(inputStream, outKey, false);
+    }
 
-        File tmp = null;
+    /**
+     * Like storeBlobStream(InputStream, BlobKey), optionally compressing the blob at rest.
+     * The key is always the digest of the uncompressed data.
+     */
+    public boolean storeBlobStream(InputStream inputStream, BlobKey outKey, boolean compress) {
+        BlobStoreWriter writer = null;
         try {
-            tmp = File.createTempFile(TMP_FILE_PREFIX, TMP_FILE_EXTENSION, new File(path));
-            FileOutputStream fos = new FileOutputStream(tmp);
-            byte[] buffer = new byte[65536];
-            int lenRead = inputStream.read(buffer);
-            while(lenRead > 0) {
-                fos.write(buffer, 0, lenRead);
-                lenRead = inputStream.read(buffer);
+            // creating the writer opens its temp file, which can fail too
+            writer = new BlobStoreWriter(this, compress);
+            writer.read(inputStream);
+        } catch (RuntimeException e) {
+            Log.e(Log.TAG_BLOB_STORE, "Error writing blob to tmp file", e);
+            if (writer != null) {
+                writer.cancel();
             }
-            inputStream.close();
-            fos.close();
-        } catch (IOException e) {
-            Log.e(Log.TAG_BLOB_STORE, "Error writing blog to tmp file", e);
             return false;
         }
-
-        BlobKey newKey = keyForBlobFromFile(tmp);
-        outKey.setBytes(newKey.getBytes());
-        String path = pathForKey(outKey);
-        File file = new File(path);
-
-        if(file.canRead()) {
-            // object with this hash already exists, we should delete tmp file and return true
-            tmp.delete();
-            return true;
-        } else {
-            // does not exist, we should rename tmp file to this name
-            tmp.renameTo(file);
+        writer.finish();
+        if (!writer.install()) {
+            return false;
         }
+        outKey.setBytes(writer.getBlobKey().getBytes());
         return true;
     }
 
+    public boolean storeBlob(byte[] data, BlobKey outKey, boolean compress) {
+        if (!compress) {
+            return storeBlob(data, outKey);
+        }
+        return storeBlobStream(new ByteArrayInputStream(data), outKey, true);
+    }
+
     public boolean storeBlob(byte[] data, BlobKey outKey) {
         BlobKey newKey = keyForBlob(data);
         outKey.setBytes(newKey.getBytes());
@@ -193,15 +383,20 @@ public class BlobStore {
             return true;
         }
 
+        File tmp = null;
         FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(file);
+            tmp = File.createTempFile(TMP_FILE_PREFIX, TMP_FILE_EXTENSION, tempDir());
+            fos = new FileOutputStream(tmp);
             fos.write(data);
         } catch (FileNotFoundException e) {
             Log.e(Log.TAG_BLOB_STORE, "Error opening file for output", e);
             return false;
         } catch(IOException ioe) {
             Log.e(Log.TAG_BLOB_STORE, "Error writing to file", ioe);
+            if (tmp != null) {
+                tmp.delete();
+            }
             return false;
         } finally {
             if(fos != null) {
@@ -213,9 +408,52 @@ public class BlobStore {
             }
         }
 
+        return installTempFile(tmp, outKey, false);
+    }
+
+    /**
+     * Moves a fully written and hashed temp file to its final location. If a blob with the same
+     * key is already present (stored earlier, or by a concurrent writer that won the rename) the
+     * contents are identical, so the temp file is just discarded.
+     */
+    /* package */ boolean installTempFile(File tmp, BlobKey key, boolean compressed) {
+        File file = new File(pathForKey(key));
+        if (file.exists()) {
+            tmp.delete();
+            return true;
+        }
+        if (compressed) {
+            file = shardedFileForHex(BlobKey.convertToHex(key.getBytes()), true);
+        }
+        file.getParentFile().mkdirs();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            if (!file.exists()) {
+                Log.e(Log.TAG_BLOB_STORE, "Unable to move %s to %s", tmp, file);
+                return false;
+            }
+        }
         return true;
     }
 
+    private static byte[] getBytesFromStream(InputStream is, long length) throws IOException {
+        try {
+            byte[] bytes = new byte[(int)length];
+            int offset = 0;
+            int numRead = 0;
+            while (offset < bytes.length
+                   && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0) {
+                offset += numRead;
+            }
+            if (offset < bytes.length) {
+                throw new IOException("Could not completely read compressed blob");
+            }
+            return bytes;
+        } finally {
+            is.close();
+        }
+    }
+
     private static byte[] getBytesFromFile(File file) throws IOException {
         InputStream is = new FileInputStream(file);
 
@@ -243,14 +481,46 @@ public class BlobStore {
         return bytes;
     }
 
-    public Set<BlobKey> allKeys() {
-        Set<BlobKey> result = new HashSet<BlobKey>();
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
-            if (attachment.isDirectory()) {
+    /**
+     * Returns every blob file in the store, in both the sharded and the legacy flat layout.
+     */
+    private List<File> allBlobFiles() {
+        List<File> result = new ArrayList<File>();
+        File[] contents = new File(path).listFiles();
+        if (contents == null) {
+            return result;
+        }
+        for (File file : contents) {
+            if (isShardDirectory(file)) {
+                collectBlobFiles(file, result);
+            } else if (isBlobFile(file)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static void collectBlobFiles(File shard, List<File> result) {
+        File[] subShards = shard.listFiles();
+        if (subShards == null) {
+            return;
+        }
+        for (File subShard : subShards) {
+            File[] blobs = subShard.listFiles();
+            if (blobs == null) {
                 continue;
             }
+            for (File blob : blobs) {
+                if (isBlobFile(blob)) {
+                    result.add(blob);
+                }
+            }
+        }
+    }
+
+    public Set<BlobKey> allKeys() {
+        Set<BlobKey> result = new HashSet<BlobKey>();
+        for (File attachment : allBlobFiles()) {
             BlobKey attachmentKey = new BlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
             result.add(attachmentKey);
@@ -259,26 +529,71 @@ public class BlobStore {
     }
 
     public int count() {
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        return contents.length;
+        return allBlobFiles().size();
     }
 
     public long totalDataSize() {
         long total = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
+        for (File attachment : allBlobFiles()) {
             total += attachment.length();
         }
         return total;
     }
 
+    /**
+     * Deletes all blobs not in keysToKeep. The top-level shard directories are independent,
+     * so they are walked and pruned in parallel, on a pool shared by all blob stores.
+     */
     public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
+        final Set<BlobKey> keep = new HashSet<BlobKey>(keysToKeep);
+        File[] contents = new File(path).listFiles();
+        if (contents == null) {
+            return 0;
+        }
+
+        List<File> flatFiles = new ArrayList<File>();
+        List<File> shards = new ArrayList<File>();
+        for (File file : contents) {
+            if (isShardDirectory(file)) {
+                shards.add(file);
+            } else if (isBlobFile(file)) {
+                flatFiles.add(file);
+            }
+        }
+
+        int numDeleted = deleteBlobFilesExceptWithKeys(flatFiles, keep);
+        if (shards.isEmpty()) {
+            return numDeleted;
+        }
+
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (final File shard : shards) {
+                results.add(gcExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        List<File> blobs = new ArrayList<File>();
+                        collectBlobFiles(shard, blobs);
+                        return deleteBlobFilesExceptWithKeys(blobs, keep);
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                numDeleted += result.get();
+            }
+        } catch (InterruptedException e) {
+            Log.e(Log.TAG_BLOB_STORE, "Interrupted while deleting attachments", e);
+            return -1;
+        } catch (ExecutionException e) {
+            Log.e(Log.TAG_BLOB_STORE, "Error deleting attachments", e);
+            return -1;
+        }
+        return numDeleted;
+    }
+
+    private int deleteBlobFilesExceptWithKeys(List<File> files, Set<BlobKey> keysToKeep) {
         int numDeleted = 0;
-        File file = new File(path);
-        File[] contents = file.listFiles();
-        for (File attachment : contents) {
+        for (File attachment : files) {
             BlobKey attachmentKey = new BlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
             if(!keysToKeep.contains(attachmentKey)) {
@@ -298,11 +613,25 @@ public class BlobStore {
         return deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
     }
     
+    /**
+     * Whether the blob's (decoded) content is itself gzip data, e.g. supplied already gzipped
+     * by the client. Compression at rest doesn't count.
+     */
     public boolean isGZipped(BlobKey key) {
         int magic = 0;
         String path = pathForKey(key);
         File file = new File(path);
-        if (file.canRead()) {
+        if (isCompressedPath(path)) {
+            InputStream is = blobStreamForKey(key);
+            if (is != null) {
+                try {
+                    magic = is.read() & 0xff | ((is.read() << 8) & 0xff00);
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(Log.TAG_BLOB_STORE, "Error reading compressed blob", e);
+                }
+            }
+        } else if (file.canRead()) {
             try {
                 RandomAccessFile raf = new RandomAccessFile(file, "r");
                 magic = raf.read() & 0xff | ((raf.read() << 8) & 0xff00);
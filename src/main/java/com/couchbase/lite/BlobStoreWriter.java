@@ -9,8 +9,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Lets you stream a large attachment to a BlobStore asynchronously, e.g. from a network download.
@@ -34,11 +37,28 @@ public class BlobStoreWriter {
     private MessageDigest sha1Digest;
     private MessageDigest md5Digest;
 
+    /** After finishing, the number of bytes the blob occupies on disk. */
+    private long encodedLength;
+
+    /** Whether the blob is gzipped on its way to disk. */
+    private boolean compressed;
+
+    private static final int BUFFER_SIZE = 65536;
+
     private BufferedOutputStream outStream;
     private File tempFile;
 
     public BlobStoreWriter(BlobStore store) {
+        this(store, false);
+    }
+
+    /**
+     * @param compressed whether to gzip the blob at rest. Digests and length always describe
+     *                   the uncompressed data.
+     */
+    public BlobStoreWriter(BlobStore store, boolean compressed) {
         this.store = store;
+        this.compressed = compressed;
 
         try {
             sha1Digest = MessageDigest.getInstance("SHA-1");
@@ -63,32 +83,46 @@ public class BlobStoreWriter {
         String filename = String.format("%s.blobtmp", uuid);
         File tempDir = store.tempDir();
         tempFile = new File(tempDir, filename);
-        outStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+        OutputStream fileStream = new FileOutputStream(tempFile);
+        if (compressed) {
+            try {
+                fileStream = new GZIPOutputStream(fileStream, BUFFER_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        outStream = new BufferedOutputStream(fileStream, BUFFER_SIZE);
 
     }
 
     /** Appends data to the blob. Call this when new data is available. */
     public void appendData(byte[] data)  {
+        appendData(data, 0, data.length);
+    }
+
+    /** Appends a slice of a buffer to the blob, hashing it as it is written. */
+    public void appendData(byte[] data, int offset, int len)  {
         try {
-            outStream.write(data);
+            outStream.write(data, offset, len);
         } catch (IOException e) {
             throw new RuntimeException("Unable to write to stream.", e);
         }
-        length += data.length;
-        sha1Digest.update(data);
-        md5Digest.update(data);
+        length += len;
+        sha1Digest.update(data, offset, len);
+        md5Digest.update(data, offset, len);
     }
 
     void read(InputStream inputStream) {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[BUFFER_SIZE];
         int len;
         length = 0;
         try {
             while ((len = inputStream.read(buffer)) != -1) {
-                outStream.write(buffer, 0, len);
-                sha1Digest.update(buffer, 0, len);
-                md5Digest.update(buffer, 0, len);
-                length += len;
+                appendData(buffer, 0, len);
             }
         } catch (IOException e) {
             throw new RuntimeException("Unable to read from stream.", e);
@@ -110,6 +144,7 @@ public class BlobStoreWriter {
         }
         blobKey = new BlobKey(sha1Digest.digest());
         md5DigestResult = md5Digest.digest();
+        encodedLength = tempFile.length();
     }
 
     /** Call this to cancel before finishing the data. */
@@ -122,25 +157,19 @@ public class BlobStoreWriter {
         tempFile.delete();
     }
 
-    /** Installs a finished blob into the store. */
-    public void install() {
+    /**
+     * Installs a finished blob into the store. If the store already holds a blob with the same
+     * digest, the temp file is discarded instead of being renamed over it.
+     */
+    public boolean install() {
 
         if (tempFile == null) {
-            return;  // already installed
-        }
-
-        // Move temp file to correct location in blob store:
-        String destPath = store.pathForKey(blobKey);
-        File destPathFile = new File(destPath);
-        boolean result = tempFile.renameTo(destPathFile);
-
-        // If the move fails, assume it means a file with the same name already exists; in that
-        // case it must have the identical contents, so we're still OK.
-        if (result == false) {
-            cancel();
+            return true;  // already installed
         }
 
+        boolean result = store.installTempFile(tempFile, blobKey, compressed);
         tempFile = null;
+        return result;
 
     }
 
@@ -158,9 +187,21 @@ public class BlobStoreWriter {
         return length;
     }
 
+    public long getEncodedLength() {
+        return encodedLength;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     public BlobKey getBlobKey() {
         return blobKey;
     }
 
-    public String getFilePath() { return tempFile.getPath(); }
+    /**
+     * Returns the path of the temp file, or null once the blob has been installed.
+     * The file holds gzipped data if the writer is compressed.
+     */
+    public String getFilePath() { return tempFile != null ? tempFile.getPath() : null; }
 }
@@ -0,0 +1,295 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The built-in reduce functions, as in CouchDB: _count, _sum and _stats. Pass one of them to
+ * View.setMapReduce(), or name it as the "reduce" function of a design document's view.
+ *
+ * Views using a built-in reducer are reduced natively: an ungrouped query is computed by
+ * SQLite with aggregate functions, and a grouped one reads the emitted values' JSON into
+ * primitive accumulators instead of parsing them into objects.
+ *
+ * _sum and _stats only take numeric values into account; other values are ignored, as they
+ * are by View.totalValues(). (Unlike CouchDB, arrays of numbers aren't summed element-wise.)
+ */
+public final class BuiltinReducer implements Reducer {
+
+    /**
+     * Counts the rows; the value is an Integer (a Long if it doesn't fit in one).
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer COUNT = new BuiltinReducer("_count");
+
+    /**
+     * Totals the numeric values, as a Double.
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer SUM = new BuiltinReducer("_sum");
+
+    /**
+     * Computes statistics of the numeric values: a Map with the keys "sum", "count", "min",
+     * "max" and "sumsqr".
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer STATS = new BuiltinReducer("_stats");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String name;
+
+    private BuiltinReducer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the built-in reducer with the given name ("_count", "_sum" or "_stats"), or null
+     * if there isn't one.
+     */
+    @InterfaceAudience.Public
+    public static BuiltinReducer forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        name = name.trim();
+        if (COUNT.name.equals(name)) {
+            return COUNT;
+        } else if (SUM.name.equals(name)) {
+            return SUM;
+        } else if (STATS.name.equals(name)) {
+            return STATS;
+        }
+        return null;
+    }
+
+    @InterfaceAudience.Public
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        Accumulator accumulator = newAccumulator();
+        for (Object value : values) {
+            if (rereduce) {
+                accumulator.addReduced(value);
+            } else {
+                accumulator.addValue(value);
+            }
+        }
+        return accumulator.result();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Accumulator newAccumulator() {
+        return new Accumulator();
+    }
+
+    /**
+     * Wraps a query of the view's index rows, which has a "value" column, into one that
+     * reduces them with SQL aggregates. Read the result with reducedValueFromAggregate().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    String aggregateSql(String rowsSql) {
+        if (this == COUNT) {
+            return "SELECT COUNT(*) FROM (" + rowsSql + ")";
+        }
+        // JSON numbers are the only values that start with a digit or a minus sign
+        return "SELECT COUNT(*), TOTAL(n), COUNT(n), MIN(n), MAX(n), TOTAL(n*n) FROM" +
+                " (SELECT CASE WHEN value GLOB '[-0-9]*' THEN CAST(value AS REAL) END AS n" +
+                " FROM (" + rowsSql + "))";
+    }
+
+    /**
+     * Returns the reduced value from the (positioned) result of an aggregateSql() query, or
+     * null if there were no rows to reduce.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Object reducedValueFromAggregate(Cursor cursor) {
+        Accumulator accumulator = newAccumulator();
+        accumulator.rows = cursor.getLong(0);
+        if (accumulator.rows == 0) {
+            return null;
+        }
+        if (this != COUNT) {
+            accumulator.sum = parseDouble(cursor.getString(1));
+            accumulator.count = cursor.getLong(2);
+            if (accumulator.count > 0) {
+                accumulator.min = parseDouble(cursor.getString(3));
+                accumulator.max = parseDouble(cursor.getString(4));
+            }
+            accumulator.sumsqr = parseDouble(cursor.getString(5));
+        }
+        return accumulator.result();
+    }
+
+    private static double parseDouble(String string) {
+        return (string != null) ? Double.parseDouble(string) : 0;
+    }
+
+    /**
+     * Reduces one group of rows at a time, with primitive accumulators.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    final class Accumulator {
+        private long rows;
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sumsqr;
+
+        boolean isEmpty() {
+            return rows == 0;
+        }
+
+        void reset() {
+            rows = 0;
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sumsqr = 0;
+        }
+
+        /**
+         * Adds an emitted value, given as the JSON stored in the index, without parsing it
+         * into an object.
+         */
+        void addJSON(byte[] json) {
+            rows++;
+            if (BuiltinReducer.this != COUNT && json != null) {
+                double number = parseNumber(json);
+                if (!Double.isNaN(number)) {
+                    addNumber(number);
+                }
+            }
+        }
+
+        void addValue(Object value) {
+            rows++;
+            if (value instanceof Number) {
+                addNumber(((Number) value).doubleValue());
+            }
+        }
+
+        /**
+         * Adds the result of reducing other rows with this reducer.
+         */
+        void addReduced(Object reduced) {
+            if (BuiltinReducer.this == COUNT) {
+                if (reduced instanceof Number) {
+                    rows += ((Number) reduced).longValue();
+                }
+            } else if (BuiltinReducer.this == SUM) {
+                rows++;
+                if (reduced instanceof Number) {
+                    sum += ((Number) reduced).doubleValue();
+                }
+            } else if (reduced instanceof Map) {
+                Map<?, ?> stats = (Map<?, ?>) reduced;
+                long statsCount = numberValue(stats.get("count")).longValue();
+                rows += statsCount;
+                if (statsCount > 0) {
+                    count += statsCount;
+                    sum += numberValue(stats.get("sum")).doubleValue();
+                    sumsqr += numberValue(stats.get("sumsqr")).doubleValue();
+                    min = Math.min(min, numberValue(stats.get("min")).doubleValue());
+                    max = Math.max(max, numberValue(stats.get("max")).doubleValue());
+                }
+            } else {
+                Log.w(Log.TAG_VIEW, "%s: can't rereduce non-stats value: %s", name, reduced);
+            }
+        }
+
+        private void addNumber(double number) {
+            count++;
+            sum += number;
+            sumsqr += number * number;
+            if (number < min) {
+                min = number;
+            }
+            if (number > max) {
+                max = number;
+            }
+        }
+
+        Object result() {
+            if (BuiltinReducer.this == COUNT) {
+                if (rows <= Integer.MAX_VALUE) {
+                    return (int) rows;
+                }
+                return rows;
+            } else if (BuiltinReducer.this == SUM) {
+                return sum;
+            } else {
+                Map<String, Object> stats = new LinkedHashMap<String, Object>();
+                stats.put("sum", sum);
+                stats.put("count", count);
+                stats.put("min", (count > 0) ? min : 0.0);
+                stats.put("max", (count > 0) ? max : 0.0);
+                stats.put("sumsqr", sumsqr);
+                return stats;
+            }
+        }
+    }
+
+    private static Number numberValue(Object object) {
+        return (object instanceof Number) ? (Number) object : Integer.valueOf(0);
+    }
+
+    /**
+     * Parses a JSON number, returning NaN if the JSON is some other kind of value. Integers
+     * (the common case) are parsed without allocating anything.
+     */
+    static double parseNumber(byte[] json) {
+        int length = json.length;
+        int i = 0;
+        boolean negative = false;
+        if (i < length && json[i] == '-') {
+            negative = true;
+            i++;
+        }
+        if (i >= length || json[i] < '0' || json[i] > '9') {
+            return Double.NaN;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < length; i++) {
+            byte b = json[i];
+            if (b < '0' || b > '9' || digits >= 18) {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+        }
+        if (i == length) {
+            return negative ? -value : value;
+        }
+        // fractions, exponents and very long integers
+        try {
+            return Double.parseDouble(new String(json, ASCII).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
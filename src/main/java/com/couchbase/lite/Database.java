@@ -30,6 +30,8 @@ import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
 import com.couchbase.lite.support.Base64;
 import com.couchbase.lite.support.FileDirUtils;
+import com.couchbase.lite.support.LazyJsonObject;
+import com.couchbase.lite.support.SmileTranscoder;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.PersistentCookieStore;
 import com.couchbase.lite.util.CollectionUtils;
@@ -40,6 +42,7 @@ import com.couchbase.lite.util.Utils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -49,10 +52,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -61,6 +66,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A CouchbaseLite database.
@@ -70,6 +77,13 @@ public final class Database {
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
 
+    // Max number of bound parameters per bulk "IN (...)" query; SQLite's limit is 999
+    private static final int BULK_QUERY_CHUNK_SIZE = 500;
+
+    // Temporary table that multi-key queries load their keys into, to join against the index
+    // instead of binding every key as a parameter of an "IN (...)" list
+    static final String QUERY_KEYS_TABLE = "query_keys";
+
     private static ReplicationFilterCompiler filterCompiler;
 
     private String path;
@@ -98,6 +112,10 @@ public final class Database {
     private Cache<String, Document> docCache;
     private List<DocumentChange> changesToNotify;
     private boolean postingChangeNotifications;
+    private ViewIndexer viewIndexer;
+    private boolean viewIndexerClosed;  // set while closing, so the indexer isn't recreated
+    private final AtomicLong lastQueryKeysId = new AtomicLong();
+    private volatile boolean queryKeysTableCreated;  // the temp table belongs to the connection
 
     /**
      * Each database can have an associated PersistentCookieStore,
@@ -121,6 +139,9 @@ public final class Database {
 
     private int maxRevTreeDepth = DEFAULT_MAX_REVS;
 
+    private boolean attachmentCompressionEnabled = false;
+    private BodyStorageFormat bodyStorageFormat = BodyStorageFormat.JSON;
+
     private long startTime;
 
     /**
@@ -260,7 +281,7 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public int getDocumentCount() {
-        String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
+        String sql = "SELECT COUNT(*) FROM winners WHERE deleted=0";
         Cursor cursor = null;
         int result = 0;
         try {
@@ -447,6 +468,53 @@ public final class Database {
         return getDocument(documentId);
     }
 
+    /**
+     * Gets the Documents with the given ids, in the same order, using a few bulk queries instead
+     * of one query per document. The current revision of each Document is loaded up front.
+     * A null entry in the result means the document does not exist or is deleted.
+     */
+    @InterfaceAudience.Public
+    public List<Document> getExistingDocuments(List<String> documentIds) {
+        List<RevisionInternal> revs = getDocumentsWithIDsAndRevs(documentIds, null,
+                EnumSet.noneOf(TDContentOptions.class));
+        List<Document> result = new ArrayList<Document>(revs.size());
+        for (RevisionInternal rev : revs) {
+            if (rev == null) {
+                result.add(null);
+                continue;
+            }
+            Document doc = getDocument(rev.getDocId());
+            doc.loadCurrentRevision(rev);
+            result.add(doc);
+        }
+        return result;
+    }
+
+    /**
+     * Gets specific revisions of many documents at once, using a few bulk queries.
+     * revisionIds must be parallel to documentIds; a null revision ID selects the current
+     * revision. A null entry in the result means the document or revision was not found.
+     */
+    @InterfaceAudience.Public
+    public List<SavedRevision> getExistingRevisions(List<String> documentIds, List<String> revisionIds) {
+        List<RevisionInternal> revs = getDocumentsWithIDsAndRevs(documentIds, revisionIds,
+                EnumSet.noneOf(TDContentOptions.class));
+        List<SavedRevision> result = new ArrayList<SavedRevision>(revs.size());
+        for (int i = 0; i < revs.size(); i++) {
+            RevisionInternal rev = revs.get(i);
+            if (rev == null) {
+                result.add(null);
+                continue;
+            }
+            Document doc = getDocument(rev.getDocId());
+            if (revisionIds.get(i) == null) {
+                doc.loadCurrentRevision(rev);
+            }
+            result.add(doc.getRevisionFromRev(rev));
+        }
+        return result;
+    }
+
     /**
      * Creates a new Document object with no properties and a new (random) UUID.
      * The document will be saved to the database when you call -createRevision: on it.
@@ -792,6 +860,72 @@ public final class Database {
         this.maxRevTreeDepth = maxRevTreeDepth;
     }
 
+    /**
+     * Whether attachments with a compressible content type (text, JSON, XML) are stored
+     * gzipped on disk. This is invisible to the application and to replication.
+     */
+    @InterfaceAudience.Public
+    public boolean isAttachmentCompressionEnabled() {
+        return attachmentCompressionEnabled;
+    }
+
+    /**
+     * Enables or disables compression at rest of attachments with a compressible content type
+     * (text, JSON, XML). Only affects attachments stored after the call; previously stored ones
+     * remain readable either way.
+     */
+    @InterfaceAudience.Public
+    public void setAttachmentCompressionEnabled(boolean attachmentCompressionEnabled) {
+        this.attachmentCompressionEnabled = attachmentCompressionEnabled;
+        if (attachments != null) {
+            attachments.setCompressionEnabled(attachmentCompressionEnabled);
+        }
+    }
+
+
+    /**
+     * The encodings revision bodies can be stored in.
+     */
+    @InterfaceAudience.Public
+    public enum BodyStorageFormat {
+        /**
+         * UTF-8 JSON text. The default.
+         */
+        JSON,
+        /**
+         * Smile, a binary encoding of JSON: smaller, and faster to parse.
+         */
+        SMILE
+    }
+
+    /**
+     * The encoding new revision bodies are stored in. Whatever it is, documents are still
+     * JSON to the application and on the wire; bodies are converted as they're read.
+     */
+    @InterfaceAudience.Public
+    public BodyStorageFormat getBodyStorageFormat() {
+        return bodyStorageFormat;
+    }
+
+    /**
+     * Sets the encoding revision bodies are stored in from now on. The setting is saved in the
+     * database. Bodies stored earlier aren't converted; either kind remains readable.
+     * Note that versions of Couchbase Lite that predate this setting can't read Smile bodies.
+     */
+    @InterfaceAudience.Public
+    public void setBodyStorageFormat(BodyStorageFormat format) throws CouchbaseLiteException {
+        if (format == null) {
+            throw new IllegalArgumentException("format must not be null");
+        }
+        try {
+            database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES ('bodyFormat', ?)",
+                    new Object[] { format.name().toLowerCase() });
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
+        bodyStorageFormat = format;
+    }
+
 
     /** PRIVATE METHODS **/
 
@@ -1107,16 +1241,61 @@ public final class Database {
             dbVersion = 16;
         }
 
+        if (dbVersion < 17) {
+            // Version 17: Add the winners table, which records each document's winning revision so
+            // that reads don't have to sort its current revisions to find it. winners_docid covers
+            // _all_docs queries.
+            String upgradeSql = "CREATE TABLE winners ( " +
+                    "        doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id) ON DELETE CASCADE, " +
+                    "        docid TEXT NOT NULL, " +
+                    "        sequence INTEGER NOT NULL, " +
+                    "        revid TEXT NOT NULL COLLATE REVID, " +
+                    "        deleted BOOLEAN DEFAULT 0, " +
+                    "        conflict BOOLEAN DEFAULT 0); " +
+                    "CREATE INDEX winners_docid ON winners(docid, deleted, revid, sequence); " +
+                    "INSERT INTO winners (doc_id, docid, sequence, revid, deleted) " +
+                    "    SELECT docs.doc_id, docs.docid, revs.sequence, revs.revid, revs.deleted FROM docs, revs " +
+                    "    WHERE revs.sequence = (SELECT sequence FROM revs AS r WHERE r.doc_id = docs.doc_id " +
+                    "        AND r.current=1 ORDER BY r.deleted ASC, r.revid DESC LIMIT 1); " +
+                    "UPDATE winners SET conflict=1 WHERE deleted=0 AND (SELECT COUNT(*) FROM revs " +
+                    "    WHERE revs.doc_id = winners.doc_id AND current=1 AND deleted=0) > 1; " +
+                    "PRAGMA user_version = 17";
+
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 17;
+        }
+
+        if (dbVersion < 18) {
+            // Version 18: Record the encoding revision bodies are stored in (see BodyStorageFormat)
+            String upgradeSql = "INSERT OR IGNORE INTO info (key, value) VALUES ('bodyFormat', 'json'); " +
+                    "PRAGMA user_version = 18";
+
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 18;
+        }
+
+        bodyStorageFormat = "smile".equals(infoValue("bodyFormat"))
+                ? BodyStorageFormat.SMILE : BodyStorageFormat.JSON;
+
 
 
         try {
             attachments = new BlobStore(getAttachmentStorePath());
+            attachments.setCompressionEnabled(attachmentCompressionEnabled);
         } catch (IllegalArgumentException e) {
             Log.e(Database.TAG, "Could not initialize attachment store", e);
             database.close();
             return false;
         }
 
+        viewIndexerClosed = false;
+        queryKeysTableCreated = false;
         open = true;
         return true;
     }
@@ -1130,6 +1309,16 @@ public final class Database {
             return false;
         }
 
+        ViewIndexer indexer;
+        synchronized (this) {
+            indexer = viewIndexer;
+            viewIndexer = null;
+            viewIndexerClosed = true;
+        }
+        if (indexer != null) {
+            indexer.close();
+        }
+
         if(views != null) {
             for (View view : views.values()) {
                 view.databaseClosing();
@@ -1190,6 +1379,17 @@ public final class Database {
         return new BlobStoreWriter(getAttachments());
     }
 
+    /**
+     * Returns a writer for an attachment of the given content type, which will be compressed
+     * at rest if attachment compression is enabled and the type is compressible.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public BlobStoreWriter getAttachmentWriter(String contentType) {
+        BlobStore store = getAttachments();
+        return new BlobStoreWriter(store, store.shouldCompress(contentType));
+    }
+
     /**
      * @exclude
      */
@@ -1251,6 +1451,24 @@ public final class Database {
         return true;
     }
 
+    private String infoValue(String key) {
+        String result = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT value FROM info WHERE key=?", new String[] { key });
+            if(cursor.moveToNext()) {
+                result = cursor.getString(0);
+            }
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying info key %s", e, key);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     /**
      * @exclude
      */
@@ -1310,24 +1528,41 @@ public final class Database {
 
         byte[] extraJSON = null;
         try {
-            extraJSON = Manager.getObjectMapper().writeValueAsBytes(dict);
+            extraJSON = Manager.getJsonCodec().encode(dict);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error convert extra JSON to bytes", e);
             return null;
         }
 
-        int jsonLength = json.length;
-        int extraLength = extraJSON.length;
-        if(jsonLength == 2) { // Original JSON was empty
+        // Find the closing '}', and whether anything comes between it and the opening '{'
+        int close = json.length - 1;
+        while(close >= 0 && isJSONWhitespace(json[close])) {
+            close--;
+        }
+        if(close < 1 || json[close] != '}') {
+            Log.e(Database.TAG, "Can't append to JSON that isn't an object");
+            return null;
+        }
+        int last = close - 1;
+        while(last >= 0 && isJSONWhitespace(json[last])) {
+            last--;
+        }
+        if(last >= 0 && json[last] == '{') { // Original JSON was empty
             return extraJSON;
         }
-        byte[] newJson = new byte[jsonLength + extraLength - 1];
-        System.arraycopy(json, 0, newJson, 0, jsonLength - 1);  // Copy json w/o trailing '}'
-        newJson[jsonLength - 1] = ',';  // Add a ','
-        System.arraycopy(extraJSON, 1, newJson, jsonLength, extraLength - 1);
+
+        int extraLength = extraJSON.length;
+        byte[] newJson = new byte[close + extraLength];
+        System.arraycopy(json, 0, newJson, 0, close);  // Copy json w/o trailing '}'
+        newJson[close] = ',';  // Add a ','
+        System.arraycopy(extraJSON, 1, newJson, close + 1, extraLength - 1);
         return newJson;
     }
 
+    private static boolean isJSONWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
     /**
      * Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
      * Rev must already have its revID and sequence properties set.
@@ -1335,6 +1570,17 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public Map<String,Object> extraPropertiesForRevision(RevisionInternal rev, EnumSet<TDContentOptions> contentOptions) {
+        return extraPropertiesForRevision(rev, contentOptions, null);
+    }
+
+    /**
+     * Like extraPropertiesForRevision(RevisionInternal, EnumSet), but if prefetchedAttachments is
+     * non-null the "_attachments" dictionary is taken from it (as returned by
+     * getAttachmentsDictsForSequences) instead of being queried.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Map<String,Object> extraPropertiesForRevision(RevisionInternal rev, EnumSet<TDContentOptions> contentOptions, Map<Long, Map<String, Object>> prefetchedAttachments) {
 
         String docId = rev.getDocId();
         String revId = rev.getRevId();
@@ -1345,7 +1591,11 @@ public final class Database {
         Map<String, Object> attachmentsDict = null;
         // Get attachment metadata, and optionally the contents:
         if (!contentOptions.contains(TDContentOptions.TDNoAttachments)) {
-            attachmentsDict = getAttachmentsDictForSequenceWithContent(sequenceNumber, contentOptions);
+            if (prefetchedAttachments != null) {
+                attachmentsDict = prefetchedAttachments.get(sequenceNumber);
+            } else {
+                attachmentsDict = getAttachmentsDictForSequenceWithContent(sequenceNumber, contentOptions);
+            }
         }
 
         // Get more optional stuff to put in the properties:
@@ -1426,9 +1676,28 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public void expandStoredJSONIntoRevisionWithAttachments(byte[] json, RevisionInternal rev, EnumSet<TDContentOptions> contentOptions) {
-        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        expandStoredJSONIntoRevisionWithAttachments(json, rev, contentOptions, null);
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void expandStoredJSONIntoRevisionWithAttachments(byte[] json, RevisionInternal rev, EnumSet<TDContentOptions> contentOptions, Map<Long, Map<String, Object>> prefetchedAttachments) {
+        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions, prefetchedAttachments);
+        if(SmileTranscoder.isSmile(json)) {
+            // Revisions are always handed out as JSON
+            try {
+                json = SmileTranscoder.smileToJSON(json);
+            } catch (IOException e) {
+                Log.e(Database.TAG, "Error converting stored body of %s to JSON", e, rev);
+                json = null;
+            }
+        }
         if(json != null && json.length > 0) {
-            rev.setJson(appendDictToJSON(json, extra));
+            // Stored JSON was validated when it was saved, so it can be served without parsing
+            byte[] expanded = appendDictToJSON(json, extra);
+            rev.setBody(expanded != null ? Body.bodyWithValidJSON(expanded) : null);
         }
         else {
             rev.setProperties(extra);
@@ -1443,17 +1712,30 @@ public final class Database {
     @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, boolean deleted, long sequence, EnumSet<TDContentOptions> contentOptions) {
+        return documentPropertiesFromJSON(json, docId, revId, deleted, sequence, contentOptions, null);
+    }
+
+    /**
+     * @exclude
+     */
+    @SuppressWarnings("unchecked")
+    @InterfaceAudience.Private
+    Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, boolean deleted, long sequence, EnumSet<TDContentOptions> contentOptions, Map<Long, Map<String, Object>> prefetchedAttachments) {
 
         RevisionInternal rev = new RevisionInternal(docId, revId, deleted, this);
         rev.setSequence(sequence);
-        Map<String, Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        Map<String, Object> extra = extraPropertiesForRevision(rev, contentOptions, prefetchedAttachments);
         if (json == null) {
             return extra;
         }
 
         Map<String, Object> docProperties = null;
         try {
-            docProperties = Manager.getObjectMapper().readValue(json, Map.class);
+            if (SmileTranscoder.isSmile(json)) {
+                docProperties = SmileTranscoder.decode(json, Map.class);
+            } else {
+                docProperties = Manager.getJsonCodec().decode(json, Map.class);
+            }
             docProperties.putAll(extra);
             return docProperties;
         } catch (Exception e) {
@@ -1463,6 +1745,25 @@ public final class Database {
         return docProperties;
     }
 
+    /**
+     * Like documentPropertiesFromJSON, but the JSON is only parsed as far as it's read: the
+     * result is a LazyJsonObject, which materializes just the top-level properties that are
+     * looked up (and those in the projection, which may be null).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Map<String, Object> lazyDocumentPropertiesFromJSON(byte[] json, String docId, String revId, boolean deleted, long sequence, EnumSet<TDContentOptions> contentOptions, Collection<String> projection) {
+        if (json == null || json.length == 0 || json[0] != '{') {
+            return documentPropertiesFromJSON(json, docId, revId, deleted, sequence, contentOptions);
+        }
+        RevisionInternal rev = new RevisionInternal(docId, revId, deleted, this);
+        rev.setSequence(sequence);
+        Map<String, Object> docProperties = new LazyJsonObject<String, Object>(json, projection);
+        // the stored JSON never has these, so they don't need to be looked for in it
+        docProperties.putAll(extraPropertiesForRevision(rev, contentOptions));
+        return docProperties;
+    }
+
     /**
      * @exclude
      */
@@ -1474,7 +1775,7 @@ public final class Database {
         Cursor cursor = null;
         try {
             cursor = null;
-            String cols = "revid, deleted, sequence, no_attachments";
+            String cols = "revs.revid, revs.deleted, revs.sequence, no_attachments";
             if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
                 cols += ", json";
             }
@@ -1485,8 +1786,7 @@ public final class Database {
                 cursor = database.rawQuery(sql, args);
             }
             else {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
-                //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";}
+                sql = "SELECT " + cols + " FROM winners, revs WHERE winners.docid=? AND winners.deleted=0 AND revs.sequence=winners.sequence";
                 String[] args = {id};
                 cursor = database.rawQuery(sql, args);
             }
@@ -1518,6 +1818,152 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Bulk version of getDocumentWithIDAndRev: looks up many revisions with a few chunked
+     * queries, "docid IN (...)" for current revisions and one term per (docid, revid) pair
+     * for specific ones. revIds may be null, or parallel to docIds with null entries
+     * meaning the current revision. Returns revisions in the order requested, with null for
+     * any that weren't found.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<RevisionInternal> getDocumentsWithIDsAndRevs(List<String> docIds, List<String> revIds, EnumSet<TDContentOptions> contentOptions) {
+        if (revIds != null && revIds.size() != docIds.size()) {
+            throw new IllegalArgumentException("revIds must be parallel to docIds");
+        }
+
+        // Split the requests into current-revision lookups and specific-revision lookups:
+        List<String> currentDocIds = new ArrayList<String>();
+        // (docid, revid) pairs, flattened; a pair requested more than once is looked up once
+        List<String> specificPairs = new ArrayList<String>();
+        Set<String> specificKeys = new HashSet<String>();
+        for (int i = 0; i < docIds.size(); i++) {
+            String revId = (revIds != null) ? revIds.get(i) : null;
+            if (revId == null) {
+                currentDocIds.add(docIds.get(i));
+            } else if (specificKeys.add(docIds.get(i) + " " + revId)) {
+                specificPairs.add(docIds.get(i));
+                specificPairs.add(revId);
+            }
+        }
+
+        String cols = "docid, revid, deleted, sequence, no_attachments";
+        String winnerCols = "winners.docid, revs.revid, revs.deleted, revs.sequence, no_attachments";
+        boolean includeBody = !contentOptions.contains(TDContentOptions.TDNoBody);
+        if (includeBody) {
+            cols += ", json";
+            winnerCols += ", json";
+        }
+
+        // Keyed by docid for current revisions, and by docid + " " + revid for specific ones:
+        Map<String, StoredRevision> found = new HashMap<String, StoredRevision>();
+        Cursor cursor = null;
+        try {
+            for (int start = 0; start < currentDocIds.size(); start += BULK_QUERY_CHUNK_SIZE) {
+                List<String> chunk = currentDocIds.subList(start, Math.min(start + BULK_QUERY_CHUNK_SIZE, currentDocIds.size()));
+                String sql = "SELECT " + winnerCols + " FROM winners, revs WHERE winners.docid IN (" + placeholders(chunk.size()) + ")" +
+                        " AND winners.deleted=0 AND revs.sequence=winners.sequence";
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    found.put(cursor.getString(0), storedRevisionFromBulkCursor(cursor, includeBody));
+                }
+                cursor.close();
+                cursor = null;
+            }
+
+            // Each query matches the exact pairs, two parameters apiece, so none of its rows
+            // are for revisions that weren't asked for.
+            int chunkSize = BULK_QUERY_CHUNK_SIZE - BULK_QUERY_CHUNK_SIZE % 2;
+            for (int start = 0; start < specificPairs.size(); start += chunkSize) {
+                List<String> chunk = specificPairs.subList(start, Math.min(start + chunkSize, specificPairs.size()));
+                StringBuilder pairs = new StringBuilder();
+                for (int i = 0; i < chunk.size(); i += 2) {
+                    pairs.append(i == 0 ? "(docs.docid=? AND revid=?)" : " OR (docs.docid=? AND revid=?)");
+                }
+                String sql = "SELECT " + cols + " FROM revs, docs WHERE revs.doc_id=docs.doc_id AND (" + pairs + ")";
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    found.put(cursor.getString(0) + " " + cursor.getString(1), storedRevisionFromBulkCursor(cursor, includeBody));
+                }
+                cursor.close();
+                cursor = null;
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting documents with ids and revs", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        expandStoredRevisions(found.values(), contentOptions);
+
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>(docIds.size());
+        for (int i = 0; i < docIds.size(); i++) {
+            String revId = (revIds != null) ? revIds.get(i) : null;
+            StoredRevision stored = found.get(revId == null ? docIds.get(i) : docIds.get(i) + " " + revId);
+            result.add(stored != null ? stored.rev : null);
+        }
+        return result;
+    }
+
+    /**
+     * A revision read by a bulk query whose stored JSON hasn't been expanded yet.
+     */
+    private static class StoredRevision {
+        RevisionInternal rev;
+        byte[] json;
+        boolean noAttachments;
+    }
+
+    private StoredRevision storedRevisionFromBulkCursor(Cursor cursor, boolean includeBody) {
+        StoredRevision stored = new StoredRevision();
+        stored.rev = new RevisionInternal(cursor.getString(0), cursor.getString(1), cursor.getInt(2) > 0, this);
+        stored.rev.setSequence(cursor.getLong(3));
+        stored.noAttachments = cursor.getInt(4) > 0;
+        stored.json = includeBody ? cursor.getBlob(5) : null;
+        return stored;
+    }
+
+    /**
+     * Expands the stored JSON of revisions read by a bulk query, fetching the attachment
+     * metadata of all of them with a few set-based queries rather than one per revision.
+     */
+    private void expandStoredRevisions(Collection<StoredRevision> storedRevs, EnumSet<TDContentOptions> contentOptions) {
+        if (contentOptions.equals(EnumSet.of(TDContentOptions.TDNoBody))) {
+            return;
+        }
+
+        Map<Long, Map<String, Object>> attachments = null;
+        if (!contentOptions.contains(TDContentOptions.TDNoAttachments)) {
+            List<Long> sequences = new ArrayList<Long>();
+            for (StoredRevision stored : storedRevs) {
+                if (!stored.noAttachments) {
+                    sequences.add(stored.rev.getSequence());
+                }
+            }
+            attachments = getAttachmentsDictsForSequences(sequences, contentOptions);
+        }
+
+        for (StoredRevision stored : storedRevs) {
+            EnumSet<TDContentOptions> revOptions = contentOptions;
+            if (stored.noAttachments) {
+                revOptions = EnumSet.copyOf(contentOptions);
+                revOptions.add(TDContentOptions.TDNoAttachments);
+            }
+            expandStoredJSONIntoRevisionWithAttachments(stored.json, stored.rev, revOptions, attachments);
+            stored.json = null;
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
     /**
      * @exclude
      */
@@ -1971,6 +2417,8 @@ public final class Database {
             additionalSelectColumns = ", json";
         }
 
+        // Reads the current revisions rather than the winners records, so that a document whose
+        // only change is a new losing conflict (which leaves its winner alone) is still reported
         String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
                         + "WHERE sequence > ? AND current=1 "
                         + "AND revs.doc_id = docs.doc_id "
@@ -2091,24 +2539,7 @@ public final class Database {
             if (view == null) {
                 throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
             }
-            lastSequence = view.getLastSequenceIndexed();
-            if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
-                view.updateIndex();
-                lastSequence = view.getLastSequenceIndexed();
-            } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
-
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            view.updateIndex();
-                        } catch (CouchbaseLiteException e) {
-                            Log.e(Database.TAG, "Error updating view index on background thread", e);
-                        }
-                    }
-                }).start();
-
-            }
+            lastSequence = updateIndexForQuery(view, options);
             rows = view.queryWithOptions(options);
 
 
@@ -2130,6 +2561,82 @@ public final class Database {
 
     }
 
+    /**
+     * Like queryViewNamed(), but returns a streaming QueryEnumerator that reads rows from the
+     * database as they are iterated. The caller should close it if it stops iterating early.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public QueryEnumerator streamViewNamed(String viewName, QueryOptions options) throws CouchbaseLiteException {
+        if (viewName != null && viewName.length() > 0) {
+            View view = getView(viewName);
+            if (view == null) {
+                throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
+            }
+            long lastSequence = updateIndexForQuery(view, options);
+            return view.streamWithOptions(options, lastSequence);
+        } else {
+            // nil view means query _all_docs
+            return streamAllDocs(options);
+        }
+    }
+
+    /**
+     * Brings the view's index up to date as requested by the query's stale option,
+     * and returns the last sequence indexed.
+     */
+    private long updateIndexForQuery(View view, QueryOptions options) throws CouchbaseLiteException {
+        long lastSequence = view.getLastSequenceIndexed();
+        if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
+            // usually a no-op for views that are indexed in the background
+            if (lastSequence < getLastSequenceNumber()) {
+                updateViewIndex(view);
+            }
+            lastSequence = view.getLastSequenceIndexed();
+        } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
+            ViewIndexer indexer = getViewIndexer();
+            if (indexer != null) {
+                indexer.scheduleUpdate(view);
+            }
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Brings a view's index up to date on the calling thread. Goes through the view indexer,
+     * so that it never runs at the same time as a background update of the same view.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void updateViewIndex(View view) throws CouchbaseLiteException {
+        ViewIndexer indexer = getViewIndexer();
+        if (indexer != null) {
+            indexer.updateNow(view);
+        } else {
+            view.updateIndex();
+        }
+    }
+
+    /**
+     * The service that keeps this database's views indexed in the background, created on
+     * first use. Returns null once the database is closed (or is closing).
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    synchronized ViewIndexer getViewIndexer() {
+        if (!open || viewIndexerClosed) {
+            return null;
+        }
+        if (viewIndexer == null) {
+            int maxConcurrentUpdates = ManagerOptions.DEFAULT_MAX_CONCURRENT_INDEX_UPDATES;
+            if (manager != null && manager.getOptions() != null) {
+                maxConcurrentUpdates = manager.getOptions().getMaxConcurrentIndexUpdates();
+            }
+            viewIndexer = new ViewIndexer(this, maxConcurrentUpdates);
+        }
+        return viewIndexer;
+    }
+
     /**
      * @exclude
      */
@@ -2225,116 +2732,32 @@ public final class Database {
         if(options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
 
         long updateSeq = 0;
         if(options.isUpdateSeq()) {
             updateSeq = getLastSequenceNumber();  // TODO: needs to be atomic with the following SELECT
         }
 
-        StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
-        if (options.isIncludeDocs()) {
-            sql.append(", json");
-        }
-        if (includeDeletedDocs) {
-            sql.append(", deleted");
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
         }
-        sql.append(" FROM revs, docs WHERE");
-        if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
-            String commaSeperatedIds = joinQuotedObjects(options.getKeys());
-            sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND", commaSeperatedIds));
-        }
-        sql.append(" docs.doc_id = revs.doc_id AND current=1");
-        if (!includeDeletedDocs) {
-            sql.append(" AND deleted=0");
-        }
-        List<String> args = new ArrayList<String>();
-        Object minKey = options.getStartKey();
-        Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
-        boolean inclusiveMax = options.isInclusiveEnd();
-        if (options.isDescending()) {
-            minKey = maxKey;
-            maxKey = options.getStartKey();
-            inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
-        }
-        if (minKey != null) {
-            assert(minKey instanceof String);
-            sql.append((inclusiveMin ? " AND docid >= ?" :  " AND docid > ?"));
-            args.add((String)minKey);
-        }
-        if (maxKey != null) {
-            assert(maxKey instanceof String);
-            sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
-            args.add((String)maxKey);
-        }
-
-        sql.append(
-                String.format(
-                        " ORDER BY docid %s, %s revid DESC LIMIT ? OFFSET ?",
-                        (options.isDescending() ? "DESC" : "ASC"),
-                        (includeDeletedDocs ? "deleted ASC," : "")
-                )
-        );
-
-        args.add(Integer.toString(options.getLimit()));
-        args.add(Integer.toString(options.getSkip()));
-
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
-
-
-        try {
-            cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
-
-            boolean keepGoing = cursor.moveToNext();
-
-            while(keepGoing) {
-
-                long docNumericID = cursor.getLong(0);
-                String docId = cursor.getString(1);
-                String revId = cursor.getString(2);
-                long sequenceNumber = cursor.getLong(3);
-                boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options))>0;
-                Map<String, Object> docContents = null;
-                if (options.isIncludeDocs()) {
-                    byte[] json = cursor.getBlob(4);
-                    docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
-                }
-
-                // Iterate over following rows with the same doc_id -- these are conflicts.
-                // Skip them, but collect their revIDs if the 'conflicts' option is set:
-                List<String> conflicts = new ArrayList<String>();
-                while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
-                    if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
-                        if (conflicts.isEmpty()) {
-                            conflicts.add(revId);
-                        }
-                        conflicts.add(cursor.getString(2));
-                    }
-                }
-
-                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty()) {
-                    continue;
-                }
-
-                Map<String, Object> value = new HashMap<String, Object>();
-                value.put("rev", revId);
-                value.put("_conflicts", conflicts);
-                if (includeDeletedDocs){
-                    value.put("deleted", (deleted ? true : null));
-                }
-                QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
-                change.setDatabase(this);
-                if (options.getKeys() != null) {
-                    docs.put(docId, change);
-                } else {
-                    rows.add(change);
-                }
+
+        Cursor cursor = null;
+        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+
+
+        try {
+            cursor = allDocsResultSet(options);
+            QueryEnumerator.RowReader rowReader = allDocsRowReader(options, false);
+
+            QueryRow row;
+            while ((row = rowReader.readRow(cursor)) != null) {
+                row.setDatabase(this);
+                if (options.getKeys() != null) {
+                    docs.put(row.getSourceDocumentId(), row);
+                } else {
+                    rows.add(row);
+                }
             }
 
             if (options.getKeys() != null) {
@@ -2387,6 +2810,357 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Queries _all_docs, returning an enumerator that reads rows from the database as they are
+     * iterated. Queries for specific keys are answered eagerly, since their rows have to be
+     * returned in the order of the keys.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public QueryEnumerator streamAllDocs(QueryOptions options) throws CouchbaseLiteException {
+        if(options == null) {
+            options = new QueryOptions();
+        }
+        long lastSequence = getLastSequenceNumber();
+        if (options.getKeys() != null) {
+            List<QueryRow> rows = (List<QueryRow>) getAllDocs(options).get("rows");
+            if (rows == null) {
+                rows = new ArrayList<QueryRow>();
+            }
+            return new QueryEnumerator(this, rows, lastSequence);
+        }
+        try {
+            Cursor cursor = allDocsResultSet(options);
+            return new QueryEnumerator(this, cursor, allDocsRowReader(options, true), lastSequence);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    /**
+     * Runs the SELECT for an _all_docs query. Unless conflicts were asked for, each document's
+     * row is read from its winners record, through the covering winners_docid index. Otherwise
+     * conflicting revisions of a document are returned in consecutive rows, the winning revision
+     * first.
+     */
+    private Cursor allDocsResultSet(QueryOptions options) throws SQLException {
+        Query.AllDocsMode mode = options.getAllDocsMode();
+        boolean includeDeletedDocs = (mode == Query.AllDocsMode.INCLUDE_DELETED);
+        boolean useWinners = (mode != Query.AllDocsMode.SHOW_CONFLICTS && mode != Query.AllDocsMode.ONLY_CONFLICTS);
+        String table = useWinners ? "winners" : "revs";
+
+        StringBuffer sql = new StringBuffer(String.format("SELECT %1$s.doc_id, docid, %1$s.revid, %1$s.sequence", table));
+        if (options.isIncludeDocs()) {
+            sql.append(", json");
+        }
+        if (includeDeletedDocs) {
+            sql.append(", ").append(table).append(".deleted");
+        }
+        String tables;
+        if (useWinners) {
+            tables = options.isIncludeDocs() ? "winners, revs" : "winners";
+        } else {
+            tables = "revs, docs";
+        }
+        List<String> args = new ArrayList<String>();
+        QueryKeys keys = null;
+        if (options.getKeys() != null) {
+            // getAllDocs() puts the rows back in the order of the keys
+            Set<String> docIds = new LinkedHashSet<String>();
+            for (Object docIdObject : options.getKeys()) {
+                if (docIdObject instanceof String) {
+                    docIds.add((String) docIdObject);
+                }
+            }
+            keys = loadQueryKeys(new ArrayList<String>(docIds));
+            sql.append(String.format(" FROM %s CROSS JOIN %s WHERE docid = qk.key AND", keys.getTableSql(), tables));
+            args.addAll(keys.getArgs());
+        } else {
+            sql.append(String.format(" FROM %s WHERE", tables));
+        }
+        if (useWinners) {
+            sql.append(options.isIncludeDocs() ? " revs.sequence = winners.sequence" : " winners.sequence > 0");
+            if (!includeDeletedDocs) {
+                sql.append(" AND winners.deleted=0");
+            }
+        } else {
+            sql.append(" docs.doc_id = revs.doc_id AND current=1 AND deleted=0");
+            if (mode == Query.AllDocsMode.ONLY_CONFLICTS) {
+                sql.append(" AND revs.doc_id IN (SELECT doc_id FROM winners WHERE conflict=1)");
+            }
+        }
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            minKey = maxKey;
+            maxKey = options.getStartKey();
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        if (minKey != null) {
+            assert(minKey instanceof String);
+            sql.append((inclusiveMin ? " AND docid >= ?" :  " AND docid > ?"));
+            args.add((String)minKey);
+        }
+        if (maxKey != null) {
+            assert(maxKey instanceof String);
+            sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
+            args.add((String)maxKey);
+        }
+
+        if (useWinners) {
+            sql.append(String.format(" ORDER BY docid %s LIMIT ? OFFSET ?", (options.isDescending() ? "DESC" : "ASC")));
+        } else {
+            sql.append(
+                    String.format(
+                            " ORDER BY docid %s, revid DESC LIMIT ? OFFSET ?",
+                            (options.isDescending() ? "DESC" : "ASC")
+                    )
+            );
+        }
+
+        args.add(Integer.toString(options.getLimit()));
+        args.add(Integer.toString(options.getSkip()));
+
+        return rawQueryWithKeys(sql.toString(), args.toArray(new String[args.size()]), keys);
+    }
+
+    /**
+     * The keys of a multi-key query, as a table "qk" with columns ord and key to join against.
+     * Up to MAX_BOUND_QUERY_KEYS keys are bound as parameters of an inline subquery; more are
+     * loaded into the temporary query_keys table, to stay clear of SQLite's parameter limit.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    static final class QueryKeys {
+        private final String tableSql;
+        private final List<String> args;
+        private final long queryId;  // 0 unless the keys are in the temp table
+
+        private QueryKeys(String tableSql, List<String> args, long queryId) {
+            this.tableSql = tableSql;
+            this.args = args;
+            this.queryId = queryId;
+        }
+
+        /** The SQL to put in the FROM clause; its parameters must be bound before the rest. */
+        String getTableSql() {
+            return tableSql;
+        }
+
+        List<String> getArgs() {
+            return args;
+        }
+    }
+
+    /**
+     * The most keys bound as parameters of a multi-key query before they go in a temp table.
+     */
+    static final int MAX_BOUND_QUERY_KEYS = 100;
+
+    /**
+     * Prepares the keys of a multi-key query, numbered in the order given, to be joined against
+     * (... = qk.key, ORDER BY qk.ord). Keys loaded into the temp table stay there until
+     * releaseQueryKeys() is called, normally by closing the cursor returned by rawQueryWithKeys().
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    QueryKeys loadQueryKeys(List<String> keys) throws SQLException {
+        if (keys.isEmpty()) {
+            return new QueryKeys("(SELECT 0 AS ord, NULL AS key LIMIT 0) qk", new ArrayList<String>(), 0);
+        }
+        if (keys.size() <= MAX_BOUND_QUERY_KEYS) {
+            StringBuilder sql = new StringBuilder("(");
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    sql.append(" UNION ALL ");
+                }
+                sql.append("SELECT ").append(i).append(" AS ord, ? AS key");
+            }
+            sql.append(") qk");
+            return new QueryKeys(sql.toString(), new ArrayList<String>(keys), 0);
+        }
+
+        if (!queryKeysTableCreated) {
+            database.execSQL(String.format(
+                    "CREATE TEMP TABLE IF NOT EXISTS %s (" +
+                    "query_id INTEGER NOT NULL, ord INTEGER NOT NULL, key TEXT NOT NULL, " +
+                    "PRIMARY KEY (query_id, ord))", QUERY_KEYS_TABLE));
+            queryKeysTableCreated = true;
+        }
+
+        long queryId = lastQueryKeysId.incrementAndGet();
+        String sql = String.format("INSERT INTO %s (query_id, ord, key) VALUES (?, ?, ?)", QUERY_KEYS_TABLE);
+        if (!beginTransaction()) {
+            throw new SQLException("Unable to begin a transaction to load query keys");
+        }
+        boolean commit = false;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                database.execSQL(sql, new Object[] { queryId, i, keys.get(i) });
+            }
+            commit = true;
+        } finally {
+            endTransaction(commit);
+        }
+        List<String> args = new ArrayList<String>(1);
+        args.add(Long.toString(queryId));
+        return new QueryKeys(String.format("(SELECT ord, key FROM %s WHERE query_id=?) qk", QUERY_KEYS_TABLE),
+                args, queryId);
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void releaseQueryKeys(long queryId) {
+        if (database == null || !database.isOpen()) {
+            return;  // the temp table went away with the connection
+        }
+        try {
+            database.execSQL(String.format("DELETE FROM %s WHERE query_id=?", QUERY_KEYS_TABLE),
+                    new Object[] { queryId });
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "Error releasing query keys", e);
+        }
+    }
+
+    /**
+     * Runs a query joined against keys prepared by loadQueryKeys(); keys in the temp table are
+     * released when the returned cursor is closed, or right away if the query fails. If keys is
+     * null, or they weren't loaded into the temp table, the query is run as is.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Cursor rawQueryWithKeys(String sql, String[] args, QueryKeys keys) throws SQLException {
+        if (keys == null || keys.queryId == 0) {
+            return database.rawQuery(sql, args);
+        }
+        final long queryId = keys.queryId;
+        final Cursor cursor;
+        try {
+            cursor = database.rawQuery(sql, args);
+        } catch (SQLException e) {
+            releaseQueryKeys(queryId);
+            throw e;
+        }
+        return new Cursor() {
+            private boolean closed = false;
+
+            @Override
+            public boolean moveToNext() {
+                return cursor.moveToNext();
+            }
+
+            @Override
+            public boolean isAfterLast() {
+                return cursor.isAfterLast();
+            }
+
+            @Override
+            public String getString(int columnIndex) {
+                return cursor.getString(columnIndex);
+            }
+
+            @Override
+            public int getInt(int columnIndex) {
+                return cursor.getInt(columnIndex);
+            }
+
+            @Override
+            public long getLong(int columnIndex) {
+                return cursor.getLong(columnIndex);
+            }
+
+            @Override
+            public byte[] getBlob(int columnIndex) {
+                return cursor.getBlob(columnIndex);
+            }
+
+            @Override
+            public synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    cursor.close();
+                    releaseQueryKeys(queryId);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a reader that turns the result set of allDocsResultSet() into QueryRows, one per
+     * document. If deferDocuments is set, the documents' JSON is only expanded when the row's
+     * properties are asked for, which suits rows that are streamed to the caller.
+     */
+    private QueryEnumerator.RowReader allDocsRowReader(final QueryOptions options, final boolean deferDocuments) {
+        final boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        final boolean collectConflicts = (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS);
+
+        return new QueryEnumerator.RowReader() {
+
+            private boolean started = false;
+            private boolean keepGoing = false;
+
+            @Override
+            public QueryRow readRow(Cursor cursor) {
+                if (!started) {
+                    started = true;
+                    keepGoing = cursor.moveToNext();
+                }
+
+                while(keepGoing) {
+
+                    long docNumericID = cursor.getLong(0);
+                    String docId = cursor.getString(1);
+                    String revId = cursor.getString(2);
+                    long sequenceNumber = cursor.getLong(3);
+                    boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options))>0;
+                    byte[] json = null;
+                    if (options.isIncludeDocs()) {
+                        json = cursor.getBlob(4);
+                    }
+
+                    // Iterate over following rows with the same doc_id -- these are conflicts.
+                    // Skip them, but collect their revIDs if the 'conflicts' option is set:
+                    List<String> conflicts = new ArrayList<String>();
+                    while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
+                        if (collectConflicts) {
+                            if (conflicts.isEmpty()) {
+                                conflicts.add(revId);
+                            }
+                            conflicts.add(cursor.getString(2));
+                        }
+                    }
+
+                    if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty()) {
+                        continue;
+                    }
+
+                    Map<String, Object> value = new HashMap<String, Object>();
+                    value.put("rev", revId);
+                    value.put("_conflicts", conflicts);
+                    if (includeDeletedDocs){
+                        value.put("deleted", (deleted ? true : null));
+                    }
+                    Map<String, Object> docContents = null;
+                    if (options.isIncludeDocs() && !deferDocuments) {
+                        docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
+                    }
+                    QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
+                    if (options.isIncludeDocs() && deferDocuments) {
+                        change.setDocumentJSON(json, revId, deleted, options.getContentOptions());
+                    }
+                    return change;
+                }
+                return null;
+            }
+        };
+    }
+
 
     /**
      * Returns the rev ID of the 'winning' revision of this document, and whether it's deleted.
@@ -2396,9 +3170,7 @@ public final class Database {
     String winningRevIDOfDoc(long docNumericId, AtomicBoolean outIsDeleted, AtomicBoolean outIsConflict) throws CouchbaseLiteException {
 
         Cursor cursor = null;
-        String sql = "SELECT revid, deleted FROM revs" +
-                " WHERE doc_id=? and current=1" +
-                " ORDER BY deleted asc, revid desc LIMIT 2";
+        String sql = "SELECT revid, deleted, conflict FROM winners WHERE doc_id=?";
 
         String[] args = { Long.toString(docNumericId) };
         String revId = null;
@@ -2409,9 +3181,8 @@ public final class Database {
             if (cursor.moveToNext()) {
                 revId = cursor.getString(0);
                 outIsDeleted.set(cursor.getInt(1) > 0);
-                // The document is in conflict if there are two+ result rows that are not deletions.
                 if(outIsConflict != null) {
-                    outIsConflict.set(!outIsDeleted.get() && cursor.moveToNext() && !(cursor.getInt(1) > 0));
+                    outIsConflict.set(cursor.getInt(2) > 0);
                 }
             } else {
                 outIsDeleted.set(false);
@@ -2433,6 +3204,39 @@ public final class Database {
     }
 
 
+    /**
+     * Recomputes the document's winners record from its current revisions. Must be called, in
+     * the same transaction, whenever a revision of the document is added or removed.
+     */
+    private void updateWinningRevision(long docNumericID, String docId) throws SQLException {
+        String[] args = { Long.toString(docNumericID) };
+        Cursor cursor = null;
+        try {
+            // The document is in conflict if there are two+ current revisions that are not deletions.
+            cursor = database.rawQuery("SELECT sequence, revid, deleted FROM revs" +
+                    " WHERE doc_id=? and current=1" +
+                    " ORDER BY deleted asc, revid desc LIMIT 2", args);
+            if (!cursor.moveToNext()) {
+                database.delete("winners", "doc_id=?", args);
+                return;
+            }
+            ContentValues values = new ContentValues();
+            values.put("doc_id", docNumericID);
+            values.put("docid", docId);
+            values.put("sequence", cursor.getLong(0));
+            values.put("revid", cursor.getString(1));
+            boolean deleted = cursor.getInt(2) > 0;
+            values.put("deleted", deleted);
+            values.put("conflict", !deleted && cursor.moveToNext() && !(cursor.getInt(2) > 0));
+            database.insertWithOnConflict("winners", null, values, SQLiteStorageEngine.CONFLICT_REPLACE);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+
     /*************************************************************************************************/
     /*** Database+Attachments                                                                    ***/
     /*************************************************************************************************/
@@ -2459,7 +3263,7 @@ public final class Database {
         assert(name != null);
 
         BlobKey key = new BlobKey();
-        if(!attachments.storeBlobStream(contentStream, key)) {
+        if(!attachments.storeBlobStream(contentStream, key, attachments.shouldCompress(contentType))) {
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
         }
         insertAttachmentForSequenceWithNameAndType(
@@ -2511,9 +3315,13 @@ public final class Database {
             BlobStoreWriter writer = pendingAttachmentsByDigest.get(digest);
             try {
                 BlobStoreWriter blobStoreWriter = (BlobStoreWriter) writer;
-                blobStoreWriter.install();
+                if (!blobStoreWriter.install()) {
+                    throw new CouchbaseLiteException(Status.STATUS_ATTACHMENT_ERROR);
+                }
                 attachment.setBlobKey(blobStoreWriter.getBlobKey());
                 attachment.setLength(blobStoreWriter.getLength());
+            } catch (CouchbaseLiteException e) {
+                throw e;
             } catch (Exception e) {
                 throw new CouchbaseLiteException(e, Status.STATUS_ATTACHMENT_ERROR);
             }
@@ -2524,9 +3332,11 @@ public final class Database {
      * @exclude
      */
     @InterfaceAudience.Private
-    private Map<String, BlobStoreWriter> getPendingAttachmentsByDigest() {
+    private synchronized Map<String, BlobStoreWriter> getPendingAttachmentsByDigest() {
         if (pendingAttachmentsByDigest == null) {
-            pendingAttachmentsByDigest = new HashMap<String, BlobStoreWriter>();
+            // Attachment bodies are streamed and hashed on the callers' threads, so several
+            // writers may be registered concurrently.
+            pendingAttachmentsByDigest = new ConcurrentHashMap<String, BlobStoreWriter>();
         }
         return pendingAttachmentsByDigest;
     }
@@ -2546,8 +3356,8 @@ public final class Database {
 
         String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
         try {
-            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
-                    "SELECT ?, ?, key, type, length, revpos FROM attachments " +
+            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, encoding, encoded_length, revpos) " +
+                    "SELECT ?, ?, key, type, length, encoding, encoded_length, revpos FROM attachments " +
                     "WHERE sequence=? AND filename=?", args);
             cursor = database.rawQuery("SELECT changes()", null);
             cursor.moveToNext();
@@ -2694,71 +3504,116 @@ public final class Database {
             Map<String, Object> result = new HashMap<String, Object>();
 
             while(!cursor.isAfterLast()) {
+                result.put(cursor.getString(0), attachmentDictFromCursor(cursor, sequence, contentOptions));
+                cursor.moveToNext();
+            }
 
-                boolean dataSuppressed = false;
-                int length = cursor.getInt(3);
-
-                byte[] keyData = cursor.getBlob(1);
-                BlobKey key = new BlobKey(keyData);
-                String digestString = "sha1-" + Base64.encodeBytes(keyData);
-                String dataBase64 = null;
-                if(contentOptions.contains(TDContentOptions.TDIncludeAttachments)) {
-                    if (contentOptions.contains(TDContentOptions.TDBigAttachmentsFollow) &&
-                            length >= Database.kBigAttachmentLength) {
-                        dataSuppressed = true;
-                    }
-                    else {
-                        byte[] data = attachments.blobForKey(key);
+            return result;
 
-                        if(data != null) {
-                            dataBase64 = Base64.encodeBytes(data);  // <-- very expensive
-                        }
-                        else {
-                            Log.w(Database.TAG, "Error loading attachment.  Sequence: %s", sequence);
-                        }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting attachments for sequence", e);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
 
-                    }
+    /**
+     * Bulk version of getAttachmentsDictForSequenceWithContent: returns the "_attachments"
+     * dictionaries of many revisions, keyed by sequence, using a few chunked
+     * "sequence IN (...)" queries. Sequences without attachments have no entry.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Map<Long, Map<String, Object>> getAttachmentsDictsForSequences(Collection<Long> sequences, EnumSet<TDContentOptions> contentOptions) {
+        Map<Long, Map<String, Object>> result = new HashMap<Long, Map<String, Object>>();
+        List<String> sequenceArgs = new ArrayList<String>(sequences.size());
+        for (Long sequence : sequences) {
+            sequenceArgs.add(Long.toString(sequence));
+        }
 
+        Cursor cursor = null;
+        try {
+            for (int start = 0; start < sequenceArgs.size(); start += BULK_QUERY_CHUNK_SIZE) {
+                List<String> chunk = sequenceArgs.subList(start, Math.min(start + BULK_QUERY_CHUNK_SIZE, sequenceArgs.size()));
+                cursor = database.rawQuery("SELECT filename, key, type, length, revpos, sequence FROM attachments WHERE sequence IN (" +
+                        placeholders(chunk.size()) + ")", chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    long sequence = cursor.getLong(5);
+                    Map<String, Object> attachments = result.get(sequence);
+                    if (attachments == null) {
+                        attachments = new HashMap<String, Object>();
+                        result.put(sequence, attachments);
+                    }
+                    attachments.put(cursor.getString(0), attachmentDictFromCursor(cursor, sequence, contentOptions));
                 }
+                cursor.close();
+                cursor = null;
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting attachments for sequences", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
 
-                Map<String, Object> attachment = new HashMap<String, Object>();
-
+    /**
+     * Builds the dictionary for one attachment from a row whose first columns are
+     * filename, key, type, length, revpos.
+     */
+    private Map<String, Object> attachmentDictFromCursor(Cursor cursor, long sequence, EnumSet<TDContentOptions> contentOptions) {
+        boolean dataSuppressed = false;
+        int length = cursor.getInt(3);
 
+        byte[] keyData = cursor.getBlob(1);
+        BlobKey key = new BlobKey(keyData);
+        String digestString = "sha1-" + Base64.encodeBytes(keyData);
+        String dataBase64 = null;
+        if(contentOptions.contains(TDContentOptions.TDIncludeAttachments)) {
+            if (contentOptions.contains(TDContentOptions.TDBigAttachmentsFollow) &&
+                    length >= Database.kBigAttachmentLength) {
+                dataSuppressed = true;
+            }
+            else {
+                byte[] data = attachments.blobForKey(key);
 
-                if(!(dataBase64 != null || dataSuppressed)) {
-                    attachment.put("stub", true);
+                if(data != null) {
+                    dataBase64 = Base64.encodeBytes(data);  // <-- very expensive
                 }
-
-                if(dataBase64 != null) {
-                    attachment.put("data", dataBase64);
+                else {
+                    Log.w(Database.TAG, "Error loading attachment.  Sequence: %s", sequence);
                 }
 
-                if (dataSuppressed == true) {
-                    attachment.put("follows", true);
-                }
+            }
 
-                attachment.put("digest", digestString);
-                String contentType = cursor.getString(2);
-                attachment.put("content_type", contentType);
-                attachment.put("length", length);
-                attachment.put("revpos", cursor.getInt(4));
+        }
 
-                String filename = cursor.getString(0);
-                result.put(filename, attachment);
+        Map<String, Object> attachment = new HashMap<String, Object>();
 
-                cursor.moveToNext();
-            }
+        if(!(dataBase64 != null || dataSuppressed)) {
+            attachment.put("stub", true);
+        }
 
-            return result;
+        if(dataBase64 != null) {
+            attachment.put("data", dataBase64);
+        }
 
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting attachments for sequence", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
+        if (dataSuppressed == true) {
+            attachment.put("follows", true);
         }
+
+        attachment.put("digest", digestString);
+        String contentType = cursor.getString(2);
+        attachment.put("content_type", contentType);
+        attachment.put("length", length);
+        attachment.put("revpos", cursor.getInt(4));
+
+        return attachment;
     }
 
     @InterfaceAudience.Private
@@ -2768,10 +3623,15 @@ public final class Database {
             return null;
         }
         String path = null;
-        Object pending = pendingAttachmentsByDigest.get(digest);
+        Object pending = getPendingAttachmentsByDigest().get(digest);
         if (pending != null) {
             if (pending instanceof BlobStoreWriter) {
-                path = ((BlobStoreWriter) pending).getFilePath();
+                BlobStoreWriter writer = (BlobStoreWriter) pending;
+                path = writer.getFilePath();
+                if (path == null) {
+                    // Already installed into the store:
+                    path = attachments.pathForKey(writer.getBlobKey());
+                }
             } else {
                 BlobKey key = new BlobKey((byte[])pending);
                 path = attachments.pathForKey(key);
@@ -2792,6 +3652,66 @@ public final class Database {
     }
 
 
+    /**
+     * Opens the (decoded) contents of a pending or installed attachment. Unlike reading the file
+     * from fileForAttachmentDict, this also works for blobs that are compressed at rest.
+     */
+    private InputStream streamForAttachmentDict(Map<String,Object> attachmentDict) throws IOException {
+        String digest = (String)attachmentDict.get("digest");
+        if (digest == null) {
+            return null;
+        }
+        BlobStoreWriter pending = getPendingAttachmentsByDigest().get(digest);
+        if (pending != null && pending.getFilePath() != null) {
+            InputStream is = new FileInputStream(pending.getFilePath());
+            return pending.isCompressed() ? new GZIPInputStream(is) : is;
+        }
+        BlobKey key = pending != null ? pending.getBlobKey() : new BlobKey(digest);
+        return attachments.blobStreamForKey(key);
+    }
+
+    /**
+     * Whether a pending or installed attachment's blob is stored gzipped, in which case the file
+     * from fileForAttachmentDict doesn't hold its plain contents.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean isAttachmentCompressedAtRest(Map<String,Object> attachmentDict) {
+        String digest = (String)attachmentDict.get("digest");
+        if (digest == null) {
+            return false;
+        }
+        BlobStoreWriter pending = getPendingAttachmentsByDigest().get(digest);
+        if (pending != null && pending.getFilePath() != null) {
+            return pending.isCompressed();
+        }
+        BlobKey key = pending != null ? pending.getBlobKey() : new BlobKey(digest);
+        return attachments.isCompressed(key);
+    }
+
+    /**
+     * Writes the decoded contents of a pending or installed attachment to a new file in the blob
+     * store's temporary directory. The caller is responsible for deleting the file.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public File copyAttachmentToTempFile(Map<String,Object> attachmentDict) throws IOException {
+        InputStream is = streamForAttachmentDict(attachmentDict);
+        if (is == null) {
+            return null;
+        }
+        File file = File.createTempFile(BlobStore.TMP_FILE_PREFIX, BlobStore.TMP_FILE_EXTENSION,
+                attachments.tempDir());
+        try {
+            StreamUtils.copyStreamToFile(is, file);
+        } catch (IOException e) {
+            is.close();
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
     /**
      * Modifies a RevisionInternal's body by changing all attachments with revpos < minRevPos into stubs.
      *
@@ -2914,10 +3834,13 @@ public final class Database {
                 if (!attachment.containsKey("follows")) {
                     return attachment;
                 }
-                URL fileURL = fileForAttachmentDict(attachment);
                 byte[] fileData = null;
                 try {
-                    InputStream is = fileURL.openStream();
+                    InputStream is = streamForAttachmentDict(attachment);
+                    if (is == null) {
+                        Log.e(Log.TAG_SYNC, "could not find attachment data for %s", attachment);
+                        return null;
+                    }
                     ByteArrayOutputStream os = new ByteArrayOutputStream();
                     StreamUtils.copyStream(is,os);
                     fileData = os.toByteArray();
@@ -3328,7 +4251,7 @@ public final class Database {
 
         byte[] json = null;
         try {
-            json = Manager.getObjectMapper().writeValueAsBytes(properties);
+            json = Manager.getJsonCodec().encode(properties);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error serializing " + rev + " to JSON", e);
         }
@@ -3372,6 +4295,15 @@ public final class Database {
                     }
                 }
 
+                // the transaction has committed, so let background indexing catch up
+                ViewIndexer indexer;
+                synchronized (this) {
+                    indexer = viewIndexer;
+                }
+                if (indexer != null) {
+                    indexer.databaseChanged();
+                }
+
                 ChangeEvent changeEvent = new ChangeEvent(this, isExternal, outgoingChanges);
 
                 for (ChangeListener changeListener : changeListeners) {
@@ -3439,7 +4371,7 @@ public final class Database {
             args.put("current", current);
             args.put("deleted", rev.isDeleted());
             args.put("no_attachments",!hasAttachments);
-            args.put("json", data);
+            args.put("json", storedBody(data));
             rowId = database.insert("revs", null, args);
             rev.setSequence(rowId);
         } catch (Exception e) {
@@ -3448,6 +4380,21 @@ public final class Database {
         return rowId;
     }
 
+    /**
+     * Converts a body encoded by encodeDocumentJSON() to the database's storage format.
+     */
+    private byte[] storedBody(byte[] json) {
+        if (json == null || json.length == 0 || bodyStorageFormat != BodyStorageFormat.SMILE) {
+            return json;
+        }
+        try {
+            return SmileTranscoder.jsonToSmile(json);
+        } catch (IOException e) {
+            Log.w(Database.TAG, "Error converting body to Smile; storing it as JSON", e);
+            return json;
+        }
+    }
+
     /**
      * @exclude
      */
@@ -3478,9 +4425,161 @@ public final class Database {
      * @return A new RevisionInternal with the docID, revID and sequence filled in (but no body).
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus) throws CouchbaseLiteException {
+        return putRevision(oldRev, prevRevId, allowConflict, resultStatus, null);
+    }
+
+    /**
+     * Stores many new revisions inside a single transaction. The documents' current winning
+     * revisions are looked up with a few set-based queries up front instead of once per
+     * document, and since everything happens inside one transaction, listeners receive a
+     * single ChangeEvent covering all the new revisions.
+     *
+     * @param revs The revisions to add; see putRevision(RevisionInternal, String, boolean, Status).
+     * @param prevRevIds Parallel to revs: the ID of the revision each one replaces, or null.
+     * @param allowConflict As in putRevision.
+     * @param allOrNothing If true, the first failure rolls back the whole batch and is thrown;
+     *                     otherwise failed revisions get a null result and an error status.
+     * @param outStatuses If non-null, receives a status for each revision, in order.
+     * @return The new revisions, in the same order as revs.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<RevisionInternal> putRevisions(List<RevisionInternal> revs, List<String> prevRevIds, boolean allowConflict, boolean allOrNothing, List<Status> outStatuses) throws CouchbaseLiteException {
+        if (prevRevIds.size() != revs.size()) {
+            throw new IllegalArgumentException("prevRevIds must be parallel to revs");
+        }
+        Set<String> docIds = new HashSet<String>();
+        for (RevisionInternal rev : revs) {
+            if (rev.getDocId() != null) {
+                docIds.add(rev.getDocId());
+            }
+        }
+
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>(revs.size());
+        int numPendingChanges = (changesToNotify != null) ? changesToNotify.size() : 0;
+        boolean ok = false;
+        beginTransaction();
+        try {
+            Map<String, CurrentRevisionInfo> currentRevs = getCurrentRevisionInfo(docIds);
+            for (int i = 0; i < revs.size(); i++) {
+                Status status = new Status();
+                RevisionInternal newRev = null;
+                try {
+                    newRev = putRevision(revs.get(i), prevRevIds.get(i), allowConflict, status, currentRevs);
+                    if (newRev == null && !status.isError()) {
+                        status.setCode(Status.INTERNAL_SERVER_ERROR);
+                    }
+                } catch (CouchbaseLiteException e) {
+                    status.setCode(e.getCBLStatus().getCode());
+                }
+                if (status.isError() && allOrNothing) {
+                    throw new CouchbaseLiteException(status);
+                }
+                result.add(newRev);
+                if (outStatuses != null) {
+                    outStatuses.add(status);
+                }
+            }
+            ok = true;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error putting revisions", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (!ok && changesToNotify != null) {
+                // Don't announce revisions that were rolled back:
+                changesToNotify.subList(numPendingChanges, changesToNotify.size()).clear();
+            }
+            endTransaction(ok);
+        }
+        return result;
+    }
+
+    /**
+     * Saves a new revision of each of the given documents in a single transaction, as if by
+     * Document.putProperties on each. Each properties map may contain "_id" (otherwise a
+     * new ID is generated), "_rev" for the revision being replaced, "_deleted" and
+     * "_attachments". If any document fails to save, none are saved.
+     *
+     * @return The new revisions, in the same order as propertiesList.
+     */
+    @InterfaceAudience.Public
+    public List<SavedRevision> saveDocuments(List<Map<String, Object>> propertiesList) throws CouchbaseLiteException {
+        List<RevisionInternal> revs = new ArrayList<RevisionInternal>(propertiesList.size());
+        List<String> prevRevIds = new ArrayList<String>(propertiesList.size());
+        for (Map<String, Object> properties : propertiesList) {
+            Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+            if (attachments != null && attachments.size() > 0) {
+                properties.put("_attachments", Attachment.installAttachmentBodies(attachments, this));
+            }
+            Boolean deleted = (Boolean) properties.get("_deleted");
+            RevisionInternal rev = new RevisionInternal((String) properties.get("_id"), null,
+                    deleted != null && deleted.booleanValue(), this);
+            rev.setProperties(properties);
+            revs.add(rev);
+            prevRevIds.add((String) properties.get("_rev"));
+        }
+
+        List<RevisionInternal> newRevs = putRevisions(revs, prevRevIds, false, true, null);
+        List<SavedRevision> result = new ArrayList<SavedRevision>(newRevs.size());
+        for (RevisionInternal newRev : newRevs) {
+            result.add(new SavedRevision(getDocument(newRev.getDocId()), newRev));
+        }
+        return result;
+    }
+
+    /**
+     * What putRevision needs to know about a document's existing revisions.
+     */
+    private static class CurrentRevisionInfo {
+        long docNumericID;
+        String winningRevID;
+        boolean winnerDeleted;
+        boolean conflicted;
+    }
+
+    /**
+     * Looks up the numeric ID and the current winning revision of many documents with a few
+     * chunked queries. Documents that don't exist at all get an entry with docNumericID 0.
+     */
+    private Map<String, CurrentRevisionInfo> getCurrentRevisionInfo(Collection<String> docIds) throws SQLException {
+        Map<String, CurrentRevisionInfo> result = new HashMap<String, CurrentRevisionInfo>();
+        List<String> docIdList = new ArrayList<String>(docIds);
+        for (String docId : docIdList) {
+            result.put(docId, new CurrentRevisionInfo());
+        }
+        for (int start = 0; start < docIdList.size(); start += BULK_QUERY_CHUNK_SIZE) {
+            List<String> chunk = docIdList.subList(start, Math.min(start + BULK_QUERY_CHUNK_SIZE, docIdList.size()));
+            String sql = "SELECT docs.docid, docs.doc_id, revid, deleted, conflict FROM docs" +
+                    " LEFT JOIN winners ON winners.doc_id=docs.doc_id" +
+                    " WHERE docs.docid IN (" + placeholders(chunk.size()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    CurrentRevisionInfo info = result.get(cursor.getString(0));
+                    info.docNumericID = cursor.getLong(1);
+                    info.winningRevID = cursor.getString(2);
+                    info.winnerDeleted = cursor.getInt(3) > 0;
+                    info.conflicted = cursor.getInt(4) > 0;
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Implementation of putRevision. If currentRevs is non-null and has an entry for the
+     * document, it is used (and consumed) instead of querying for the document's current
+     * winning revision.
+     */
+    @SuppressWarnings("unchecked")
+    private RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus, Map<String, CurrentRevisionInfo> currentRevs) throws CouchbaseLiteException {
         // prevRevId is the rev ID being replaced, or nil if an insert
         String docId = oldRev.getDocId();
         boolean deleted = oldRev.isDeleted();
@@ -3497,14 +4596,24 @@ public final class Database {
 
         //// PART I: In which are performed lookups and validations prior to the insert...
 
-        long docNumericID = (docId != null) ? getDocNumericID(docId) : 0;
+        CurrentRevisionInfo currentRevInfo = (currentRevs != null && docId != null) ? currentRevs.remove(docId) : null;
+        long docNumericID = 0;
+        if (currentRevInfo != null) {
+            docNumericID = currentRevInfo.docNumericID;
+        } else if (docId != null) {
+            docNumericID = getDocNumericID(docId);
+        }
         long parentSequence = 0;
         AtomicBoolean oldWinnerWasDeletion = new AtomicBoolean(false);
         AtomicBoolean wasConflicted = new AtomicBoolean(false);
         String oldWinningRevID = null;
 
         try {
-            if (docNumericID > 0) {
+            if (currentRevInfo != null) {
+                oldWinningRevID = currentRevInfo.winningRevID;
+                oldWinnerWasDeletion.set(currentRevInfo.winnerDeleted);
+                wasConflicted.set(currentRevInfo.conflicted);
+            } else if (docNumericID > 0) {
                 try {
                     oldWinningRevID = winningRevIDOfDoc(docNumericID, oldWinnerWasDeletion, wasConflicted);
 
@@ -3641,6 +4750,7 @@ public final class Database {
                 ContentValues args = new ContentValues();
                 args.put("current", 0);
                 database.update("revs", args, "sequence=?", new String[] {String.valueOf(parentSequence)});
+                updateWinningRevision(docNumericID, docId);
             } catch (SQLException e) {
                 Log.e(Database.TAG, "Error setting parent rev non-current", e);
                 throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
@@ -3780,7 +4890,8 @@ public final class Database {
                 }
                 attachment.setLength(newContents.length);
                 BlobKey outBlobKey = new BlobKey();
-                boolean storedBlob = getAttachments().storeBlob(newContents, outBlobKey);
+                BlobStore store = getAttachments();
+                boolean storedBlob = store.storeBlob(newContents, outBlobKey, store.shouldCompress(contentType));
                 attachment.setBlobKey(outBlobKey);
                 if (!storedBlob) {
                     throw new CouchbaseLiteException(Status.STATUS_ATTACHMENT_ERROR);
@@ -3973,6 +5084,7 @@ public final class Database {
                 }
             }
 
+            updateWinningRevision(docNumericID, docId);
             winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
 
             success = true;
@@ -4413,6 +5525,7 @@ public final class Database {
                         try {
                             String[] args = {Long.toString(docNumericID)};
                             database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
+                            updateWinningRevision(docNumericID, docID);
                         } catch (SQLException e) {
                             Log.e(Database.TAG, "Error deleting revisions", e);
                             return false;
@@ -4467,6 +5580,7 @@ public final class Database {
                                 String sql = String.format("DELETE FROM revs WHERE sequence in (%s)", seqsToPurgeList);
                                 try {
                                     database.execSQL(sql);
+                                    updateWinningRevision(docNumericID, docID);
                                 } catch (SQLException e) {
                                     Log.e(Database.TAG, "Error deleting revisions via: " + sql, e);
                                     return false;
@@ -4493,6 +5607,13 @@ public final class Database {
             }
         });
 
+        if (!result.isEmpty() && views != null) {
+            // Purging doesn't add a sequence, so cached query results wouldn't notice it
+            for (View view : views.values()) {
+                view.clearQueryCache();
+            }
+        }
+
         return result;
 
     }
@@ -4538,7 +5659,7 @@ public final class Database {
                 byte[] json = cursor.getBlob(1);
                 Map<String,Object> properties = null;
                 try {
-                    properties = Manager.getObjectMapper().readValue(json, Map.class);
+                    properties = Manager.getJsonCodec().decode(json, Map.class);
                     properties.put("_id", docID);
                     properties.put("_rev", gotRevID);
                     result = new RevisionInternal(docID, gotRevID, false, this);
@@ -470,6 +470,17 @@ public final class Document {
         }
      }
 
+    /**
+     * Sets the current revision from one that was already loaded, e.g. by a bulk fetch.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ void loadCurrentRevision(RevisionInternal rev) {
+        if (currentRevision == null || revIdGreaterThanCurrent(rev.getRevId())) {
+            currentRevision = new SavedRevision(this, rev);
+        }
+    }
+
     /**
      * @exclude
      */
@@ -0,0 +1,139 @@
+package com.couchbase.lite;
+
+import java.text.Collator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares parsed view keys in memory, in the order the index's JSON collations put them in,
+ * so that rows can be placed without a round trip to SQLite for every comparison.
+ *
+ * Values of different types are ordered by type: with the Unicode and ASCII collations
+ * null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects; with the raw collation
+ * numbers &lt; false &lt; null &lt; true &lt; objects &lt; arrays &lt; strings. Numbers compare by value,
+ * arrays element by element and objects key/value pair by pair, shorter first on a common
+ * prefix. Strings compare with a Unicode collator, or by code point for ASCII and raw.
+ */
+final class KeyCollator {
+
+    private static final ThreadLocal<Collator> unicodeCollators = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            Collator collator = Collator.getInstance(Locale.US);
+            collator.setStrength(Collator.TERTIARY);
+            return collator;
+        }
+    };
+
+    private KeyCollator() {
+    }
+
+    static int compare(View.TDViewCollation collation, Object key1, Object key2) {
+        boolean raw = (collation == View.TDViewCollation.TDViewCollationRaw);
+        int type1 = typeOrder(key1, raw);
+        int type2 = typeOrder(key2, raw);
+        if (type1 != type2) {
+            return type1 < type2 ? -1 : 1;
+        }
+        if (key1 instanceof Number) {
+            return compareNumbers((Number) key1, (Number) key2);
+        } else if (key1 instanceof List) {
+            return compareLists(collation, (List<?>) key1, (List<?>) key2);
+        } else if (key1 instanceof Map) {
+            return compareMaps(collation, (Map<?, ?>) key1, (Map<?, ?>) key2);
+        } else if (key1 == null || key1 instanceof Boolean) {
+            // the type order already tells false and true apart
+            return 0;
+        } else {
+            return compareStrings(collation, key1.toString(), key2.toString());
+        }
+    }
+
+    private static int typeOrder(Object key, boolean raw) {
+        if (key == null) {
+            return raw ? 2 : 0;
+        } else if (key instanceof Boolean) {
+            if (((Boolean) key).booleanValue()) {
+                return raw ? 3 : 2;
+            }
+            return 1;
+        } else if (key instanceof Number) {
+            return raw ? 0 : 3;
+        } else if (key instanceof List) {
+            return 5;
+        } else if (key instanceof Map) {
+            return raw ? 4 : 6;
+        } else {
+            return raw ? 6 : 4;
+        }
+    }
+
+    private static int compareNumbers(Number n1, Number n2) {
+        double d1 = n1.doubleValue();
+        double d2 = n2.doubleValue();
+        return d1 < d2 ? -1 : (d1 > d2 ? 1 : 0);
+    }
+
+    private static int compareLists(View.TDViewCollation collation, List<?> list1, List<?> list2) {
+        int count = Math.min(list1.size(), list2.size());
+        for (int i = 0; i < count; i++) {
+            int result = compare(collation, list1.get(i), list2.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return compareSizes(list1.size(), list2.size());
+    }
+
+    private static int compareMaps(View.TDViewCollation collation, Map<?, ?> map1, Map<?, ?> map2) {
+        Iterator<? extends Map.Entry<?, ?>> it1 = map1.entrySet().iterator();
+        Iterator<? extends Map.Entry<?, ?>> it2 = map2.entrySet().iterator();
+        while (it1.hasNext() && it2.hasNext()) {
+            Map.Entry<?, ?> entry1 = it1.next();
+            Map.Entry<?, ?> entry2 = it2.next();
+            int result = compareStrings(collation, String.valueOf(entry1.getKey()), String.valueOf(entry2.getKey()));
+            if (result == 0) {
+                result = compare(collation, entry1.getValue(), entry2.getValue());
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return compareSizes(map1.size(), map2.size());
+    }
+
+    private static int compareStrings(View.TDViewCollation collation, String s1, String s2) {
+        if (collation == View.TDViewCollation.TDViewCollationUnicode) {
+            int result = unicodeCollators.get().compare(s1, s2);
+            if (result != 0) {
+                return result < 0 ? -1 : 1;
+            }
+        }
+        return compareCodePoints(s1, s2);
+    }
+
+    /**
+     * Compares by Unicode code point, which is the order of the strings' UTF-8 bytes, and so
+     * also the order of SQLite's default BINARY collation (as used for docids).
+     */
+    static int compareCodePoints(String s1, String s2) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < s1.length() && i2 < s2.length()) {
+            int c1 = s1.codePointAt(i1);
+            int c2 = s2.codePointAt(i2);
+            if (c1 != c2) {
+                return c1 < c2 ? -1 : 1;
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return compareSizes(s1.length() - i1, s2.length() - i2);
+    }
+
+    private static int compareSizes(int size1, int size2) {
+        return size1 < size2 ? -1 : (size1 > size2 ? 1 : 0);
+    }
+}
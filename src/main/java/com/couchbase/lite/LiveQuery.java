@@ -2,12 +2,21 @@ package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -23,17 +32,69 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     private AtomicBoolean runningState; // true == running, false == stopped
 
     /**
-     * If a query is running and the user calls stop() on this query, the future
-     * will be used in order to cancel the query in progress.
+     * If set, a database change is applied to the previous rows by re-reading only the index
+     * rows emitted by the changed documents, instead of re-running the whole query.
+     * Only map-only queries without skip or limit are updated this way; others are re-run.
      */
-    protected Future queryFuture;
+    private boolean incremental;
+
+    /**
+     * An incremental update for more documents than this re-runs the query instead: the changed
+     * documents' rows are looked up with one SQL parameter per document, and SQLite allows at
+     * most 999 parameters in a statement.
+     */
+    private static final int MAX_INCREMENTAL_DOCUMENTS = 500;
+
+    /**
+     * The default minimum interval between updates, in milliseconds: none, so an update starts
+     * as soon as a change arrives (or the previous update finishes).
+     */
+    public static final long DEFAULT_UPDATE_INTERVAL = 0;
+
+    /**
+     * The default number of document changes that are coalesced into one incremental update.
+     */
+    public static final int DEFAULT_MAX_COALESCED_CHANGES = 500;
+
+    /**
+     * The minimum time, in milliseconds, between the starts of two updates. Database changes that
+     * arrive sooner are coalesced into the next update.
+     */
+    private long updateInterval = DEFAULT_UPDATE_INTERVAL;
+
+    /**
+     * When more document changes than this pile up before an incremental update runs, the
+     * query is re-run in full instead.
+     */
+    private int maxCoalescedChanges = DEFAULT_MAX_COALESCED_CHANGES;
+
+    /**
+     * Scheduling state, guarded by 'this': whether an update is scheduled or running, and what
+     * it has to do once it runs.
+     */
+    private boolean updateScheduled;
+    private boolean updateRunning;
+    private boolean fullUpdateNeeded;
+
+    /**
+     * Bumped by stop(). An update scheduled before then doesn't run, and one already running
+     * when it happens doesn't publish its result.
+     */
+    private int updateGeneration;
 
     /**
-     * If the update() method is called while a query is in progress, once it is
-     * finished it will be scheduled to re-run update().  This tracks the future
-     * related to that scheduled task.
+     * The generation of the last update that finished while it was still current; waitForRows()
+     * waits, on 'this', for it to catch up with updateGeneration.
      */
-    protected Future rerunUpdateFuture;
+    private int finishedGeneration = -1;
+    private List<DocumentChange> pendingChanges = new ArrayList<DocumentChange>();
+    private long lastUpdateTime;
+
+    /**
+     * The scheduled or running update. If the user calls stop() on this query, the future
+     * will be used in order to cancel the update in progress.
+     */
+    protected Future queryFuture;
 
     /**
      * Constructor
@@ -87,6 +148,54 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         }
     }
 
+    /**
+     * Is the LiveQuery updated incrementally from the changed documents, rather than by
+     * re-running the whole query on every database change?
+     */
+    @InterfaceAudience.Public
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Enables incremental updates: on a database change, only the index rows emitted by the
+     * changed documents are re-read and patched into the previous result. This only applies to
+     * map-only queries without skip or limit; other queries are always re-run.
+     */
+    @InterfaceAudience.Public
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * The minimum time, in milliseconds, between two updates. Database changes that arrive in
+     * between are coalesced into a single update. Defaults to DEFAULT_UPDATE_INTERVAL; setting
+     * it trades some latency for fewer updates when changes come in bursts.
+     */
+    @InterfaceAudience.Public
+    public long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    @InterfaceAudience.Public
+    public void setUpdateInterval(long updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    /**
+     * How many document changes may be coalesced into one incremental update; beyond that the
+     * query is re-run in full. Defaults to DEFAULT_MAX_COALESCED_CHANGES.
+     */
+    @InterfaceAudience.Public
+    public int getMaxCoalescedChanges() {
+        return maxCoalescedChanges;
+    }
+
+    @InterfaceAudience.Public
+    public void setMaxCoalescedChanges(int maxCoalescedChanges) {
+        this.maxCoalescedChanges = maxCoalescedChanges;
+    }
+
     /**
      * Returns the last error, if any, that occured while executing the Query, otherwise null.
      */
@@ -140,14 +249,20 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         // slight diversion from iOS version -- cancel the queryFuture
         // regardless of the willUpdate value, since there can be an update in flight
         // with willUpdate set to false.  was needed to make testLiveQueryStop() unit test pass.
-        if (queryFuture != null) {
-            boolean cancelled = queryFuture.cancel(true);
-            Log.v(Log.TAG_QUERY, "%s: cancelled queryFuture %s, returned: %s", this, queryFuture, cancelled);
-        }
-
-        if (rerunUpdateFuture != null) {
-            boolean cancelled = rerunUpdateFuture.cancel(true);
-            Log.d(Log.TAG_QUERY, "%s: cancelled rerunUpdateFuture %s, returned: %s", this, rerunUpdateFuture, cancelled);
+        synchronized (this) {
+            updateGeneration++;
+            if (queryFuture != null) {
+                boolean cancelled = queryFuture.cancel(true);
+                Log.v(Log.TAG_QUERY, "%s: cancelled queryFuture %s, returned: %s", this, queryFuture, cancelled);
+            }
+            // A running update clears this when it finishes; clearing it now would let start()
+            // schedule a second update alongside it. One that hasn't started never will.
+            if (!updateRunning) {
+                updateScheduled = false;
+            }
+            fullUpdateNeeded = false;
+            pendingChanges.clear();
+            notifyAll();
         }
 
     }
@@ -159,14 +274,14 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     public void waitForRows() throws CouchbaseLiteException {
         start();
 
-        while (true) {
-            try {
-                queryFuture.get();
-                break;
-            } catch (Exception e) {
-                if (e instanceof CancellationException) {
-                    continue;
-                } else {
+        // Wait for runUpdate() to signal, rather than on queryFuture: after a stop() and start()
+        // during an update, the future is the cancelled one until the running update finishes
+        // and schedules the next.
+        synchronized (this) {
+            while (runningState.get() && finishedGeneration != updateGeneration) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
                     lastError = e;
                     throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
                 }
@@ -216,6 +331,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         private LiveQuery source;
         private Throwable error;
         private QueryEnumerator queryEnumerator;
+        private List<QueryRow> addedRows = Collections.emptyList();
+        private List<QueryRow> removedRows = Collections.emptyList();
+        private List<QueryRow> changedRows = Collections.emptyList();
 
         ChangeEvent() {
         }
@@ -225,6 +343,14 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             this.queryEnumerator = queryEnumerator;
         }
 
+        ChangeEvent(LiveQuery source, QueryEnumerator queryEnumerator, List<QueryRow> addedRows,
+                    List<QueryRow> removedRows, List<QueryRow> changedRows) {
+            this(source, queryEnumerator);
+            this.addedRows = Collections.unmodifiableList(addedRows);
+            this.removedRows = Collections.unmodifiableList(removedRows);
+            this.changedRows = Collections.unmodifiableList(changedRows);
+        }
+
         ChangeEvent(Throwable error) {
             this.error = error;
         }
@@ -241,6 +367,28 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return queryEnumerator;
         }
 
+        /**
+         * Rows that are in the new result but weren't in the previous one.
+         */
+        public List<QueryRow> getAddedRows() {
+            return addedRows;
+        }
+
+        /**
+         * Rows of the previous result that are no longer in the new one.
+         */
+        public List<QueryRow> getRemovedRows() {
+            return removedRows;
+        }
+
+        /**
+         * Rows whose key was already in the previous result, for the same document, but whose
+         * value or document has changed. These are the new versions of the rows.
+         */
+        public List<QueryRow> getChangedRows() {
+            return changedRows;
+        }
+
     }
 
     /**
@@ -253,106 +401,333 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
 
     @InterfaceAudience.Private
     /* package */ void update() {
-        Log.v(Log.TAG_QUERY, "%s: update() called.", this);
+        requestUpdate(null);
+    }
+
+    /**
+     * Schedules an update, or folds the request into the one already scheduled.
+     * @param changes the changed documents, or null if the whole query has to be re-run.
+     */
+    private void requestUpdate(List<DocumentChange> changes) {
+        Log.v(Log.TAG_QUERY, "%s: requestUpdate() called.", this);
 
         if (getView() == null) {
             throw new IllegalStateException("Cannot start LiveQuery when view is null");
         }
 
         if (runningState.get() == false) {
-            Log.d(Log.TAG_QUERY, "%s: update() called, but running state == false.  Ignoring.", this);
+            Log.d(Log.TAG_QUERY, "%s: requestUpdate() called, but running state == false.  Ignoring.", this);
             return;
         }
 
-        if (queryFuture != null && !queryFuture.isCancelled() && !queryFuture.isDone()) {
-            // There is a already a query in flight, so leave it alone except to schedule something
-            // to run update() again once it finishes.
-            Log.d(Log.TAG_QUERY, "%s: already a query in flight, scheduling call to update() once it's done", LiveQuery.this);
-            if (rerunUpdateFuture != null && !rerunUpdateFuture.isCancelled() && !rerunUpdateFuture.isDone()) {
-                boolean cancelResult = rerunUpdateFuture.cancel(true);
-                Log.d(Log.TAG_QUERY, "%s: cancelled %s result: %s", LiveQuery.this, rerunUpdateFuture, cancelResult);
+        synchronized (this) {
+            if (changes == null || !incremental) {
+                fullUpdateNeeded = true;
+                pendingChanges.clear();
+            } else if (!fullUpdateNeeded) {
+                pendingChanges.addAll(changes);
+                if (pendingChanges.size() > maxCoalescedChanges) {
+                    fullUpdateNeeded = true;
+                    pendingChanges.clear();
+                }
             }
-            rerunUpdateFuture = rerunUpdateAfterQueryFinishes(queryFuture);
-            Log.d(Log.TAG_QUERY, "%s: created new rerunUpdateFuture: %s", LiveQuery.this, rerunUpdateFuture);
-            return;
+
+            if (updateScheduled) {
+                // The scheduled update hasn't started yet, or the running one will schedule
+                // another when it finishes, so this request is coalesced into that.
+                Log.v(Log.TAG_QUERY, "%s: update already scheduled, coalescing", this);
+                return;
+            }
+            updateScheduled = true;
+            scheduleUpdate();
         }
+    }
 
-        // No query in flight, so kick one off
-        queryFuture = runAsyncInternal(new QueryCompleteListener() {
+    /**
+     * Schedules the next update on the Manager's live query executor, no sooner than
+     * updateInterval after the previous one started. Must be called while synchronized on this.
+     */
+    private void scheduleUpdate() {
+        long delay = Math.max(0, lastUpdateTime + updateInterval - System.currentTimeMillis());
+        final int generation = updateGeneration;
+        queryFuture = getDatabase().getManager().getLiveQueryExecutor().schedule(new Runnable() {
             @Override
-            public void completed(QueryEnumerator rowsParam, Throwable error) {
-                if (error != null) {
-                    for (ChangeListener observer : observers) {
-                        observer.changed(new ChangeEvent(error));
-                    }
-                    lastError = error;
-                } else {
+            public void run() {
+                runUpdate(generation);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        Log.d(Log.TAG_QUERY, "%s: scheduled update in %d ms: %s", this, delay, queryFuture);
+    }
 
-                    if (runningState.get() == false) {
-                        Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
-                        return;
-                    }
+    /**
+     * Runs a scheduled update: applies the pending document changes, or re-runs the query.
+     */
+    private void runUpdate(int generation) {
+        boolean fullUpdate;
+        List<DocumentChange> changes;
+        synchronized (this) {
+            if (generation != updateGeneration) {
+                // scheduled before stop(), which has already reset the scheduling state
+                return;
+            }
+            updateRunning = true;
+            fullUpdate = fullUpdateNeeded;
+            changes = pendingChanges;
+            fullUpdateNeeded = false;
+            pendingChanges = new ArrayList<DocumentChange>();
+            lastUpdateTime = System.currentTimeMillis();
+        }
 
-                    if (rowsParam != null && !rowsParam.equals(rows)) {
-                        setRows(rowsParam);
-                        for (ChangeListener observer : observers) {
-                            Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
-                            observer.changed(new ChangeEvent(LiveQuery.this, rows));
-                        }
-                    }
-                    lastError = null;
+        try {
+            if (runningState.get() == false) {
+                Log.d(Log.TAG_QUERY, "%s: runUpdate() called, but running state == false.", this);
+                return;
+            }
+            if (!fullUpdate && canUpdateIncrementally()) {
+                if (!applyChanges(changes, generation)) {
+                    Log.v(Log.TAG_QUERY, "%s: too many changes to apply incrementally, re-running query", this);
+                    runQuery(generation);
                 }
+            } else {
+                runQuery(generation);
             }
-        });
-        Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
-
+        } catch (Throwable t) {
+            Log.e(Log.TAG_QUERY, "Exception caught in runUpdate", t);
+            for (ChangeListener observer : observers) {
+                observer.changed(new ChangeEvent(t));
+            }
+            lastError = t;
+        } finally {
+            synchronized (this) {
+                updateRunning = false;
+                updateScheduled = false;
+                if (generation == updateGeneration) {
+                    finishedGeneration = generation;
+                    notifyAll();
+                }
+                if (runningState.get() && (fullUpdateNeeded || !pendingChanges.isEmpty())) {
+                    updateScheduled = true;
+                    scheduleUpdate();
+                }
+            }
+        }
     }
 
     /**
-     * kick off async task that will wait until the query finishes, and after it
-     * does, it will run upate() again in case the current query in flight misses
-     * some of the recently added items.
+     * Re-runs the whole query and notifies the observers if the rows changed.
      */
-    private Future rerunUpdateAfterQueryFinishes(final Future queryFutureInProgress) {
-        return getDatabase().getManager().runAsync(new Runnable() {
-            @Override
-            public void run() {
+    private void runQuery(int generation) throws CouchbaseLiteException {
+        if (!getDatabase().isOpen()) {
+            throw new IllegalStateException("The database has been closed.");
+        }
 
-                if (runningState.get() == false) {
-                    Log.v(Log.TAG_QUERY, "%s: rerunUpdateAfterQueryFinishes.run() fired, but running state == false.  Ignoring.", this);
-                    return;
-                }
+        List<Long> outSequence = new ArrayList<Long>();
+        List<QueryRow> queryRows = getDatabase().queryViewNamed(getView().getName(), getQueryOptions(), outSequence);
+        QueryEnumerator rowsParam = new QueryEnumerator(getDatabase(), queryRows, outSequence.get(0));
 
-                if (queryFutureInProgress != null) {
-                    try {
-                        queryFutureInProgress.get();
-
-                        if (runningState.get() == false) {
-                            Log.v(Log.TAG_QUERY, "%s: queryFutureInProgress.get() done, but running state == false.", this);
-                            return;
-                        }
-
-                        update();
-                    } catch (Exception e) {
-                        if (e instanceof CancellationException) {
-                            // can safely ignore these
-                        } else {
-                            Log.e(Log.TAG_QUERY, "Got exception waiting for queryFutureInProgress to finish", e);
-                        }
-                    }
-                }
+        if (!isCurrent(generation)) {
+            Log.d(Log.TAG_QUERY, "%s: update() finished query, but the query was stopped.", this);
+            return;
+        }
+
+        if (!rowsParam.equals(rows)) {
+            List<QueryRow> oldRows = (rows != null) ? rows.getRowList() : new ArrayList<QueryRow>();
+            List<QueryRow> added = new ArrayList<QueryRow>();
+            List<QueryRow> removed = new ArrayList<QueryRow>();
+            List<QueryRow> changed = new ArrayList<QueryRow>();
+            diffRows(oldRows, rowsParam.getRowList(), added, removed, changed);
+            setRows(rowsParam);
+            for (ChangeListener observer : observers) {
+                Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
+                observer.changed(new ChangeEvent(LiveQuery.this, rows, added, removed, changed));
             }
-        });
+        }
+        lastError = null;
     }
 
-
     /**
      * @exclude
      */
     @Override
     @InterfaceAudience.Private
     public void changed(Database.ChangeEvent event) {
-        update();
+        requestUpdate(incremental ? event.getChanges() : null);
+    }
+
+    /**
+     * Is the query still running, and not stopped since the update of the given generation
+     * was scheduled?
+     */
+    private synchronized boolean isCurrent(int generation) {
+        return runningState.get() && generation == updateGeneration;
+    }
+
+    /**
+     * Can the current rows be patched from a list of changed documents?
+     */
+    private boolean canUpdateIncrementally() {
+        return rows != null
+                && lastError == null
+                && getView() != null
+                && isMapOnly()
+                && getGroupLevel() == 0
+                && getKeys() == null
+                && getSkip() == 0
+                && getLimit() == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Re-reads the index rows emitted by the changed documents and patches them into the
+     * current rows, notifying the observers if anything changed.
+     * @return false if the changes are too large to apply incrementally.
+     */
+    private boolean applyChanges(List<DocumentChange> changes, int generation) throws CouchbaseLiteException {
+        View view = getView();
+        QueryEnumerator currentRows = rows;
+        List<QueryRow> oldRows = currentRows.getRowList();
+
+        Set<String> docIds = new HashSet<String>();
+        for (DocumentChange change : changes) {
+            docIds.add(change.getDocumentId());
+        }
+        if (shouldPrefetch()) {
+            // Rows whose prefetched document is a linked one have to be re-read as well.
+            for (QueryRow row : oldRows) {
+                if (docIds.contains(row.getDocumentId())) {
+                    docIds.add(row.getSourceDocumentId());
+                }
+            }
+        }
+
+        if (docIds.size() > MAX_INCREMENTAL_DOCUMENTS) {
+            return false;
+        }
+
+        if (getIndexUpdateMode() != IndexUpdateMode.NEVER) {
+            getDatabase().updateViewIndex(view);
+        }
+        long lastSequence = view.getLastSequenceIndexed();
+        List<QueryRow> newDocRows = view.queryRowsForDocuments(getQueryOptions(), docIds);
+
+        List<QueryRow> oldDocRows = new ArrayList<QueryRow>();
+        for (QueryRow row : oldRows) {
+            if (docIds.contains(row.getSourceDocumentId())) {
+                oldDocRows.add(row);
+            }
+        }
+
+        if (!isCurrent(generation)) {
+            return true;
+        }
+        if (oldDocRows.isEmpty() && newDocRows.isEmpty()) {
+            // None of the changed documents is, or was, in the query's key range.
+            return true;
+        }
+
+        List<QueryRow> added = new ArrayList<QueryRow>();
+        List<QueryRow> removed = new ArrayList<QueryRow>();
+        List<QueryRow> changed = new ArrayList<QueryRow>();
+        diffRows(oldDocRows, newDocRows, added, removed, changed);
+
+        // The changed documents' rows are merged back in by index order rather than replaced
+        // in place, since re-indexing a document gives its rows new rowids.
+        Map<QueryRow, Boolean> oldDocRowSet = new IdentityHashMap<QueryRow, Boolean>();
+        for (QueryRow row : oldDocRows) {
+            oldDocRowSet.put(row, Boolean.TRUE);
+        }
+        List<QueryRow> kept = new ArrayList<QueryRow>(oldRows.size());
+        for (QueryRow row : oldRows) {
+            if (!oldDocRowSet.containsKey(row)) {
+                kept.add(row);
+            }
+        }
+        List<QueryRow> merged = new ArrayList<QueryRow>(newDocRows);
+        Comparator<QueryRow> order = indexOrder(view);
+        Collections.sort(merged, order);
+        List<QueryRow> patched = new ArrayList<QueryRow>(kept.size() + merged.size());
+        int i = 0;
+        int j = 0;
+        while (i < kept.size() || j < merged.size()) {
+            if (j == merged.size() || (i < kept.size() && order.compare(kept.get(i), merged.get(j)) < 0)) {
+                patched.add(kept.get(i++));
+            } else {
+                patched.add(merged.get(j++));
+            }
+        }
+
+        setRows(new QueryEnumerator(getDatabase(), patched, lastSequence));
+        if (!added.isEmpty() || !removed.isEmpty() || !changed.isEmpty()) {
+            for (ChangeListener observer : observers) {
+                Log.d(Log.TAG_QUERY, "%s: applyChanges() calling back observer with rows", LiveQuery.this);
+                observer.changed(new ChangeEvent(LiveQuery.this, rows, added, removed, changed));
+            }
+        }
+        lastError = null;
+        return true;
+    }
+
+    /**
+     * Orders rows as the query does: by key in the view's collation, then by docid, then by
+     * index rowid, all reversed if the query is descending. Compares in memory, without
+     * querying the database.
+     */
+    private Comparator<QueryRow> indexOrder(final View view) {
+        final boolean descending = isDescending();
+        return new Comparator<QueryRow>() {
+            @Override
+            public int compare(QueryRow row1, QueryRow row2) {
+                int result = view.compareKeys(row1.getKey(), row2.getKey());
+                if (result == 0) {
+                    result = KeyCollator.compareCodePoints(row1.getSourceDocumentId(), row2.getSourceDocumentId());
+                }
+                if (result == 0) {
+                    long rowId1 = row1.getIndexRowId();
+                    long rowId2 = row2.getIndexRowId();
+                    result = rowId1 < rowId2 ? -1 : (rowId1 > rowId2 ? 1 : 0);
+                }
+                return descending ? -result : result;
+            }
+        };
+    }
+
+    /**
+     * Computes the row-level differences between two results. Rows are matched up by source
+     * document and key.
+     */
+    private static void diffRows(List<QueryRow> oldRows, List<QueryRow> newRows,
+                                                    List<QueryRow> outAdded, List<QueryRow> outRemoved,
+                                                    List<QueryRow> outChanged) {
+        Map<String, List<QueryRow>> oldRowsByDoc = new HashMap<String, List<QueryRow>>();
+        for (QueryRow row : oldRows) {
+            List<QueryRow> docRows = oldRowsByDoc.get(row.getSourceDocumentId());
+            if (docRows == null) {
+                docRows = new ArrayList<QueryRow>();
+                oldRowsByDoc.put(row.getSourceDocumentId(), docRows);
+            }
+            docRows.add(row);
+        }
+
+        for (QueryRow newRow : newRows) {
+            QueryRow oldRow = null;
+            List<QueryRow> docRows = oldRowsByDoc.get(newRow.getSourceDocumentId());
+            if (docRows != null) {
+                for (int i = 0; i < docRows.size(); i++) {
+                    if (Utils.isEqual(docRows.get(i).getKey(), newRow.getKey())) {
+                        oldRow = docRows.remove(i);
+                        break;
+                    }
+                }
+            }
+            if (oldRow == null) {
+                outAdded.add(newRow);
+            } else if (!newRow.equals(oldRow)) {
+                outChanged.add(newRow);
+            }
+        }
+
+        for (List<QueryRow> docRows : oldRowsByDoc.values()) {
+            outRemoved.addAll(docRows);
+        }
     }
 
     @InterfaceAudience.Private
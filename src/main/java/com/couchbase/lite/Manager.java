@@ -7,6 +7,8 @@ import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
+import com.couchbase.lite.support.JacksonJsonCodec;
+import com.couchbase.lite.support.JsonCodec;
 import com.couchbase.lite.support.Version;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
@@ -69,11 +71,13 @@ public final class Manager {
     public static final String VERSION = Version.VERSION;
 
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static volatile JsonCodec jsonCodec = new JacksonJsonCodec(mapper);
     private ManagerOptions options;
     private File directoryFile;
     private Map<String, Database> databases;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private ScheduledExecutorService liveQueryExecutor;
     private HttpClientFactory defaultHttpClientFactory;
     private Context context;
 
@@ -85,6 +89,27 @@ public final class Manager {
         return mapper;
     }
 
+    /**
+     * The codec the library reads and writes JSON with.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public static JsonCodec getJsonCodec() {
+        return jsonCodec;
+    }
+
+    /**
+     * Replaces the codec used to read and write JSON. It must produce the same bytes as the
+     * default one, and should be set before any database is opened.
+     */
+    @InterfaceAudience.Public
+    public static void setJsonCodec(JsonCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        jsonCodec = codec;
+    }
+
     /**
      * Constructor
      * @throws UnsupportedOperationException - not currently supported
@@ -142,6 +167,16 @@ public final class Manager {
             }
         });
 
+        // live queries are refreshed on their own pool, so that they can't hold up replications
+        // and the pool size caps how many refreshes run at once
+        liveQueryExecutor = Executors.newScheduledThreadPool(this.options.getMaxConcurrentLiveQueryUpdates(), new ThreadFactory() {
+            private int counter = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "CBLLiveQueryExecutor-" + (++counter));
+            }
+        });
+
     }
 
     /**
@@ -219,6 +254,7 @@ public final class Manager {
             database.close();
         }
         databases.clear();
+        liveQueryExecutor.shutdownNow();
         context.getNetworkReachabilityManager().stopListening();
         Log.i(Database.TAG, "Closed " + this);
     }
@@ -290,6 +326,12 @@ public final class Manager {
             }
 
             database.open();
+            // The attachment streams were copied in flat; if the store was already open it
+            // won't have migrated them into its shard directories yet.
+            BlobStore attachments = database.getAttachments();
+            if (attachments != null) {
+                attachments.migrateFlatLayout();
+            }
             database.replaceUUIDs();
         }
         catch (FileNotFoundException e) {
@@ -403,6 +445,23 @@ public final class Manager {
         return workExecutor.submit(runnable);
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ManagerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * The executor that LiveQuery refreshes run on.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    ScheduledExecutorService getLiveQueryExecutor() {
+        return liveQueryExecutor;
+    }
+
     /**
      * @exclude
      */
@@ -10,6 +10,102 @@ public class ManagerOptions {
      */
     private boolean readOnly;
 
+    /**
+     * The default for maxConcurrentLiveQueryUpdates.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_LIVE_QUERY_UPDATES = 2;
+
+    /**
+     * The maximum number of LiveQuery refreshes that may run at the same time, across all
+     * databases of the Manager. Live queries are refreshed on a dedicated pool of this many threads.
+     */
+    private int maxConcurrentLiveQueryUpdates = DEFAULT_MAX_CONCURRENT_LIVE_QUERY_UPDATES;
+
+    /**
+     * The default for maxConcurrentIndexUpdates.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_INDEX_UPDATES = 2;
+
+    /**
+     * The maximum number of views of a database whose indexes may be updated in the background
+     * at the same time. Each database keeps its own pool of this many threads for it.
+     */
+    private int maxConcurrentIndexUpdates = DEFAULT_MAX_CONCURRENT_INDEX_UPDATES;
+
+    /**
+     * What happens to a continuous _changes feed client that falls too far behind.
+     */
+    public enum ChangeFeedOverflowPolicy {
+        /**
+         * Skip the oldest changes the client hasn't been sent yet. The client never learns
+         * about them, so only use this for feeds that are advisory.
+         */
+        DROP,
+        /**
+         * End the client's feed; it can reconnect with the last sequence it received.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The default for changeFeedBufferSize.
+     */
+    public static final int DEFAULT_CHANGE_FEED_BUFFER_SIZE = 1024;
+
+    /**
+     * The default for maxChangeFeedBacklog.
+     */
+    public static final int DEFAULT_MAX_CHANGE_FEED_BACKLOG = 512;
+
+    /**
+     * The number of recent changes of a database kept, already serialized, for the clients of
+     * its continuous and longpoll _changes feeds.
+     */
+    private int changeFeedBufferSize = DEFAULT_CHANGE_FEED_BUFFER_SIZE;
+
+    /**
+     * The number of changes a _changes feed client may fall behind by before the
+     * changeFeedOverflowPolicy is applied. Can't be more than changeFeedBufferSize.
+     */
+    private int maxChangeFeedBacklog = DEFAULT_MAX_CHANGE_FEED_BACKLOG;
+
+    private ChangeFeedOverflowPolicy changeFeedOverflowPolicy = ChangeFeedOverflowPolicy.DISCONNECT;
+
+    /**
+     * The default for changesFeedPageSize.
+     */
+    public static final int DEFAULT_CHANGES_FEED_PAGE_SIZE = 1000;
+
+    /**
+     * The default for maxPendingDownloads.
+     */
+    public static final int DEFAULT_MAX_PENDING_DOWNLOADS = 2000;
+
+    /**
+     * The default for maxPendingInserts.
+     */
+    public static final int DEFAULT_MAX_PENDING_INSERTS = 1000;
+
+    /**
+     * The number of changes a pull replication asks for per request while catching up with
+     * the remote _changes feed, rather than reading the whole feed in one response. 0 reads
+     * it in one response, which leaves nothing to pause between.
+     */
+    private int changesFeedPageSize = DEFAULT_CHANGES_FEED_PAGE_SIZE;
+
+    /**
+     * The number of revisions a pull replication may have waiting to be downloaded before it
+     * stops reading the remote _changes feed until some of them have been. 0 for no limit.
+     */
+    private int maxPendingDownloads = DEFAULT_MAX_PENDING_DOWNLOADS;
+
+    /**
+     * The number of downloaded revisions a pull replication may have waiting to be saved
+     * before it stops reading the remote _changes feed until some of them have been.
+     * 0 for no limit.
+     */
+    private int maxPendingInserts = DEFAULT_MAX_PENDING_INSERTS;
+
     public ManagerOptions() {
     }
 
@@ -21,4 +117,92 @@ public class ManagerOptions {
         this.readOnly = readOnly;
     }
 
+    public int getMaxConcurrentLiveQueryUpdates() {
+        return maxConcurrentLiveQueryUpdates;
+    }
+
+    public void setMaxConcurrentLiveQueryUpdates(int maxConcurrentLiveQueryUpdates) {
+        if (maxConcurrentLiveQueryUpdates < 1) {
+            throw new IllegalArgumentException("maxConcurrentLiveQueryUpdates must be at least 1");
+        }
+        this.maxConcurrentLiveQueryUpdates = maxConcurrentLiveQueryUpdates;
+    }
+
+    public int getMaxConcurrentIndexUpdates() {
+        return maxConcurrentIndexUpdates;
+    }
+
+    public void setMaxConcurrentIndexUpdates(int maxConcurrentIndexUpdates) {
+        if (maxConcurrentIndexUpdates < 1) {
+            throw new IllegalArgumentException("maxConcurrentIndexUpdates must be at least 1");
+        }
+        this.maxConcurrentIndexUpdates = maxConcurrentIndexUpdates;
+    }
+
+    public int getChangeFeedBufferSize() {
+        return changeFeedBufferSize;
+    }
+
+    public void setChangeFeedBufferSize(int changeFeedBufferSize) {
+        if (changeFeedBufferSize < 1) {
+            throw new IllegalArgumentException("changeFeedBufferSize must be at least 1");
+        }
+        this.changeFeedBufferSize = changeFeedBufferSize;
+    }
+
+    public int getMaxChangeFeedBacklog() {
+        return maxChangeFeedBacklog;
+    }
+
+    public void setMaxChangeFeedBacklog(int maxChangeFeedBacklog) {
+        if (maxChangeFeedBacklog < 1) {
+            throw new IllegalArgumentException("maxChangeFeedBacklog must be at least 1");
+        }
+        this.maxChangeFeedBacklog = maxChangeFeedBacklog;
+    }
+
+    public ChangeFeedOverflowPolicy getChangeFeedOverflowPolicy() {
+        return changeFeedOverflowPolicy;
+    }
+
+    public void setChangeFeedOverflowPolicy(ChangeFeedOverflowPolicy changeFeedOverflowPolicy) {
+        if (changeFeedOverflowPolicy == null) {
+            throw new IllegalArgumentException("changeFeedOverflowPolicy must not be null");
+        }
+        this.changeFeedOverflowPolicy = changeFeedOverflowPolicy;
+    }
+
+    public int getChangesFeedPageSize() {
+        return changesFeedPageSize;
+    }
+
+    public void setChangesFeedPageSize(int changesFeedPageSize) {
+        if (changesFeedPageSize < 0) {
+            throw new IllegalArgumentException("changesFeedPageSize must not be negative");
+        }
+        this.changesFeedPageSize = changesFeedPageSize;
+    }
+
+    public int getMaxPendingDownloads() {
+        return maxPendingDownloads;
+    }
+
+    public void setMaxPendingDownloads(int maxPendingDownloads) {
+        if (maxPendingDownloads < 0) {
+            throw new IllegalArgumentException("maxPendingDownloads must not be negative");
+        }
+        this.maxPendingDownloads = maxPendingDownloads;
+    }
+
+    public int getMaxPendingInserts() {
+        return maxPendingInserts;
+    }
+
+    public void setMaxPendingInserts(int maxPendingInserts) {
+        if (maxPendingInserts < 0) {
+            throw new IllegalArgumentException("maxPendingInserts must not be negative");
+        }
+        this.maxPendingInserts = maxPendingInserts;
+    }
+
 }
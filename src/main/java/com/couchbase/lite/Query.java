@@ -1,9 +1,11 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.Base64;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Future;
 
@@ -130,7 +132,7 @@ public class Query {
     private boolean includeDeleted;
 
     /**
-     * If non-nil, the query will fetch only the rows with the given keys.
+     * If non-nil, the query will fetch only the rows with the given keys, in the order of the keys.
      */
     private List<Object> keys;
 
@@ -156,7 +158,21 @@ public class Query {
     */
     private int prefixMatchLevel;
 
+    /**
+     * If set to YES, run() returns a QueryEnumerator that reads rows from the database as they
+     * are iterated, and only parses keys, values and documents when they are accessed, instead of
+     * loading the whole result into memory first. Such an enumerator can only be iterated once,
+     * doesn't know its row count, and should be closed if not iterated to the end.
+     * Has no effect on LiveQuery or runAsync().
+     */
+    private boolean streaming;
 
+    /**
+     * If non-nil, the query resumes right after the last row of a previous page, as returned
+     * by QueryEnumerator.getContinuationToken(). The index is seeked to that position instead
+     * of skipping over the preceding rows, so deep pages cost the same as the first one.
+     */
+    private String continuationToken;
 
     private long lastSequence;
 
@@ -206,6 +222,8 @@ public class Query {
         indexUpdateMode = query.indexUpdateMode;
         allDocsMode = query.allDocsMode;
         inclusiveEnd = query.inclusiveEnd;
+        streaming = query.streaming;
+        continuationToken = query.continuationToken;
     }
 
     /**
@@ -357,6 +375,36 @@ public class Query {
         this.prefetch = prefetch;
     }
 
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Sets the token returned by a previous page's QueryEnumerator.getContinuationToken(), to
+     * fetch the next page. The query's other options (keys range, descending, limit, ...) should
+     * be the same as for the previous page; skip is ignored while a token is set.
+     * Pass null to start again from the first page.
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    @InterfaceAudience.Public
+    public void setContinuationToken(String continuationToken) {
+        if (continuationToken != null) {
+            ContinuationToken.decode(continuationToken);  // validates it
+        }
+        this.continuationToken = continuationToken;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    @InterfaceAudience.Public
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     @InterfaceAudience.Public
     public boolean shouldIncludeDeleted() {
         return allDocsMode == AllDocsMode.INCLUDE_DELETED;
@@ -373,11 +421,19 @@ public class Query {
      */
     @InterfaceAudience.Public
     public QueryEnumerator run() throws CouchbaseLiteException {
-        List<Long> outSequence = new ArrayList<Long>();
         String viewName = (view != null) ? view.getName() : null;
+        if (streaming) {
+            QueryEnumerator enumerator = database.streamViewNamed(viewName, getQueryOptions());
+            lastSequence = enumerator.getSequenceNumber();
+            enumerator.setPagination(getPageLimit(), descending, view, getResumePosition());
+            return enumerator;
+        }
+        List<Long> outSequence = new ArrayList<Long>();
         List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence);
         lastSequence = outSequence.get(0);
-        return new QueryEnumerator(database, rows, lastSequence);
+        QueryEnumerator enumerator = new QueryEnumerator(database, rows, lastSequence);
+        enumerator.setPagination(getPageLimit(), descending, view, getResumePosition());
+        return enumerator;
     }
 
     /**
@@ -451,7 +507,7 @@ public class Query {
     }
 
     @InterfaceAudience.Private
-    private QueryOptions getQueryOptions() {
+    /* package */ QueryOptions getQueryOptions() {
         QueryOptions queryOptions = new QueryOptions();
         queryOptions.setStartKey(getStartKey());
         queryOptions.setEndKey(getEndKey());
@@ -471,9 +527,103 @@ public class Query {
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
         queryOptions.setEndKeyDocId(getEndKeyDocId());
+        ContinuationToken position = getResumePosition();
+        if (position != null) {
+            // Resume at the last row's key and docid, skipping the rows there already returned
+            queryOptions.setStartKey(position.key);
+            if (view != null) {
+                queryOptions.setStartKeyDocId(position.docId);
+            }
+            queryOptions.setSkip(position.skip);
+        }
         return queryOptions;
     }
 
+    /**
+     * The position the query resumes at, decoded from its continuation token, or null.
+     */
+    private ContinuationToken getResumePosition() {
+        if (continuationToken == null) {
+            return null;
+        }
+        ContinuationToken position = ContinuationToken.decode(continuationToken);
+        if (position.descending != isDescending()) {
+            throw new IllegalStateException("The continuation token was created by a query with the opposite sort order");
+        }
+        return position;
+    }
+
+    /**
+     * The page size for continuation tokens, or 0 if this query can't be paginated that way
+     * (no limit, a reduced/grouped query whose rows don't correspond to index rows, a
+     * multi-key query, whose rows are returned in the order of the keys rather than the index,
+     * or an _all_docs query for conflicts, whose limit counts revisions rather than rows).
+     */
+    private int getPageLimit() {
+        boolean reduce = !isMapOnly() || getGroupLevel() > 0;
+        boolean conflicts = (allDocsMode == AllDocsMode.SHOW_CONFLICTS || allDocsMode == AllDocsMode.ONLY_CONFLICTS);
+        if (limit == Integer.MAX_VALUE || getKeys() != null || (view != null ? reduce : conflicts)) {
+            return 0;
+        }
+        return limit;
+    }
+
+    /**
+     * The position a continuation token resumes at: the key and docid of the last row returned,
+     * and how many rows at that (key, docid) were returned, since a document may emit the same
+     * key more than once. The query resumes through the startKey/startKeyDocId filters, which
+     * rely on rows with equal keys being ordered by docid.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ static final class ContinuationToken {
+        final Object key;
+        final String docId;
+        final int skip;
+        final boolean descending;
+
+        ContinuationToken(Object key, String docId, int skip, boolean descending) {
+            this.key = key;
+            this.docId = docId;
+            this.skip = skip;
+            this.descending = descending;
+        }
+
+        /**
+         * Encodes the position as an opaque, URL-safe token, or returns null if it can't be.
+         */
+        String encode() {
+            List<Object> position = Arrays.asList(key, docId, skip, descending);
+            try {
+                byte[] json = Manager.getJsonCodec().encode(position);
+                return Base64.encodeBytes(json, Base64.URL_SAFE);
+            } catch (Exception e) {
+                Log.w(Log.TAG_QUERY, "Unable to encode continuation token at key %s, doc %s", e, key, docId);
+                return null;
+            }
+        }
+
+        /**
+         * @throws IllegalArgumentException if the token is malformed.
+         */
+        static ContinuationToken decode(String token) {
+            try {
+                byte[] json = Base64.decode(token, Base64.URL_SAFE);
+                List<?> position = Manager.getJsonCodec().decode(json, List.class);
+                if (position == null || position.size() != 4 || !(position.get(1) instanceof String)
+                        || !(position.get(2) instanceof Number) || !(position.get(3) instanceof Boolean)) {
+                    throw new IllegalArgumentException("Malformed continuation token: " + token);
+                }
+                return new ContinuationToken(position.get(0), (String) position.get(1),
+                        ((Number) position.get(2)).intValue(), ((Boolean) position.get(3)).booleanValue());
+            } catch (IllegalArgumentException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Malformed continuation token: " + token, e);
+            }
+        }
+    }
+
     @Override
     @InterfaceAudience.Private
     protected void finalize() throws Throwable {
@@ -1,20 +1,51 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
 
+import java.io.Closeable;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * An enumerator for Couchbase Lite View Query results.
+ *
+ * A streaming enumerator (see Query.setStreaming()) reads its rows from the database on demand
+ * instead of holding them all in memory. It can only be iterated once, and should be closed
+ * when the caller stops iterating before the end so the underlying cursor is released.
  */
-public class QueryEnumerator implements Iterator<QueryRow> {
+public class QueryEnumerator implements Iterator<QueryRow>, Closeable {
+
+    /**
+     * Reads result rows from a query cursor, for a streaming QueryEnumerator.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ interface RowReader {
+        /**
+         * Returns the next row, advancing the cursor past every cursor row it consumed,
+         * or null if there are no more rows.
+         */
+        QueryRow readRow(Cursor cursor);
+    }
 
     private Database database;
     private List<QueryRow> rows;
     private int nextRow;
     private long sequenceNumber;
 
+    private Cursor cursor;
+    private RowReader rowReader;
+    private QueryRow pendingRow;
+
+    private int pageLimit;
+    private boolean descending;
+    private View view;  // null for _all_docs
+    private Query.ContinuationToken resumedFrom;
+    private QueryRow lastRowRead;
+    private int rowsRead;
+    private int lastPositionRowsRead;  // rows read at lastRowRead's (key, docid)
+
     /**
      * Constructor
      */
@@ -30,14 +61,32 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         }
     }
 
+    /**
+     * Constructor for a streaming enumerator, which takes ownership of the cursor.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryEnumerator(Database database, Cursor cursor, RowReader rowReader, long sequenceNumber) {
+        this.database = database;
+        this.cursor = cursor;
+        this.rowReader = rowReader;
+        this.sequenceNumber = sequenceNumber;
+    }
+
     /**
      * Constructor
      */
     @InterfaceAudience.Private
     /* package */ QueryEnumerator(QueryEnumerator other) {
+        if (other.isStreaming()) {
+            throw new UnsupportedOperationException("A streaming QueryEnumerator cannot be copied");
+        }
         this.database = other.database;
         this.rows = other.rows;
         this.sequenceNumber = other.sequenceNumber;
+        this.pageLimit = other.pageLimit;
+        this.descending = other.descending;
+        this.view = other.view;
+        this.resumedFrom = other.resumedFrom;
     }
 
     /**
@@ -45,6 +94,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public int getCount() {
+        assertNotStreaming("getCount()");
         return rows.size();
     }
 
@@ -63,6 +113,21 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public QueryRow next() {
+        if (isStreaming()) {
+            if (!hasNext()) {
+                return null;
+            }
+            QueryRow row = pendingRow;
+            pendingRow = null;
+            if (lastRowRead != null && isSamePosition(lastRowRead, row)) {
+                lastPositionRowsRead++;
+            } else {
+                lastPositionRowsRead = 1;
+            }
+            lastRowRead = row;
+            rowsRead++;
+            return row;
+        }
         if (nextRow >= rows.size()) {
             return null;
         }
@@ -74,9 +139,19 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public QueryRow getRow(int index) {
+        assertNotStreaming("getRow()");
         return rows.get(index);
     }
 
+    /**
+     * The rows of a non-streaming enumerator, in order.
+     */
+    @InterfaceAudience.Private
+    /* package */ List<QueryRow> getRowList() {
+        assertNotStreaming("getRowList()");
+        return rows;
+    }
+
     /**
      * Compare this to given QueryEnumerator to check if equals.
      * This compares the underlying rows of the two QueryEnumerator instances.
@@ -93,6 +168,8 @@ public class QueryEnumerator implements Iterator<QueryRow> {
 
         QueryEnumerator that = (QueryEnumerator) o;
 
+        if (isStreaming() || that.isStreaming()) return false;
+
         if (rows != null ? !rows.equals(that.rows) : that.rows != null) return false;
 
         return true;
@@ -104,6 +181,17 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public boolean hasNext() {
+        if (isStreaming()) {
+            if (pendingRow == null && cursor != null) {
+                pendingRow = rowReader.readRow(cursor);
+                if (pendingRow == null) {
+                    close();
+                } else {
+                    pendingRow.setDatabase(database);
+                }
+            }
+            return pendingRow != null;
+        }
         return nextRow < rows.size();
     }
 
@@ -129,8 +217,94 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public void reset() {
+        assertNotStreaming("reset()");
         nextRow = 0;
     }
 
+    /**
+     * Returns a token that fetches the next page of results when passed to
+     * Query.setContinuationToken(), or null if this was the last page. Only available if the
+     * query had a limit and wasn't reduced or grouped. For a streaming enumerator the token is
+     * only known once all rows have been read.
+     */
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        if (pageLimit <= 0) {
+            return null;
+        }
+        QueryRow lastRow;
+        int skip;
+        if (isStreaming()) {
+            if (hasNext() || rowsRead < pageLimit) {
+                return null;
+            }
+            lastRow = lastRowRead;
+            skip = lastPositionRowsRead;
+        } else {
+            if (rows.size() < pageLimit) {
+                return null;
+            }
+            lastRow = rows.get(rows.size() - 1);
+            skip = 1;
+            for (int i = rows.size() - 2; i >= 0 && isSamePosition(rows.get(i), lastRow); i--) {
+                skip++;
+            }
+        }
+        if (skip >= pageLimit && resumedFrom != null && lastRow.getSourceDocumentId().equals(resumedFrom.docId)
+                && (view == null || view.compareKeys(lastRow.getKey(), resumedFrom.key) == 0)) {
+            // The whole page was at the position this page resumed from
+            skip += resumedFrom.skip;
+        }
+        return new Query.ContinuationToken(lastRow.getKey(), lastRow.getSourceDocumentId(), skip, descending).encode();
+    }
+
+    @InterfaceAudience.Private
+    /* package */ void setPagination(int pageLimit, boolean descending, View view, Query.ContinuationToken resumedFrom) {
+        this.pageLimit = pageLimit;
+        this.descending = descending;
+        this.view = view;
+        this.resumedFrom = resumedFrom;
+    }
+
+    /**
+     * Whether two rows are at the same (key, docid) position, which a document emitting the
+     * same key more than once produces.
+     */
+    private boolean isSamePosition(QueryRow row1, QueryRow row2) {
+        String docId = row1.getSourceDocumentId();
+        if (docId == null || !docId.equals(row2.getSourceDocumentId())) {
+            return false;
+        }
+        return view == null || view.compareKeys(row1.getKey(), row2.getKey()) == 0;
+    }
+
+    /**
+     * Is this enumerator reading its rows from the database on demand?
+     */
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return rowReader != null;
+    }
+
+    /**
+     * Releases the database cursor of a streaming enumerator. This happens automatically once
+     * the last row has been read; afterwards hasNext() returns false. Has no effect on a
+     * non-streaming enumerator.
+     */
+    @Override
+    @InterfaceAudience.Public
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private void assertNotStreaming(String method) {
+        if (isStreaming()) {
+            throw new UnsupportedOperationException(method + " is not supported by a streaming QueryEnumerator");
+        }
+    }
+
 
 }
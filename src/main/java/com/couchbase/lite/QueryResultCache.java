@@ -0,0 +1,218 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.JsonCodec;
+import com.couchbase.lite.support.JsonDocument;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of a view's query results, keyed by the normalized query options and the sequence
+ * the index was at when the query ran. Once the index advances the old entries are never
+ * hit again, and are dropped on the next insertion. Results that include documents are also
+ * tied to the database's last sequence, since included (or linked) documents can change
+ * without the index being updated. Entries are evicted least-recently-used
+ * first when their estimated memory footprint exceeds the cache's size.
+ *
+ * Rows are cached as JSON, and every hit builds new QueryRows from it, so callers never
+ * share (and can't corrupt) each other's keys, values or document properties.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class QueryResultCache {
+
+    /**
+     * Rough per-object overheads, in bytes, used to estimate the memory held by cached rows.
+     */
+    private static final int ROW_OVERHEAD = 64;
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * A row frozen as JSON.
+     */
+    private static class CachedRow {
+        final String docId;
+        final long sequence;
+        final long indexRowId;
+        final byte[] key;
+        final byte[] value;
+        final byte[] documentProperties;
+        final Database database;
+
+        CachedRow(QueryRow row, JsonCodec codec) throws IOException {
+            this.docId = row.getSourceDocumentId();
+            this.sequence = row.getSequenceNumber();
+            this.indexRowId = row.getIndexRowId();
+            this.key = codec.encode(row.getKey());
+            this.value = codec.encode(row.getValue());
+            Map<String, Object> properties = row.getDocumentProperties();
+            this.documentProperties = (properties != null) ? codec.encode(properties) : null;
+            this.database = row.getDatabase();
+        }
+
+        QueryRow toRow(JsonCodec codec) throws IOException {
+            Map<String, Object> properties = null;
+            if (documentProperties != null) {
+                properties = codec.decode(documentProperties, Map.class);
+            }
+            QueryRow row = new QueryRow(docId, sequence, new JsonDocument(key), new JsonDocument(value));
+            row.setDocumentProperties(properties);
+            row.setIndexRowId(indexRowId);
+            row.setDatabase(database);
+            return row;
+        }
+
+        int weight() {
+            int size = ROW_OVERHEAD + key.length + value.length;
+            if (docId != null) {
+                size += OBJECT_OVERHEAD + docId.length() * 2;
+            }
+            if (documentProperties != null) {
+                size += documentProperties.length;
+            }
+            return size;
+        }
+    }
+
+    private static class CachedResult {
+        final long lastSequence;
+        final long docsSequence;
+        final List<CachedRow> rows;
+        final int weight;
+
+        CachedResult(long lastSequence, long docsSequence, List<CachedRow> rows, int weight) {
+            this.lastSequence = lastSequence;
+            this.docsSequence = docsSequence;
+            this.rows = rows;
+            this.weight = weight;
+        }
+    }
+
+    private final int maxSize;
+    private final LruCache<String, CachedResult> cache;
+
+    /**
+     * @param maxSize the maximum estimated size of the cached rows, in bytes.
+     */
+    QueryResultCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LruCache<String, CachedResult>(maxSize) {
+            @Override
+            protected int sizeOf(String key, CachedResult value) {
+                return value.weight;
+            }
+        };
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns new rows equal to those cached for these options at this index sequence, or null.
+     * @param docsSequence the database's last sequence if the query includes documents, else 0.
+     */
+    List<QueryRow> get(QueryOptions options, long lastSequence, long docsSequence) {
+        String key = keyForOptions(options);
+        if (key == null) {
+            return null;
+        }
+        CachedResult result = cache.get(key);
+        if (result == null || result.lastSequence != lastSequence || result.docsSequence != docsSequence) {
+            return null;
+        }
+        JsonCodec codec = Manager.getJsonCodec();
+        List<QueryRow> rows = new ArrayList<QueryRow>(result.rows.size());
+        try {
+            for (CachedRow row : result.rows) {
+                rows.add(row.toRow(codec));
+            }
+        } catch (IOException e) {
+            Log.w(Log.TAG_QUERY, "Unable to read cached query result: %s", e, key);
+            cache.remove(key);
+            return null;
+        }
+        return rows;
+    }
+
+    /**
+     * Caches the rows returned for these options at this index sequence, dropping any entries
+     * from earlier sequences.
+     */
+    void put(QueryOptions options, long lastSequence, long docsSequence, List<QueryRow> rows) {
+        String key = keyForOptions(options);
+        if (key == null) {
+            return;
+        }
+        JsonCodec codec = Manager.getJsonCodec();
+        int weight = ENTRY_OVERHEAD + key.length() * 2;
+        List<CachedRow> cachedRows = new ArrayList<CachedRow>(rows.size());
+        try {
+            for (QueryRow row : rows) {
+                CachedRow cachedRow = new CachedRow(row, codec);
+                weight += cachedRow.weight();
+                if (weight > maxSize) {
+                    Log.v(Log.TAG_QUERY, "Not caching query result larger than the cache: %s", key);
+                    return;
+                }
+                cachedRows.add(cachedRow);
+            }
+        } catch (IOException e) {
+            Log.w(Log.TAG_QUERY, "Unable to cache query result: %s", e, key);
+            return;
+        }
+
+        for (Map.Entry<String, CachedResult> entry : cache.snapshot().entrySet()) {
+            if (entry.getValue().lastSequence < lastSequence) {
+                cache.remove(entry.getKey());
+            }
+        }
+        cache.put(key, new CachedResult(lastSequence, docsSequence, cachedRows, weight));
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Normalizes the options that affect a view query's result into a string, so that
+     * equivalent options map to the same cache entry. Returns null if the options can't be
+     * serialized.
+     */
+    private static String keyForOptions(QueryOptions options) {
+        boolean group = options.isGroup() || options.getGroupLevel() > 0;
+        boolean reduce = options.isReduce() || group;
+
+        Map<String, Object> normalized = new LinkedHashMap<String, Object>();
+        normalized.put("startkey", options.getStartKey());
+        normalized.put("endkey", options.getEndKey());
+        normalized.put("startkey_docid", options.getStartKeyDocId());
+        normalized.put("endkey_docid", options.getEndKeyDocId());
+        normalized.put("keys", options.getKeys());
+        normalized.put("inclusive_end", options.isInclusiveEnd());
+        normalized.put("descending", options.isDescending());
+        normalized.put("prefix_match_level", options.getEndKey() != null ? options.getPrefixMatchLevel() : 0);
+        normalized.put("skip", options.getSkip());
+        normalized.put("limit", options.getLimit());
+        normalized.put("reduce", reduce);
+        normalized.put("group_level", group ? options.getGroupLevel() : 0);
+        normalized.put("group", group);
+        if (!reduce && options.isIncludeDocs()) {
+            normalized.put("include_docs", options.getContentOptions().toString());
+        }
+        try {
+            return Manager.getObjectMapper().writeValueAsString(normalized);
+        } catch (Exception e) {
+            Log.w(Log.TAG_QUERY, "Unable to build query cache key: %s", e, normalized);
+            return null;
+        }
+    }
+}
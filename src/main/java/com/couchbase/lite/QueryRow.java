@@ -1,10 +1,14 @@
 package com.couchbase.lite;
 
+import com.couchbase.lite.Database.TDContentOptions;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,9 +55,30 @@ public class QueryRow {
      */
     private Map<String, Object> documentProperties;
 
+    /**
+     * Undecoded key and value of a row read by a streaming query; parsed on first access.
+     */
+    private JsonDocument keyJson;
+    private JsonDocument valueJson;
+
+    /**
+     * Undecoded document of a row read by a streaming query with prefetch enabled;
+     * turned into documentProperties on first access.
+     */
+    private boolean documentPending;
+    private byte[] documentJson;
+    private String documentRevId;
+    private boolean documentDeleted;
+    private EnumSet<TDContentOptions> documentContentOptions;
 
     private Database database;
 
+    /**
+     * The rowid of the index row this row was read from, which orders the rows a document
+     * emitted with equal keys; 0 for reduced rows and _all_docs rows.
+     */
+    private long indexRowId;
+
     /**
      * Constructor
      *
@@ -68,6 +93,31 @@ public class QueryRow {
         this.documentProperties = documentProperties;
     }
 
+    /**
+     * Constructor for a row whose key and value are decoded lazily.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryRow(String documentId, long sequence, JsonDocument keyJson, JsonDocument valueJson) {
+        this.sourceDocumentId = documentId;
+        this.sequence = sequence;
+        this.keyJson = keyJson;
+        this.valueJson = valueJson;
+    }
+
+    /**
+     * Sets the raw JSON of the document to be returned by getDocumentProperties(), which is
+     * only expanded when first asked for. If the row's value links to another document
+     * (has an "_id" property) that document is loaded instead.
+     */
+    @InterfaceAudience.Private
+    /* package */ void setDocumentJSON(byte[] json, String revId, boolean deleted, EnumSet<TDContentOptions> contentOptions) {
+        this.documentPending = true;
+        this.documentJson = json;
+        this.documentRevId = revId;
+        this.documentDeleted = deleted;
+        this.documentContentOptions = contentOptions;
+    }
+
     /**
      * Gets the Database that owns the Query's View.
      */
@@ -95,7 +145,11 @@ public class QueryRow {
      * The row's key: this is the first parameter passed to the emit() call that generated the row.
      */
     @InterfaceAudience.Public
-    public Object getKey() {
+    public synchronized Object getKey() {
+        if (keyJson != null) {
+            key = keyJson.jsonObject();
+            keyJson = null;
+        }
         return key;
     }
 
@@ -103,7 +157,11 @@ public class QueryRow {
      * The row's value: this is the second parameter passed to the emit() call that generated the row.
      */
     @InterfaceAudience.Public
-    public Object getValue() {
+    public synchronized Object getValue() {
+        if (valueJson != null) {
+            value = valueJson.jsonObject();
+            valueJson = null;
+        }
         return value;
     }
 
@@ -115,6 +173,7 @@ public class QueryRow {
     @InterfaceAudience.Public
     public String getDocumentId() {
         // _documentProperties may have been 'redirected' from a different document
+        Map<String, Object> documentProperties = loadDocumentProperties();
         if (documentProperties != null &&
                 documentProperties.get("_id") != null &&
                 documentProperties.get("_id") instanceof String) {
@@ -144,6 +203,8 @@ public class QueryRow {
     @InterfaceAudience.Public
     public String getDocumentRevisionId() {
         String rev = null;
+        Map<String, Object> documentProperties = loadDocumentProperties();
+        Object value = getValue();
         if (documentProperties != null && documentProperties.containsKey("_rev")) {
             rev = (String) documentProperties.get("_rev");
         }
@@ -166,6 +227,7 @@ public class QueryRow {
      */
     @InterfaceAudience.Public
     public Map<String, Object> getDocumentProperties() {
+        Map<String, Object> documentProperties = loadDocumentProperties();
         return documentProperties != null ? Collections.unmodifiableMap(documentProperties) : null;
     }
 
@@ -188,7 +250,7 @@ public class QueryRow {
     @InterfaceAudience.Public
     public List<SavedRevision> getConflictingRevisions() {
         Document doc = database.getDocument(sourceDocumentId);
-        Map<String, Object> valueTmp = (Map<String, Object>) value;
+        Map<String, Object> valueTmp = (Map<String, Object>) getValue();
         List<String> conflicts = (List<String>) valueTmp.get("_conflicts");
         if (conflicts == null) {
             conflicts = new ArrayList<String>();
@@ -225,10 +287,11 @@ public class QueryRow {
 
         QueryRow other = (QueryRow) object;
 
-        boolean documentPropertiesEqual = Utils.isEqual(documentProperties, other.getDocumentProperties());
+        boolean documentPropertiesEqual = Utils.isEqual(getDocumentProperties(), other.getDocumentProperties());
+        Object value = getValue();
 
         if (database == other.database
-                && Utils.isEqual(key, other.getKey())
+                && Utils.isEqual(getKey(), other.getKey())
                 && Utils.isEqual(sourceDocumentId, other.getSourceDocumentId())
                 && documentPropertiesEqual) {
             // If values were emitted, compare them. Otherwise we have nothing to go on so check
@@ -256,17 +319,35 @@ public class QueryRow {
         return asJSONDictionary().toString();
     }
 
+    @InterfaceAudience.Private
+    /* package */ synchronized void setDocumentProperties(Map<String, Object> documentProperties) {
+        this.documentProperties = documentProperties;
+    }
+
     @InterfaceAudience.Private
     /* package */ void setDatabase(Database database) {
         this.database = database;
     }
 
+    @InterfaceAudience.Private
+    /* package */ long getIndexRowId() {
+        return indexRowId;
+    }
+
+    @InterfaceAudience.Private
+    /* package */ void setIndexRowId(long indexRowId) {
+        this.indexRowId = indexRowId;
+    }
+
     /**
      * @exclude
      */
     @InterfaceAudience.Private
     public Map<String, Object> asJSONDictionary() {
         Map<String, Object> result = new HashMap<String, Object>();
+        Object key = getKey();
+        Object value = getValue();
+        Map<String, Object> documentProperties = loadDocumentProperties();
         if (value != null || sourceDocumentId != null) {
             result.put("key", key);
             if (value != null){
@@ -283,5 +364,37 @@ public class QueryRow {
         return result;
     }
 
+    /**
+     * Expands the pending document JSON of a streamed row, if any.
+     */
+    private synchronized Map<String, Object> loadDocumentProperties() {
+        if (documentPending) {
+            documentPending = false;
+            Object valueObject = getValue();
+            // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+            if (valueObject instanceof Map && ((Map) valueObject).get("_id") instanceof String) {
+                String linkedDocId = (String) ((Map) valueObject).get("_id");
+                RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
+                        linkedDocId,
+                        null,
+                        EnumSet.noneOf(TDContentOptions.class)
+                );
+                if (linkedDoc != null) {
+                    documentProperties = linkedDoc.getProperties();
+                }
+            } else if (documentJson != null) {
+                documentProperties = database.documentPropertiesFromJSON(
+                        documentJson,
+                        sourceDocumentId,
+                        documentRevId,
+                        documentDeleted,
+                        sequence,
+                        documentContentOptions
+                );
+            }
+            documentJson = null;
+        }
+        return documentProperties;
+    }
 
 }
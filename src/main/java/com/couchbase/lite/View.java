@@ -30,10 +30,14 @@ import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a view available in a database.
@@ -45,6 +49,11 @@ public final class View {
      */
     public static final int REDUCE_BATCH_SIZE = 100;
 
+    /**
+     * Number of rows whose documents are fetched together in an include_docs query.
+     */
+    private static final int INCLUDE_DOCS_BATCH_SIZE = 100;
+
     /**
      * @exclude
      */
@@ -58,6 +67,8 @@ public final class View {
     private Mapper mapBlock;
     private Reducer reduceBlock;
     private TDViewCollation collation;
+    private QueryResultCache queryCache;
+    private volatile Set<String> mapProperties;
     private static ViewCompiler compiler;
 
     /**
@@ -191,6 +202,7 @@ public final class View {
 
         this.mapBlock = mapBlock;
         this.reduceBlock = reduceBlock;
+        clearQueryCache();
 
         if(!database.open()) {
             return false;
@@ -250,6 +262,7 @@ public final class View {
         if (getViewId() < 0) {
             return;
         }
+        clearQueryCache();
 
         boolean success = false;
         try {
@@ -276,6 +289,11 @@ public final class View {
      */
     @InterfaceAudience.Public
     public void delete() {
+        clearQueryCache();
+        ViewIndexer indexer = (database != null) ? database.getViewIndexer() : null;
+        if (indexer != null) {
+            indexer.unregisterView(this);
+        }
         database.deleteViewNamed(name);
         viewId = 0;
     }
@@ -288,6 +306,70 @@ public final class View {
         return new Query(getDatabase(), this);
     }
 
+    /**
+     * The maximum estimated memory, in bytes, used to cache this view's query results; 0 (the
+     * default) means results aren't cached. A cached result is reused by an identical query as
+     * long as the index hasn't been updated since (and, for queries that include documents,
+     * as long as the database hasn't changed). Streaming queries are never cached.
+     */
+    @InterfaceAudience.Public
+    public synchronized int getQueryCacheSize() {
+        return (queryCache != null) ? queryCache.getMaxSize() : 0;
+    }
+
+    @InterfaceAudience.Public
+    public synchronized void setQueryCacheSize(int maxBytes) {
+        queryCache = (maxBytes > 0) ? new QueryResultCache(maxBytes) : null;
+    }
+
+    /**
+     * Whether the view's index is kept up to date in the background: if true, the index is
+     * updated on a background thread after every change to the database, so that queries
+     * rarely have to wait for it. The number of views of a database that may be updated at
+     * once is set by ManagerOptions.setMaxConcurrentIndexUpdates(). Defaults to false.
+     */
+    @InterfaceAudience.Public
+    public boolean isIndexedInBackground() {
+        ViewIndexer indexer = (database != null) ? database.getViewIndexer() : null;
+        return indexer != null && indexer.isRegistered(this);
+    }
+
+    @InterfaceAudience.Public
+    public void setIndexedInBackground(boolean indexedInBackground) {
+        ViewIndexer indexer = (database != null) ? database.getViewIndexer() : null;
+        if (indexer == null) {
+            return;
+        }
+        if (indexedInBackground) {
+            indexer.registerView(this);
+        } else {
+            indexer.unregisterView(this);
+        }
+    }
+
+    /**
+     * The top-level document properties the map function reads, or null (the default) if
+     * that isn't known. Documents passed to the map function are only parsed as far as the
+     * function reads them, whether or not this is set; declaring the properties lets them all
+     * be picked out of the JSON in a single pass. Reading other properties still works.
+     */
+    @InterfaceAudience.Public
+    public Set<String> getMapProperties() {
+        return mapProperties;
+    }
+
+    @InterfaceAudience.Public
+    public void setMapProperties(Collection<String> propertyNames) {
+        mapProperties = (propertyNames != null)
+                ? Collections.unmodifiableSet(new HashSet<String>(propertyNames)) : null;
+    }
+
+    /* package */ synchronized void clearQueryCache() {
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
     /**
      * @exclude
      */
@@ -321,6 +403,7 @@ public final class View {
      */
     @InterfaceAudience.Private
     public void databaseClosing() {
+        clearQueryCache();
         database = null;
         viewId = 0;
     }
@@ -337,7 +420,7 @@ public final class View {
         }
         String result = null;
         try {
-            result = Manager.getObjectMapper().writeValueAsString(object);
+            result = Manager.getJsonCodec().encodeAsString(object);
         } catch (Exception e) {
             Log.w(Log.TAG_VIEW, "Exception serializing object to json: %s", e, object);
         }
@@ -432,11 +515,11 @@ public final class View {
 
                     try {
                         String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
+                        String keyJson = Manager.getJsonCodec().encodeAsString(key);
                         if (value==null) {
                             valueJson = null;
                         } else{
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
+                            valueJson = Manager.getJsonCodec().encodeAsString(value);
                         }
                         //Log.v(Log.TAG_VIEW, "    emit(" + keyJson + ", "
                         //        + valueJson + ")");
@@ -532,13 +615,14 @@ public final class View {
                 EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
                 if (noAttachments)
                     contentOptions.add(TDContentOptions.TDNoAttachments);
-                Map<String, Object> properties = database.documentPropertiesFromJSON(
+                Map<String, Object> properties = database.lazyDocumentPropertiesFromJSON(
                         json,
                         docId,
                         revId,
                         false,
                         sequence,
-                        contentOptions
+                        contentOptions,
+                        mapProperties
                 );
                 if (properties != null) {
                     // Call the user-defined map() to emit new key/value
@@ -584,6 +668,24 @@ public final class View {
      */
     @InterfaceAudience.Private
     public Cursor resultSetWithOptions(QueryOptions options) {
+        return resultSetWithOptions(options, null);
+    }
+
+    /**
+     * Like resultSetWithOptions(QueryOptions), but if docIds is non-null only rows emitted by
+     * those documents are returned.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Cursor resultSetWithOptions(QueryOptions options, Collection<String> docIds) {
+        return resultSetWithOptions(options, docIds, null);
+    }
+
+    /**
+     * Like resultSetWithOptions(QueryOptions, Collection), but if aggregate is non-null the
+     * matching rows are reduced by SQLite, and the cursor returns the aggregate's single row.
+     */
+    private Cursor resultSetWithOptions(QueryOptions options, Collection<String> docIds, BuiltinReducer aggregate) {
         if (options == null) {
             options = new QueryOptions();
         }
@@ -598,22 +700,43 @@ public final class View {
             collationStr += " COLLATE JSON_RAW";
         }
 
+        // Multi-key queries join the index against the keys, numbered in the order requested
+        // (large key sets in a temporary table); this seeks the index once per key and returns
+        // the rows in that order without binding thousands of parameters.
+        Database.QueryKeys keys = null;
+        if (options.getKeys() != null) {
+            List<String> keyJSONs = new ArrayList<String>(options.getKeys().size());
+            for (Object key : options.getKeys()) {
+                keyJSONs.add(key != null ? toJSONString(key) : "null");
+            }
+            keys = database.loadQueryKeys(keyJSONs);
+        }
+
         String sql = "SELECT key, value, docid, revs.sequence";
         if (options.isIncludeDocs()) {
             sql = sql + ", revid, json";
         }
-        sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
-
+        sql = sql + ", maps.rowid FROM ";
         List<String> argsList = new ArrayList<String>();
+        if (keys != null) {
+            sql = sql + keys.getTableSql() + " CROSS JOIN ";
+            argsList.addAll(keys.getArgs());
+        }
+        sql = sql + "maps, revs, docs WHERE maps.view_id=?";
         argsList.add(Integer.toString(getViewId()));
 
-        if(options.getKeys() != null) {
-            sql += " AND key in (";
+        if (keys != null) {
+            // maps.key is declared COLLATE JSON, so the keys are matched as the index collates them
+            sql += " AND maps.key = qk.key";
+        }
+
+        if (docIds != null) {
+            sql += " AND docid in (";
             String item = "?";
-            for (Object key : options.getKeys()) {
+            for (String docId : docIds) {
                 sql += item;
                 item = ", ?";
-                argsList.add(toJSONString(key));
+                argsList.add(docId);
             }
             sql += ")";
         }
@@ -670,22 +793,34 @@ public final class View {
         }
 
         sql = sql
-                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
-        sql += collationStr;
-
+                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY ";
+        // Rows with equal keys are ordered by docid, as the startKeyDocId/endKeyDocId filters
+        // assume, then by rowid between the rows a document emitted with the same key
+        if (keys != null) {
+            sql = sql + "qk.ord";
+        } else {
+            sql = sql + "key" + collationStr;
+            if (options.isDescending()) {
+                sql = sql + " DESC";
+            }
+        }
         if (options.isDescending()) {
-            sql = sql + " DESC";
+            sql = sql + ", docid DESC, maps.rowid DESC";
+        } else {
+            sql = sql + ", docid, maps.rowid";
         }
 
         sql = sql + " LIMIT ? OFFSET ?";
         argsList.add(Integer.toString(options.getLimit()));
         argsList.add(Integer.toString(options.getSkip()));
 
+        if (aggregate != null) {
+            sql = aggregate.aggregateSql(sql);
+        }
+
         Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
 
-        Cursor cursor = database.getDatabase().rawQuery(sql,
-                argsList.toArray(new String[argsList.size()]));
-        return cursor;
+        return database.rawQueryWithKeys(sql, argsList.toArray(new String[argsList.size()]), keys);
     }
 
 
@@ -808,47 +943,54 @@ public final class View {
     @InterfaceAudience.Private
     List<QueryRow> reducedQuery(Cursor cursor, boolean group, int groupLevel) throws CouchbaseLiteException {
 
+        // Built-in reducers accumulate the values' JSON directly, without parsing it
+        BuiltinReducer.Accumulator accumulator = null;
         List<Object> keysToReduce = null;
         List<Object> valuesToReduce = null;
-        Object lastKey = null;
-        if(getReduce() != null) {
+        if (reduceBlock instanceof BuiltinReducer) {
+            accumulator = ((BuiltinReducer) reduceBlock).newAccumulator();
+        } else {
             keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
             valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         }
+        Object lastKey = null;
+        int rowsToReduce = 0;
         List<QueryRow> rows = new ArrayList<QueryRow>();
 
         cursor.moveToNext();
         while (!cursor.isAfterLast()) {
             JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
-            JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
             assert(keyDoc != null);
 
             Object keyObject = keyDoc.jsonObject();
             if(group && !groupTogether(keyObject, lastKey, groupLevel)) {
                 if (lastKey != null) {
                     // This pair starts a new group, so reduce & record the last one:
-                    Object reduced = (reduceBlock != null) ? reduceBlock.reduce(keysToReduce, valuesToReduce, false) : null;
+                    Object reduced = reduceGroup(keysToReduce, valuesToReduce, accumulator);
                     Object key = groupKey(lastKey, groupLevel);
                     QueryRow row = new QueryRow(null, 0, key, reduced, null);
                     row.setDatabase(database);
                     rows.add(row);
-                    keysToReduce.clear();
-                    valuesToReduce.clear();
-
+                    rowsToReduce = 0;
                 }
                 lastKey = keyObject;
             }
-            keysToReduce.add(keyObject);
-            valuesToReduce.add(valueDoc.jsonObject());
+            if (accumulator != null) {
+                accumulator.addJSON(cursor.getBlob(1));
+            } else {
+                keysToReduce.add(keyObject);
+                valuesToReduce.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            }
+            rowsToReduce++;
 
             cursor.moveToNext();
 
         }
 
-        if(keysToReduce.size() > 0) {
+        if(rowsToReduce > 0) {
             // Finish the last group (or the entire list, if no grouping):
             Object key = group ? groupKey(lastKey, groupLevel) : null;
-            Object reduced = (reduceBlock != null) ? reduceBlock.reduce(keysToReduce, valuesToReduce, false) : null;
+            Object reduced = reduceGroup(keysToReduce, valuesToReduce, accumulator);
             QueryRow row = new QueryRow(null, 0, key, reduced, null);
             row.setDatabase(database);
             rows.add(row);
@@ -858,6 +1000,22 @@ public final class View {
 
     }
 
+    /**
+     * Reduces the rows collected for one group, and clears them for the next.
+     */
+    private Object reduceGroup(List<Object> keys, List<Object> values, BuiltinReducer.Accumulator accumulator) {
+        Object reduced;
+        if (accumulator != null) {
+            reduced = accumulator.result();
+            accumulator.reset();
+        } else {
+            reduced = (reduceBlock != null) ? reduceBlock.reduce(keys, values, false) : null;
+            keys.clear();
+            values.clear();
+        }
+        return reduced;
+    }
+
     /**
      * Queries the view. Does NOT first update the index.
      *
@@ -872,11 +1030,32 @@ public final class View {
             options = new QueryOptions();
         }
 
+        QueryResultCache cache;
+        synchronized (this) {
+            cache = queryCache;
+        }
+        if (cache != null) {
+            boolean reduce = options.isReduce() || options.isGroup() || options.getGroupLevel() > 0;
+            long lastSequence = getLastSequenceIndexed();
+            long docsSequence = (!reduce && options.isIncludeDocs()) ? database.getLastSequenceNumber() : 0;
+            List<QueryRow> rows = cache.get(options, lastSequence, docsSequence);
+            if (rows == null) {
+                rows = runQueryWithOptions(options);
+                cache.put(options, lastSequence, docsSequence, rows);
+            } else {
+                Log.v(Log.TAG_VIEW, "Query %s: answered from cache", name);
+            }
+            return rows;
+        }
+        return runQueryWithOptions(options);
+    }
+
+    private List<QueryRow> runQueryWithOptions(QueryOptions options) throws CouchbaseLiteException {
+
         Cursor cursor = null;
         List<QueryRow> rows = new ArrayList<QueryRow>();
 
         try {
-            cursor = resultSetWithOptions(options);
             int groupLevel = options.getGroupLevel();
             boolean group = options.isGroup() || (groupLevel > 0);
             boolean reduce = options.isReduce() || group;
@@ -886,47 +1065,45 @@ public final class View {
                 throw new CouchbaseLiteException(new Status(Status.BAD_REQUEST));
             }
 
-            if (reduce || group) {
+            // An ungrouped built-in reduction is computed by SQLite in a single row
+            BuiltinReducer aggregate = null;
+            if (reduce && !group && (reduceBlock instanceof BuiltinReducer)) {
+                aggregate = (BuiltinReducer) reduceBlock;
+            }
+            cursor = resultSetWithOptions(options, null, aggregate);
+
+            if (aggregate != null) {
+                cursor.moveToNext();
+                Object reduced = aggregate.reducedValueFromAggregate(cursor);
+                if (reduced != null) {
+                    QueryRow row = new QueryRow(null, 0, null, reduced, null);
+                    row.setDatabase(database);
+                    rows.add(row);
+                }
+            } else if (reduce || group) {
                 // Reduced or grouped query:
                 rows = reducedQuery(cursor, group, groupLevel);
             } else {
                 // regular query
                 cursor.moveToNext();
-                while (!cursor.isAfterLast()) {
-                    JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
-                    JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
-                    String docId = cursor.getString(2);
-                    int sequence =  Integer.valueOf(cursor.getString(3));
-                    Map<String, Object> docContents = null;
-                    if (options.isIncludeDocs()) {
-                        Object valueObject = valueDoc.jsonObject();
-                        // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
-                        if (valueObject instanceof Map && ((Map) valueObject).containsKey("_id")) {
-                            String linkedDocId = (String) ((Map) valueObject).get("_id");
-                            RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
-                                    linkedDocId,
-                                    null,
-                                    EnumSet.noneOf(TDContentOptions.class)
-                            );
-                            if (linkedDoc != null) {
-                                docContents = linkedDoc.getProperties();
-                            }
-                        } else {
-                            docContents = database.documentPropertiesFromJSON(
-                                    cursor.getBlob(5),
-                                    docId,
-                                    cursor.getString(4),
-                                    false,
-                                    cursor.getLong(3),
-                                    options.getContentOptions()
-                            );
-                        }
+                if (options.isIncludeDocs()) {
+                    // Read a page of rows at a time, then fetch their linked documents and
+                    // attachments with a few set-based queries instead of one per row.
+                    while (!cursor.isAfterLast()) {
+                        rows.addAll(readRowsIncludingDocs(cursor, options));
+                    }
+                } else {
+                    while (!cursor.isAfterLast()) {
+                        JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
+                        JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
+                        String docId = cursor.getString(2);
+                        long sequence = cursor.getLong(3);
+                        QueryRow row = new QueryRow(docId, sequence, keyDoc.jsonObject(), valueDoc.jsonObject(), null);
+                        row.setIndexRowId(cursor.getLong(4));
+                        row.setDatabase(database);
+                        rows.add(row);
+                        cursor.moveToNext();
                     }
-                    QueryRow row = new QueryRow(docId, sequence, keyDoc.jsonObject(), valueDoc.jsonObject(), docContents);
-                    row.setDatabase(database);
-                    rows.add(row);
-                    cursor.moveToNext();
-
                 }
             }
 
@@ -945,6 +1122,217 @@ public final class View {
     }
 
 
+    /**
+     * Reads up to INCLUDE_DOCS_BATCH_SIZE rows of an include_docs query, starting at the
+     * cursor's current row, and leaves the cursor after them. The documents of rows whose value
+     * links to another document ("_id"), and the attachment metadata of the rest, are fetched
+     * for the whole batch at once.
+     */
+    private List<QueryRow> readRowsIncludingDocs(Cursor cursor, QueryOptions options) {
+        EnumSet<TDContentOptions> contentOptions = options.getContentOptions();
+        List<PendingRow> batch = new ArrayList<PendingRow>(INCLUDE_DOCS_BATCH_SIZE);
+        List<String> linkedDocIds = new ArrayList<String>();
+        List<Long> sequences = new ArrayList<Long>();
+
+        while (!cursor.isAfterLast() && batch.size() < INCLUDE_DOCS_BATCH_SIZE) {
+            PendingRow pending = new PendingRow();
+            pending.key = new JsonDocument(cursor.getBlob(0)).jsonObject();
+            pending.value = new JsonDocument(cursor.getBlob(1)).jsonObject();
+            pending.docId = cursor.getString(2);
+            pending.sequence = cursor.getLong(3);
+            pending.rowId = cursor.getLong(6);
+            // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+            if (pending.value instanceof Map && ((Map) pending.value).containsKey("_id")) {
+                pending.linkedDocId = (String) ((Map) pending.value).get("_id");
+                linkedDocIds.add(pending.linkedDocId);
+            } else {
+                pending.revId = cursor.getString(4);
+                pending.json = cursor.getBlob(5);
+                sequences.add(pending.sequence);
+            }
+            batch.add(pending);
+            cursor.moveToNext();
+        }
+
+        Map<String, RevisionInternal> linkedDocs = new HashMap<String, RevisionInternal>();
+        if (!linkedDocIds.isEmpty()) {
+            List<RevisionInternal> revs = database.getDocumentsWithIDsAndRevs(
+                    linkedDocIds,
+                    null,
+                    EnumSet.noneOf(TDContentOptions.class)
+            );
+            for (RevisionInternal rev : revs) {
+                if (rev != null) {
+                    linkedDocs.put(rev.getDocId(), rev);
+                }
+            }
+        }
+        Map<Long, Map<String, Object>> attachments = null;
+        if (!contentOptions.contains(TDContentOptions.TDNoAttachments)) {
+            attachments = database.getAttachmentsDictsForSequences(sequences, contentOptions);
+        }
+
+        List<QueryRow> rows = new ArrayList<QueryRow>(batch.size());
+        for (PendingRow pending : batch) {
+            Map<String, Object> docContents = null;
+            if (pending.linkedDocId != null) {
+                RevisionInternal linkedDoc = linkedDocs.get(pending.linkedDocId);
+                if (linkedDoc != null) {
+                    docContents = linkedDoc.getProperties();
+                }
+            } else {
+                docContents = database.documentPropertiesFromJSON(
+                        pending.json,
+                        pending.docId,
+                        pending.revId,
+                        false,
+                        pending.sequence,
+                        contentOptions,
+                        attachments
+                );
+            }
+            QueryRow row = new QueryRow(pending.docId, pending.sequence, pending.key, pending.value, docContents);
+            row.setIndexRowId(pending.rowId);
+            row.setDatabase(database);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * An include_docs row whose document hasn't been loaded yet.
+     */
+    private static class PendingRow {
+        String docId;
+        long sequence;
+        Object key;
+        Object value;
+        long rowId;
+        String linkedDocId;
+        String revId;
+        byte[] json;
+    }
+
+    /**
+     * Queries the view without first updating the index, returning an enumerator that reads
+     * rows from the index as they are iterated instead of loading them all up front. Keys,
+     * values and documents are only parsed when the caller asks for them. Reduced or grouped
+     * queries are evaluated eagerly, since their output has to be aggregated first.
+     *
+     * @param options The options to use.
+     * @param sequenceNumber The sequence number to report on the enumerator.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public QueryEnumerator streamWithOptions(QueryOptions options, long sequenceNumber) throws CouchbaseLiteException {
+
+        if (options == null) {
+            options = new QueryOptions();
+        }
+
+        boolean group = options.isGroup() || (options.getGroupLevel() > 0);
+        if (options.isReduce() || group) {
+            return new QueryEnumerator(database, queryWithOptions(options), sequenceNumber);
+        }
+
+        Cursor cursor;
+        try {
+            cursor = resultSetWithOptions(options);
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying view: %s", this);
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        }
+
+        return new QueryEnumerator(database, cursor, mapRowReader(options), sequenceNumber);
+    }
+
+    /**
+     * Returns the rows emitted by the given documents that match a map-only query, in index
+     * order. The query's skip and limit are ignored. Does NOT first update the index.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    List<QueryRow> queryRowsForDocuments(QueryOptions options, Collection<String> docIds) throws CouchbaseLiteException {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        if (docIds.isEmpty()) {
+            return rows;
+        }
+
+        QueryOptions docOptions = new QueryOptions();
+        docOptions.setStartKey(options.getStartKey());
+        docOptions.setEndKey(options.getEndKey());
+        docOptions.setStartKeyDocId(options.getStartKeyDocId());
+        docOptions.setEndKeyDocId(options.getEndKeyDocId());
+        docOptions.setInclusiveEnd(options.isInclusiveEnd());
+        docOptions.setKeys(options.getKeys());
+        docOptions.setPrefixMatchLevel(options.getPrefixMatchLevel());
+        docOptions.setDescending(options.isDescending());
+        docOptions.setIncludeDocs(options.isIncludeDocs());
+        docOptions.setContentOptions(options.getContentOptions());
+
+        Cursor cursor = null;
+        try {
+            cursor = resultSetWithOptions(docOptions, docIds);
+            QueryEnumerator.RowReader rowReader = mapRowReader(docOptions);
+            QueryRow row;
+            while ((row = rowReader.readRow(cursor)) != null) {
+                row.setDatabase(database);
+                rows.add(row);
+            }
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying view: %s", this);
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Compares two keys using the view's collation, as the index would order them.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    int compareKeys(Object key1, Object key2) {
+        return KeyCollator.compare(collation, key1, key2);
+    }
+
+    /**
+     * Returns a reader that turns the result set of a map-only resultSetWithOptions() into
+     * QueryRows whose keys, values and documents are parsed on first access.
+     */
+    private QueryEnumerator.RowReader mapRowReader(QueryOptions options) {
+        final boolean includeDocs = options.isIncludeDocs();
+        final EnumSet<TDContentOptions> contentOptions = options.getContentOptions();
+        return new QueryEnumerator.RowReader() {
+            @Override
+            public QueryRow readRow(Cursor cursor) {
+                if (!cursor.moveToNext()) {
+                    return null;
+                }
+                String docId = cursor.getString(2);
+                long sequence = cursor.getLong(3);
+                QueryRow row = new QueryRow(
+                        docId,
+                        sequence,
+                        new JsonDocument(cursor.getBlob(0)),
+                        new JsonDocument(cursor.getBlob(1))
+                );
+                if (includeDocs) {
+                    row.setDocumentJSON(cursor.getBlob(5), cursor.getString(4), false, contentOptions);
+                    row.setIndexRowId(cursor.getLong(6));
+                } else {
+                    row.setIndexRowId(cursor.getLong(4));
+                }
+                return row;
+            }
+        };
+    }
+
     /**
      * Utility function to use in reduce blocks. Totals an array of Numbers.
      */
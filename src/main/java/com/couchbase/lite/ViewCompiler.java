@@ -18,7 +18,9 @@ public interface ViewCompiler {
     Mapper compileMap(String source, String language);
 
     /**
-     * Compiles source code into a ReduceDelegate.
+     * Compiles source code into a ReduceDelegate. The built-in reduce functions ("_count",
+     * "_sum" and "_stats") are resolved with BuiltinReducer.forName() before this is called;
+     * to have other sources reduced natively, return one of the BuiltinReducer instances.
      *
      * @param source The source code to compile into a Reducer.
      * @param language The language of the source.
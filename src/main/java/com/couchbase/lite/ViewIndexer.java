@@ -0,0 +1,203 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a database's views indexed in the background. Views registered for background
+ * indexing are brought up to date after every committed transaction, so that queries usually
+ * find their index current; other views are only updated here when a query asks for it
+ * (IndexUpdateMode.AFTER).
+ *
+ * Updates run on a pool owned by the database. Different views may be updated at the same
+ * time, but a view is never updated by two threads at once: requests that arrive while a
+ * view is being updated are coalesced into a single follow-up update, and a query that
+ * updates the index on its own thread (updateNow) first waits for the view's background
+ * update to finish. Updates of other views, or view updates made without going through
+ * this class, aren't excluded.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class ViewIndexer {
+
+    /**
+     * How long close() waits for updates in progress to finish, in milliseconds.
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final Database database;
+    private final ExecutorService executor;
+
+    // all guarded by this
+    private final Set<View> registeredViews = new LinkedHashSet<View>();
+    private final Set<View> pendingViews = new HashSet<View>();
+    private final Set<View> runningViews = new HashSet<View>();
+    private boolean closed;
+
+    ViewIndexer(Database database, int maxConcurrentUpdates) {
+        this.database = database;
+        final String threadName = "CBLViewIndexer-" + database.getName() + "-";
+        this.executor = Executors.newFixedThreadPool(maxConcurrentUpdates, new ThreadFactory() {
+            private int counter = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + (++counter));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers a view to be updated after every committed transaction, and schedules an
+     * update to bring it up to date now.
+     */
+    void registerView(View view) {
+        synchronized (this) {
+            if (closed || !registeredViews.add(view)) {
+                return;
+            }
+        }
+        scheduleUpdate(view);
+    }
+
+    synchronized void unregisterView(View view) {
+        registeredViews.remove(view);
+        pendingViews.remove(view);
+    }
+
+    synchronized boolean isRegistered(View view) {
+        return registeredViews.contains(view);
+    }
+
+    /**
+     * Called after a transaction commits; schedules an update of every registered view.
+     */
+    void databaseChanged() {
+        List<View> views;
+        synchronized (this) {
+            if (registeredViews.isEmpty()) {
+                return;
+            }
+            views = new ArrayList<View>(registeredViews);
+        }
+        for (View view : views) {
+            scheduleUpdate(view);
+        }
+    }
+
+    /**
+     * Schedules an update of the view's index, unless one is already waiting to run.
+     */
+    synchronized void scheduleUpdate(View view) {
+        if (closed || !pendingViews.add(view)) {
+            return;
+        }
+        if (!runningViews.contains(view)) {
+            submit(view);
+        }
+        // else the running update resubmits the view when it finishes
+    }
+
+    /**
+     * Brings the view's index up to date on the calling thread, once no other thread is
+     * updating it. A background update requested meanwhile runs afterwards.
+     */
+    void updateNow(View view) throws CouchbaseLiteException {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (runningViews.contains(view)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            runningViews.add(view);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            view.updateIndex();
+        } finally {
+            finishedUpdate(view);
+        }
+    }
+
+    /**
+     * Stops scheduling updates and waits briefly for the ones in progress to finish, so that
+     * none of them touches the database after it's closed.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            registeredViews.clear();
+            pendingViews.clear();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(Log.TAG_VIEW, "%s: view updates still running after close", database);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(final View view) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runUpdate(view);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingViews.remove(view);
+        }
+    }
+
+    private void runUpdate(View view) {
+        synchronized (this) {
+            if (closed || !pendingViews.contains(view) || runningViews.contains(view)) {
+                // (if another thread is updating the view, it resubmits it when it's done)
+                return;
+            }
+            pendingViews.remove(view);
+            runningViews.add(view);
+        }
+        try {
+            if (view.getDatabase() != null && view.getMap() != null
+                    && view.getLastSequenceIndexed() < database.getLastSequenceNumber()) {
+                view.updateIndex();
+            }
+        } catch (CouchbaseLiteException e) {
+            Log.e(Log.TAG_VIEW, "Error updating index of view %s in the background", e, view.getName());
+        } catch (Exception e) {
+            Log.e(Log.TAG_VIEW, "Unexpected error updating index of view %s in the background", e, view.getName());
+        } finally {
+            finishedUpdate(view);
+        }
+    }
+
+    private synchronized void finishedUpdate(View view) {
+        runningViews.remove(view);
+        notifyAll();
+        if (pendingViews.contains(view) && !closed) {
+            submit(view);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package com.couchbase.lite.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -31,8 +32,11 @@ import com.couchbase.lite.Manager;
  */
 public class Body {
 
+    private static final byte[] NULL_JSON = {'n', 'u', 'l', 'l'};
+
     private byte[] json;
     private Object object;
+    private boolean jsonValid;
 
     public Body(byte[] json) {
         this.json = json;
@@ -56,6 +60,42 @@ public class Body {
         return result;
     }
 
+    /**
+     * Creates a body from JSON that's known to be well-formed, such as a revision read from
+     * the database, so that isValidJSON() doesn't have to parse it.
+     */
+    public static Body bodyWithValidJSON(byte[] json) {
+        Body result = new Body(json);
+        result.jsonValid = true;
+        return result;
+    }
+
+    /**
+     * Joins already-serialized JSON values into a JSON array, byte for byte. A null item is
+     * written as JSON null.
+     */
+    public static Body bodyWithJSONArray(List<byte[]> items) {
+        int length = 2;
+        for (byte[] item : items) {
+            length += (item != null ? item.length : 4) + 1;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        out.write('[');
+        boolean first = true;
+        for (byte[] item : items) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (item == null) {
+                item = NULL_JSON;
+            }
+            out.write(item, 0, item.length);
+        }
+        out.write(']');
+        return bodyWithValidJSON(out.toByteArray());
+    }
+
     public byte[] getJson() {
         if (json == null) {
             lazyLoadJsonFromObject();
@@ -68,7 +108,7 @@ public class Body {
             throw new IllegalStateException("Both json and object are null for this body: " + this);
         }
         try {
-            json = Manager.getObjectMapper().writeValueAsBytes(object);
+            json = Manager.getJsonCodec().encode(object);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -86,20 +126,23 @@ public class Body {
             throw new IllegalStateException("Both object and json are null for this body: " + this);
         }
         try {
-            object = Manager.getObjectMapper().readValue(json, Object.class);
+            object = Manager.getJsonCodec().decode(json, Object.class);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public boolean isValidJSON() {
+        if (object == null && jsonValid && json != null) {
+            return true;
+        }
         if (object == null) {
             boolean gotException = false;
             if (json == null) {
                 throw new IllegalStateException("Both object and json are null for this body: " + this);
             }
             try {
-                object = Manager.getObjectMapper().readValue(json, Object.class);
+                object = Manager.getJsonCodec().decode(json, Object.class);
             } catch (IOException e) {
             }
         }
@@ -80,11 +80,15 @@ public class ChangeTracker implements Runnable {
     private boolean usePOST;
     private int heartBeatSeconds;
     private int limit;
+    private int pageSize;  // limit for OneShot requests; 0 to read the whole feed at once
     private boolean caughtUp = false;
     private boolean continuous = false;  // is enclosing replication continuous?
 
     private Authenticator authenticator;
 
+    private final Object pauseLock = new Object();
+    private boolean paused;  // guarded by pauseLock
+
     public enum ChangeTrackerMode {
         OneShot,
         LongPoll,
@@ -111,6 +115,29 @@ public class ChangeTracker implements Runnable {
         this.continuous = continuous;
     }
 
+    /**
+     * Makes OneShot mode read the feed in pages of at most this many changes, each request
+     * starting after the last sequence received. The client can only pause the tracker
+     * between requests, so this bounds how much it reads ahead of the client.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The limit to put on the next request, or 0 for none.
+     */
+    private int getRequestLimit() {
+        switch (mode) {
+            case LongPoll:
+                return limit;
+            case OneShot:
+                return pageSize;
+            default:
+                return 0;
+        }
+    }
+
     public void setFilterName(String filterName) {
         this.filterName = filterName;
     }
@@ -161,8 +188,9 @@ public class ChangeTracker implements Runnable {
 
         String path = "_changes?feed=";
         path += getFeed();
-        if (mode == ChangeTrackerMode.LongPoll) {
-            path += String.format("&limit=%s", limit);
+        int requestLimit = getRequestLimit();
+        if (requestLimit > 0) {
+            path += String.format("&limit=%s", requestLimit);
         }
         path += String.format("&heartbeat=%s", getHeartbeatMilliseconds());
 
@@ -250,6 +278,10 @@ public class ChangeTracker implements Runnable {
 
         while (running) {
 
+            if (!waitWhileClientIsBackedUp()) {
+                break;
+            }
+
             URL url = getChangesFeedURL();
             if (usePOST) {
                 HttpPost postRequest = new HttpPost(url.toString());
@@ -347,7 +379,7 @@ public class ChangeTracker implements Runnable {
 
                         if (mode == ChangeTrackerMode.LongPoll) {  // continuous replications
                             Log.v(Log.TAG_CHANGE_TRACKER, "%s: readValue", this);
-                            Map<String, Object> fullBody = Manager.getObjectMapper().readValue(input, Map.class);
+                            Map<String, Object> fullBody = Manager.getJsonCodec().decode(input, Map.class);
                             Log.v(Log.TAG_CHANGE_TRACKER, "%s: /readValue.  fullBody: %s", this, fullBody);
                             boolean responseOK = receivedPollResponse(fullBody);
                             Log.v(Log.TAG_CHANGE_TRACKER, "%s: responseOK: %s", this, responseOK);
@@ -379,16 +411,25 @@ public class ChangeTracker implements Runnable {
                                 // ignore these tokens
                             }
 
+                            int requestLimit = getRequestLimit();
+                            int numChanges = 0;
                             while (jp.nextToken() == JsonToken.START_OBJECT) {
-                                Map<String, Object> change = (Map) Manager.getObjectMapper().readValue(jp, Map.class);
+                                Map<String, Object> change = Manager.getJsonCodec().decode(jp, Map.class);
                                 if (!receivedChange(change)) {
                                     Log.w(Log.TAG_CHANGE_TRACKER, "Received unparseable change line from server: %s", change);
                                 }
-
+                                numChanges++;
                             }
 
                             Log.v(Log.TAG_CHANGE_TRACKER, "%s: /readValue (oneshot)", this);
 
+                            if (requestLimit > 0 && numChanges >= requestLimit) {
+                                // a full page; there may be more, starting after the last one received
+                                Log.v(Log.TAG_CHANGE_TRACKER, "%s: Got a full page of %d changes, requesting the next", this, numChanges);
+                                backoff.resetBackoff();
+                                continue;
+                            }
+
                             if (!caughtUp) {
                                 caughtUp = true;
                                 client.changeTrackerCaughtUp();
@@ -432,6 +473,52 @@ public class ChangeTracker implements Runnable {
         Log.v(Log.TAG_CHANGE_TRACKER, "%s: Change tracker run loop exiting", this);
     }
 
+    /**
+     * Waits while the client says it's too far behind to take more changes, if it implements
+     * ChangeTrackerFlowControl. The client wakes the tracker with clientBacklogChanged().
+     * @return false if the tracker was stopped while waiting.
+     */
+    private boolean waitWhileClientIsBackedUp() {
+        ChangeTrackerClient client = this.client;
+        if (!(client instanceof ChangeTrackerFlowControl)) {
+            return running;
+        }
+        ChangeTrackerFlowControl flowControl = (ChangeTrackerFlowControl) client;
+        synchronized (pauseLock) {
+            try {
+                while (running && flowControl.changeTrackerShouldPause()) {
+                    if (!paused) {
+                        Log.v(Log.TAG_CHANGE_TRACKER, "%s: Pausing, client is backed up", this);
+                        paused = true;
+                    }
+                    pauseLock.wait();
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts us
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                if (paused) {
+                    Log.v(Log.TAG_CHANGE_TRACKER, "%s: Resuming, client has caught up", this);
+                    paused = false;
+                }
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Tells a tracker paused by its ChangeTrackerFlowControl client to ask it again whether it
+     * may go on. Called by the client whenever its backlog shrinks; cheap if not paused.
+     */
+    public void clientBacklogChanged() {
+        synchronized (pauseLock) {
+            if (paused) {
+                pauseLock.notifyAll();
+            }
+        }
+    }
+
     public boolean receivedChange(final Map<String,Object> change) {
         Object seq = change.get("seq");
         if(seq == null) {
@@ -586,8 +673,9 @@ public class ChangeTracker implements Runnable {
             }
         }
 
-        if (mode == ChangeTrackerMode.LongPoll && limit > 0) {
-            post.put("limit", limit);
+        int requestLimit = getRequestLimit();
+        if (requestLimit > 0) {
+            post.put("limit", requestLimit);
         } else {
             post.put("limit", null);
         }
@@ -0,0 +1,21 @@
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * Optionally implemented by a ChangeTrackerClient that wants to hold the tracker back while
+ * it's too far behind processing the changes it has already been sent.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public interface ChangeTrackerFlowControl {
+
+    /**
+     * Called by the tracker before each request for more changes, on its own thread. While
+     * this returns true the tracker waits instead of reading more; the client calls
+     * ChangeTracker.clientBacklogChanged() when the answer may have changed.
+     */
+    boolean changeTrackerShouldPause();
+
+}
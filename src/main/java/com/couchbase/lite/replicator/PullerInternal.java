@@ -3,6 +3,7 @@ package com.couchbase.lite.replicator;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
 import com.couchbase.lite.Misc;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
@@ -22,6 +23,8 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -35,6 +38,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Pull Replication
@@ -42,7 +46,7 @@ import java.util.concurrent.TimeUnit;
  * @exclude
  */
 @InterfaceAudience.Private
-public class PullerInternal extends ReplicationInternal implements ChangeTrackerClient{
+public class PullerInternal extends ReplicationInternal implements ChangeTrackerClient, ChangeTrackerFlowControl {
 
     private static final int MAX_OPEN_HTTP_CONNECTIONS = 16;
 
@@ -63,6 +67,12 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     protected int httpConnectionCount;
     protected Batcher<RevisionInternal> downloadsToInsert;
 
+    // flow control: the change tracker pauses while too much is waiting downstream of it
+    private int maxPendingDownloads;
+    private int maxPendingInserts;
+    private final AtomicInteger changesAwaitingProcessing = new AtomicInteger();
+    private volatile int revsAwaitingDownload;  // updated whenever the download queues change
+
     public PullerInternal(Database db, URL remote, HttpClientFactory clientFactory, ScheduledExecutorService workExecutor, Replication.Lifecycle lifecycle, Replication parentReplication) {
         super(db, remote, clientFactory, workExecutor, lifecycle, parentReplication);
     }
@@ -92,6 +102,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 @Override
                 public void process(List<RevisionInternal> inbox) {
                     insertDownloads(inbox);
+                    downloadBacklogChanged();
                 }
             });
         }
@@ -115,8 +126,16 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         // it will switch to longpoll later.
         changeTrackerMode = ChangeTracker.ChangeTrackerMode.OneShot;
 
+        ManagerOptions options = db.getManager().getOptions();
+        if (options == null) {
+            options = new ManagerOptions();
+        }
+        maxPendingDownloads = options.getMaxPendingDownloads();
+        maxPendingInserts = options.getMaxPendingInserts();
+
         Log.w(Log.TAG_SYNC, "%s: starting ChangeTracker with since=%s mode=%s", this, lastSequence, changeTrackerMode);
         changeTracker = new ChangeTracker(remote, changeTrackerMode, true, lastSequence, this);
+        changeTracker.setPageSize(options.getChangesFeedPageSize());
         changeTracker.setAuthenticator(getAuthenticator());
         Log.w(Log.TAG_SYNC, "%s: started ChangeTracker %s", this, changeTracker);
 
@@ -169,7 +188,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         }
 
         if (numRevisionsRemoved > 0) {
-            Log.v(Log.TAG_SYNC, "%s: processInbox() setting changesCount to: %s", this, getChangesCount().get() - numRevisionsRemoved);
+            if (Log.isLoggingEnabled(Log.TAG_SYNC, Log.VERBOSE)) {
+                Log.v(Log.TAG_SYNC, "%s: processInbox() setting changesCount to: %s", this, getChangesCount().get() - numRevisionsRemoved);
+            }
             // May decrease the changesCount, to account for the revisions we just found out we don’t need to get.
             addToChangesCount(-1 * numRevisionsRemoved);
         }
@@ -180,10 +201,13 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             long seq = pendingSequences.addValue(lastInboxSequence);
             pendingSequences.removeSequence(seq);
             setLastSequence(pendingSequences.getCheckpointedValue());
+            downloadBacklogChanged();
             return;
         }
 
-        Log.v(Log.TAG_SYNC, "%s: fetching %s remote revisions...", this, inboxCount);
+        if (Log.isLoggingEnabled(Log.TAG_SYNC, Log.VERBOSE)) {
+            Log.v(Log.TAG_SYNC, "%s: fetching %s remote revisions...", this, inboxCount);
+        }
 
         // Dump the revs into the queue of revs to pull from the remote db:
         int numBulked = 0;
@@ -250,6 +274,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 queue.remove(0);
             }
         }
+        updateRevsAwaitingDownload();
+        downloadBacklogChanged();
 
         //actually run it outside the synchronized block
         if(bulkWorkToStartNow.size() > 0) {
@@ -261,6 +287,24 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         }
     }
 
+    private void updateRevsAwaitingDownload() {
+        revsAwaitingDownload = sizeOf(bulkRevsToPull) + sizeOf(revsToPull) + sizeOf(deletedRevsToPull);
+    }
+
+    private static int sizeOf(List<RevisionInternal> revs) {
+        return revs == null ? 0 : revs.size();
+    }
+
+    /**
+     * Lets a change tracker paused by changeTrackerShouldPause() check again whether it may go on.
+     */
+    private void downloadBacklogChanged() {
+        ChangeTracker tracker = changeTracker;
+        if (tracker != null) {
+            tracker.clientBacklogChanged();
+        }
+    }
+
     // Get a bunch of revisions in one bulk request. Will use _bulk_get if possible.
     protected void pullBulkRevisions(List<RevisionInternal> bulkRevs) {
 
@@ -353,20 +397,45 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     private void queueDownloadedRevision(RevisionInternal rev) {
 
         if (revisionBodyTransformationBlock != null) {
-            // Add 'file' properties to attachments pointing to their bodies:
+            // Add 'file' properties to attachments pointing to their bodies. A blob that's
+            // gzipped at rest is decoded into a temporary file, deleted after the transformation:
+            List<File> tempFiles = new ArrayList<File>();
 
             for (Map.Entry<String, Map<String, Object>> entry : ((Map<String, Map<String, Object>>) rev.getProperties().get("_attachments")).entrySet()) {
                 String name = entry.getKey();
                 Map<String, Object> attachment = entry.getValue();
                 attachment.remove("file");
                 if (attachment.get("follows") != null && attachment.get("data") == null) {
-                    String filePath = db.fileForAttachmentDict(attachment).getPath();
+                    String filePath = null;
+                    if (db.isAttachmentCompressedAtRest(attachment)) {
+                        try {
+                            File tempFile = db.copyAttachmentToTempFile(attachment);
+                            if (tempFile != null) {
+                                tempFiles.add(tempFile);
+                                filePath = tempFile.getPath();
+                            }
+                        } catch (IOException e) {
+                            Log.w(Log.TAG_SYNC, "%s: Unable to decode attachment '%s' of %s", e, this, name, rev);
+                        }
+                    } else {
+                        URL fileURL = db.fileForAttachmentDict(attachment);
+                        if (fileURL != null) {
+                            filePath = fileURL.getPath();
+                        }
+                    }
                     if (filePath != null)
                         attachment.put("file", filePath);
                 }
             }
 
-            RevisionInternal xformed = transformRevision(rev);
+            RevisionInternal xformed;
+            try {
+                xformed = transformRevision(rev);
+            } finally {
+                for (File tempFile : tempFiles) {
+                    tempFile.delete();
+                }
+            }
             if (xformed == null) {
                 Log.v(Log.TAG_SYNC, "%s: Transformer rejected revision %s", this, rev);
                 pendingSequences.removeSequence(rev.getSequence());
@@ -668,6 +737,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 revsToPull = new ArrayList<RevisionInternal>(100);
             revsToPull.add(rev);
         }
+        updateRevsAwaitingDownload();
     }
 
 
@@ -708,6 +778,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         // this callback will be on the changetracker thread, but we need
         // to do the work on the replicator thread.
+        changesAwaitingProcessing.incrementAndGet();
         workExecutor.submit(new Runnable() {
             @Override
             public void run() {
@@ -718,11 +789,33 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                     Log.e(Log.TAG_SYNC, "Error processChangeTrackerChange(): %s", e);
                     e.printStackTrace();
                     throw new RuntimeException(e);
+                } finally {
+                    changesAwaitingProcessing.decrementAndGet();
+                    downloadBacklogChanged();
                 }
             }
         });
     }
 
+    /**
+     * Pauses the change tracker while more than maxPendingDownloads revisions are waiting to be
+     * downloaded (whether still in the batcher or in the download queues), or more than
+     * maxPendingInserts downloaded revisions are waiting to be inserted.
+     */
+    @Override
+    public boolean changeTrackerShouldPause() {
+        if (maxPendingDownloads > 0) {
+            int pendingDownloads = changesAwaitingProcessing.get() + revsAwaitingDownload;
+            if (batcher != null) {
+                pendingDownloads += batcher.count();
+            }
+            if (pendingDownloads > maxPendingDownloads) {
+                return true;
+            }
+        }
+        return maxPendingInserts > 0 && downloadsToInsert != null && downloadsToInsert.count() > maxPendingInserts;
+    }
+
     protected void processChangeTrackerChange(final Map<String, Object> change) {
 
         String lastSequence = change.get("seq").toString();
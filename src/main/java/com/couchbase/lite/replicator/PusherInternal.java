@@ -10,21 +10,28 @@ import com.couchbase.lite.Manager;
 import com.couchbase.lite.ReplicationFilter;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
+import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.RemoteRequestCompletionBlock;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.StreamUtils;
 import com.couchbase.lite.util.URIUtils;
+import com.couchbase.org.apache.http.entity.mime.MIME;
 import com.couchbase.org.apache.http.entity.mime.MultipartEntity;
+import com.couchbase.org.apache.http.entity.mime.content.AbstractContentBody;
 import com.couchbase.org.apache.http.entity.mime.content.FileBody;
 import com.couchbase.org.apache.http.entity.mime.content.StringBody;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpResponseException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -399,17 +406,28 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                         RevisionInternal loadedRev;
                         try {
                             loadedRev = db.loadRevisionBody(rev, contentOptions);
-                            properties = new HashMap<String,Object>(rev.getProperties());
                         } catch (CouchbaseLiteException e1) {
                             Log.w(Log.TAG_SYNC, "%s Couldn't get local contents of %s", rev, PusherInternal.this);
                             revisionFailed();
                             continue;
                         }
 
-                        RevisionInternal populatedRev = transformRevision(loadedRev);
-
                         List<String> possibleAncestors = (List<String>)revResults.get("possible_ancestors");
 
+                        if (revisionBodyTransformationBlock == null && !db.sequenceHasAttachments(loadedRev.getSequence())) {
+                            // Nothing to transform or stub out, so send the stored JSON as is,
+                            // with the revision history spliced in
+                            Map<String,Object> revisions = db.getRevisionHistoryDictStartingFromAnyAncestor(loadedRev, possibleAncestors);
+                            byte[] json = db.appendDictToJSON(loadedRev.getJson(), Collections.<String,Object>singletonMap("_revisions", revisions));
+                            if (json != null) {
+                                revsToSend.add(rev);
+                                docsToSend.add(Body.bodyWithValidJSON(json));
+                                continue;
+                            }
+                        }
+
+                        RevisionInternal populatedRev = transformRevision(loadedRev);
+
                         properties = new HashMap<String,Object>(populatedRev.getProperties());
                         Map<String,Object> revisions = db.getRevisionHistoryDictStartingFromAnyAncestor(populatedRev, possibleAncestors);
                         properties.put("_revisions",revisions);
@@ -481,9 +499,15 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         Log.v(Log.TAG_SYNC, "%s: POSTing " + numDocsToSend + " revisions to _bulk_docs: %s", PusherInternal.this, docsToSend);
         addToChangesCount(numDocsToSend);
 
-        Map<String,Object> bulkDocsBody = new HashMap<String,Object>();
-        bulkDocsBody.put("docs", docsToSend);
-        bulkDocsBody.put("new_edits", false);
+        Body bulkDocsBody;
+        try {
+            bulkDocsBody = bulkDocsBody(docsToSend);
+        } catch (IOException e) {
+            Log.e(Log.TAG_SYNC, "%s: Error serializing _bulk_docs body", e, this);
+            setError(e);
+            revisionFailed();
+            return;
+        }
 
         Future future = sendAsyncRequest("POST", "/_bulk_docs", bulkDocsBody, new RemoteRequestCompletionBlock() {
 
@@ -533,6 +557,29 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
 
     }
 
+    /**
+     * Builds the JSON of a _bulk_docs request. Documents given as a Body (already serialized)
+     * are copied into it without being parsed; others are serialized.
+     */
+    private static Body bulkDocsBody(List<Object> docsToSend) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("{\"new_edits\":false,\"docs\":[".getBytes());
+        boolean first = true;
+        for (Object doc : docsToSend) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (doc instanceof Body) {
+                out.write(((Body) doc).getJson());
+            } else {
+                out.write(Manager.getJsonCodec().encode(doc));
+            }
+        }
+        out.write("]}".getBytes());
+        return Body.bodyWithValidJSON(out.toByteArray());
+    }
+
     @InterfaceAudience.Private
     private boolean uploadMultipartRevision(final RevisionInternal revision) {
 
@@ -590,8 +637,13 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
                                 " issue #80): %s", attachment);
                     }
 
-                    FileBody fileBody = new FileBody(file, contentType);
-                    multiPart.addPart(attachmentKey, fileBody);
+                    if (BlobStore.isCompressedPath(path)) {
+                        // Stored gzipped at rest; upload the decoded bytes
+                        multiPart.addPart(attachmentKey, new BlobBody(blobStore, blobKey, contentType, file.getName()));
+                    } else {
+                        FileBody fileBody = new FileBody(file, contentType);
+                        multiPart.addPart(attachmentKey, fileBody);
+                    }
                 }
 
             }
@@ -698,4 +750,51 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
 
 
 
+    /**
+     * Multipart body for a blob that is compressed at rest. The blob is reopened every time the
+     * body is written, so the request can be retried.
+     */
+    private static class BlobBody extends AbstractContentBody {
+
+        private final BlobStore blobStore;
+        private final BlobKey blobKey;
+        private final String filename;
+
+        public BlobBody(BlobStore blobStore, BlobKey blobKey, String mimeType, String filename) {
+            super(mimeType != null ? mimeType : "application/octet-stream");
+            this.blobStore = blobStore;
+            this.blobKey = blobKey;
+            this.filename = filename;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = blobStore.blobStreamForKey(blobKey);
+            if (in == null) {
+                throw new IOException("Unable to open blob " + blobKey);
+            }
+            try {
+                StreamUtils.copyStream(in, out);
+                out.flush();
+            } finally {
+                in.close();
+            }
+        }
+
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        public String getCharset() {
+            return null;
+        }
+
+        public long getContentLength() {
+            return blobStore.getSizeOfBlob(blobKey);
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+    }
+
 }
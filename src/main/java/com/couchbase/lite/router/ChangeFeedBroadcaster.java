@@ -0,0 +1,363 @@
+package com.couchbase.lite.router;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.DocumentChange;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.ReplicationFilter;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans a database's changes out to the clients of its continuous and longpoll _changes feeds.
+ *
+ * The broadcaster is the database's only change listener on behalf of those clients. Each
+ * change is serialized once, on the thread that posted it, into a ring buffer shared by all
+ * of the database's feed clients; each client then has its own cursor into the buffer and
+ * is sent the changes by a writer task on a small pool shared by all feeds, so a slow client
+ * never holds up the database. A client's task is submitted when changes are posted, and
+ * returns its thread to the pool once the client is caught up, or after a batch of changes so
+ * that busy feeds take turns. A client that falls more than ManagerOptions.getMaxChangeFeedBacklog()
+ * changes behind is dealt with according to ManagerOptions.getChangeFeedOverflowPolicy().
+ *
+ * A broadcaster exists while its database has feed clients, and stops listening to the
+ * database when the last of them goes away.
+ */
+final class ChangeFeedBroadcaster implements Database.ChangeListener {
+
+    // guarded by ChangeFeedBroadcaster.class
+    private static final Map<Database, ChangeFeedBroadcaster> broadcasters =
+            new HashMap<Database, ChangeFeedBroadcaster>();
+
+    /**
+     * The most threads writing to feed clients at once, and the most entries one client's task
+     * goes through before letting the others have a turn.
+     */
+    private static final int MAX_WRITER_THREADS = 4;
+    private static final int MAX_ENTRIES_PER_RUN = 100;
+
+    private static final ThreadPoolExecutor writerExecutor;
+    static {
+        writerExecutor = new ThreadPoolExecutor(MAX_WRITER_THREADS, MAX_WRITER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int counter = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CBLChangeFeed-" + (++counter));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        writerExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final Database database;
+    private final int maxBacklog;
+    private final ManagerOptions.ChangeFeedOverflowPolicy overflowPolicy;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    // guarded by this
+    private final Entry[] ring;
+    private long head;  // position of the next entry to be added to the ring
+    private int filteredSubscribers;  // subscribers with a filter
+    private int includeDocsSubscribers;  // subscribers that are sent the documents
+
+    private ChangeFeedBroadcaster(Database database, ManagerOptions options) {
+        this.database = database;
+        this.ring = new Entry[options.getChangeFeedBufferSize()];
+        this.maxBacklog = Math.min(options.getMaxChangeFeedBacklog(), ring.length);
+        this.overflowPolicy = options.getChangeFeedOverflowPolicy();
+    }
+
+    /**
+     * Adds a feed client that'll be sent the database's changes on the given stream, starting
+     * with the next change posted. The client isn't sent anything until Subscriber.start() is
+     * called, so it can be subscribed before the changes it's already been sent were looked up.
+     */
+    static synchronized Subscriber subscribe(Database database, OutputStream os, ReplicationFilter filter,
+                                             boolean includeDocs, boolean longpoll) {
+        ChangeFeedBroadcaster broadcaster = broadcasters.get(database);
+        if (broadcaster == null) {
+            ManagerOptions options = database.getManager().getOptions();
+            if (options == null) {
+                options = new ManagerOptions();
+            }
+            broadcaster = new ChangeFeedBroadcaster(database, options);
+            broadcasters.put(database, broadcaster);
+            database.addChangeListener(broadcaster);
+        }
+        Subscriber subscriber;
+        synchronized (broadcaster) {
+            subscriber = broadcaster.new Subscriber(os, filter, includeDocs, longpoll, broadcaster.head);
+            broadcaster.subscribers.add(subscriber);
+            if (filter != null) {
+                broadcaster.filteredSubscribers++;
+            }
+            if (includeDocs) {
+                broadcaster.includeDocsSubscribers++;
+            }
+        }
+        return subscriber;
+    }
+
+    private static synchronized void unsubscribe(ChangeFeedBroadcaster broadcaster, Subscriber subscriber) {
+        synchronized (broadcaster) {
+            if (broadcaster.subscribers.remove(subscriber)) {
+                if (subscriber.filter != null) {
+                    broadcaster.filteredSubscribers--;
+                }
+                if (subscriber.includeDocs) {
+                    broadcaster.includeDocsSubscribers--;
+                }
+            }
+        }
+        if (broadcaster.subscribers.isEmpty() && broadcasters.get(broadcaster.database) == broadcaster) {
+            broadcasters.remove(broadcaster.database);
+            broadcaster.database.removeChangeListener(broadcaster);
+        }
+    }
+
+    @Override
+    public void changed(Database.ChangeEvent event) {
+        for (DocumentChange change : event.getChanges()) {
+            RevisionInternal rev = change.getAddedRevision();
+            if (rev == null) {
+                continue;
+            }
+            byte[] json = serialize(rev, false);
+            if (json == null) {
+                continue;
+            }
+            synchronized (this) {
+                // Only the clients subscribed now will see this entry, so the revision's body
+                // is only kept if one of them will filter on it or be sent the document
+                boolean keepBody = filteredSubscribers > 0 || includeDocsSubscribers > 0;
+                ring[(int) (head % ring.length)] = new Entry(rev.getSequence(), json, keepBody ? rev : null);
+                head++;
+            }
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.signal();
+        }
+    }
+
+    private static byte[] serialize(RevisionInternal rev, boolean includeDocs) {
+        try {
+            return Manager.getJsonCodec().encode(Router.changesDictForRevision(rev, includeDocs));
+        } catch (Exception e) {
+            Log.w(Log.TAG_ROUTER, "Unable to serialize change to JSON", e);
+            return null;
+        }
+    }
+
+    /**
+     * A change in the ring buffer: its sequence and JSON, plus the revision with its body if a
+     * client was subscribed that filters changes or is sent the documents. The JSON with the
+     * document included is only produced if a client asks for it, and then only once.
+     */
+    private static final class Entry {
+        final long sequence;
+        final byte[] json;
+        final RevisionInternal rev;  // null if no client needs the body
+        private byte[] jsonWithDoc;
+
+        Entry(long sequence, byte[] json, RevisionInternal rev) {
+            this.sequence = sequence;
+            this.json = json;
+            this.rev = rev;
+        }
+
+        synchronized byte[] getJSON(boolean includeDocs) {
+            if (!includeDocs) {
+                return json;
+            }
+            if (jsonWithDoc == null && rev != null) {
+                jsonWithDoc = serialize(rev, true);
+            }
+            return jsonWithDoc;
+        }
+    }
+
+    /**
+     * One feed client: its position in the ring buffer, and the task that sends it what's
+     * between there and the head of the buffer. The task is queued on the writer pool when it's
+     * signaled, unless it's already queued or running.
+     */
+    final class Subscriber implements Runnable {
+        private final OutputStream os;
+        private final ReplicationFilter filter;
+        private final boolean includeDocs;
+        private final boolean longpoll;
+        private volatile boolean closed;
+        private boolean started;  // guarded by this
+        private boolean signaled;  // guarded by this; set when there may be new entries
+        private boolean scheduled;  // guarded by this; set while the task is queued or running
+        private long cursor;  // guarded by the broadcaster
+        private long lastSequenceSent;  // only used by the writer task
+        private long dropped;
+
+        private Subscriber(OutputStream os, ReplicationFilter filter, boolean includeDocs,
+                           boolean longpoll, long cursor) {
+            this.os = os;
+            this.filter = filter;
+            this.includeDocs = includeDocs;
+            this.longpoll = longpoll;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Starts sending changes, skipping any with a sequence up to the given one (which
+         * the client has already been sent).
+         */
+        void start(long lastSequenceSent) {
+            synchronized (this) {
+                if (started || closed) {
+                    return;
+                }
+                this.lastSequenceSent = lastSequenceSent;
+                started = true;
+            }
+            signal();
+        }
+
+        /**
+         * Stops sending changes, leaving the response open for something else to be written.
+         */
+        void cancel() {
+            if (!closed) {
+                closed = true;
+                unsubscribe(ChangeFeedBroadcaster.this, this);
+            }
+        }
+
+        /**
+         * Stops sending changes and ends the response.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            cancel();
+            try {
+                os.close();
+            } catch (IOException e) {
+                Log.w(Log.TAG_ROUTER, "Error closing _changes feed", e);
+            }
+        }
+
+        private synchronized void signal() {
+            signaled = true;
+            if (started && !scheduled && !closed) {
+                scheduled = true;
+                writerExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Called by the task once it's caught up. Returns true if it should return its thread
+         * to the pool, or false if it was signaled meanwhile and has to look again.
+         */
+        private synchronized boolean finishRun() {
+            if (signaled && !closed) {
+                signaled = false;
+                return false;
+            }
+            scheduled = false;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int n = 0; n < MAX_ENTRIES_PER_RUN; n++) {
+                    if (closed) {
+                        return;
+                    }
+                    Entry entry = nextEntry();
+                    if (entry == null) {
+                        os.flush();
+                        if (finishRun()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (entry.sequence <= lastSequenceSent) {
+                        continue;
+                    }
+                    if (filter != null && (entry.rev == null || !database.runFilter(filter, null, entry.rev))) {
+                        continue;
+                    }
+                    byte[] json = entry.getJSON(includeDocs);
+                    if (json == null) {
+                        continue;
+                    }
+                    if (longpoll) {
+                        Log.v(Log.TAG_ROUTER, "Sending longpoll response");
+                        os.write(("{\"results\":[").getBytes());
+                        os.write(json);
+                        os.write(("],\"last_seq\":" + entry.sequence + "}").getBytes());
+                        close();
+                        return;
+                    }
+                    os.write(json);
+                    os.write(NEWLINE);
+                    lastSequenceSent = entry.sequence;
+                }
+                // Still behind after a full batch: go to the back of the queue
+                if (!closed) {
+                    os.flush();
+                    writerExecutor.execute(this);
+                }
+            } catch (IOException e) {
+                Log.w(Log.TAG_ROUTER, "Error writing to _changes feed; closing it", e);
+                close();
+            } catch (Exception e) {
+                Log.e(Log.TAG_ROUTER, "Unexpected error writing to _changes feed; closing it", e);
+                close();
+            }
+        }
+
+        /**
+         * Returns the next entry to send, or null if the client is caught up or has been
+         * disconnected for falling behind.
+         */
+        private Entry nextEntry() {
+            boolean disconnect = false;
+            synchronized (ChangeFeedBroadcaster.this) {
+                long backlog = head - cursor;
+                if (backlog > maxBacklog) {
+                    if (overflowPolicy == ManagerOptions.ChangeFeedOverflowPolicy.DISCONNECT) {
+                        Log.w(Log.TAG_ROUTER, "_changes feed client is %d changes behind; disconnecting it", backlog);
+                        disconnect = true;
+                    } else {
+                        dropped += backlog - maxBacklog;
+                        Log.w(Log.TAG_ROUTER, "_changes feed client is %d changes behind; dropped %d so far",
+                                backlog, dropped);
+                        cursor = head - maxBacklog;
+                    }
+                }
+                if (!disconnect) {
+                    if (cursor < head) {
+                        return ring[(int) (cursor++ % ring.length)];
+                    }
+                    // A change added after this is seen by the signal() that follows it
+                    return null;
+                }
+            }
+            close();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.couchbase.lite.router;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Carries a streamed response from the router thread writing it to the thread reading it,
+ * through a ring buffer of fixed capacity.
+ *
+ * It replaces a PipedInputStream/PipedOutputStream pair, whose buffer is only 1K and whose
+ * threads poll each other with timed waits. Here whole arrays are copied in and out of the
+ * buffer at once, and a side blocked on a full or empty buffer is woken up as soon as the
+ * other side has made room or written something.
+ */
+final class ResponsePipe {
+
+    private final byte[] buffer;
+
+    // all guarded by this
+    private int readPos;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    private final InputStream inputStream = new PipeInputStream();
+    private final OutputStream outputStream = new PipeOutputStream();
+
+    ResponsePipe(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.buffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (count == buffer.length && !readerClosed && !writerClosed) {
+                await();
+            }
+            if (writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+            int writePos = (readPos + count) % buffer.length;
+            int n = Math.min(len, buffer.length - count);
+            int first = Math.min(n, buffer.length - writePos);
+            System.arraycopy(b, off, buffer, writePos, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+            boolean wasEmpty = (count == 0);
+            count += n;
+            off += n;
+            len -= n;
+            if (wasEmpty) {
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (count == 0 && !writerClosed && !readerClosed) {
+            await();
+        }
+        if (readerClosed) {
+            throw new IOException("Pipe closed");
+        }
+        if (count == 0) {
+            return -1;
+        }
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - readPos);
+        System.arraycopy(buffer, readPos, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        boolean wasFull = (count == buffer.length);
+        readPos = (readPos + n) % buffer.length;
+        count -= n;
+        if (wasFull) {
+            notifyAll();
+        }
+        return n;
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            ResponsePipe.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            ResponsePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            synchronized (ResponsePipe.this) {
+                writerClosed = true;
+                ResponsePipe.this.notifyAll();
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = ResponsePipe.this.read(b, 0, 1);
+            return (n < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return ResponsePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (ResponsePipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (ResponsePipe.this) {
+                readerClosed = true;
+                count = 0;
+                ResponsePipe.this.notifyAll();
+            }
+        }
+    }
+}
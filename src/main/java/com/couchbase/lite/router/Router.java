@@ -4,6 +4,7 @@ package com.couchbase.lite.router;
 import com.couchbase.lite.AsyncTask;
 import com.couchbase.lite.Attachment;
 import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.BuiltinReducer;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
@@ -12,6 +13,7 @@ import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Mapper;
 import com.couchbase.lite.Misc;
+import com.couchbase.lite.QueryEnumerator;
 import com.couchbase.lite.QueryOptions;
 import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.Reducer;
@@ -33,6 +35,8 @@ import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
 
 import org.apache.http.client.HttpResponseException;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -53,12 +57,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 
-public class Router implements Database.ChangeListener {
+public class Router {
 
     private Manager manager;
     private Database db;
@@ -69,7 +76,21 @@ public class Router implements Database.ChangeListener {
     private boolean responseSent = false;
     private boolean waiting = false;
     private ReplicationFilter changesFilter;
-    private boolean longpoll = false;
+    private ChangeFeedBroadcaster.Subscriber changesFeed;
+    private boolean responseStreamed = false;
+
+    /**
+     * Writes the bodies of streamed responses. Each writer only lives as long as its response.
+     */
+    private static final ExecutorService streamingExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int counter = 0;
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CBLRouterStreaming-" + (++counter));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public static String getVersionString() {
         return Version.getVersion();
@@ -165,7 +186,7 @@ public class Router implements Database.ChangeListener {
     public Map<String,Object> getBodyAsDictionary() {
         try {
             InputStream contentStream = connection.getRequestInputStream();
-            Map<String,Object> bodyMap = Manager.getObjectMapper().readValue(contentStream, Map.class);
+            Map<String,Object> bodyMap = Manager.getJsonCodec().decode(contentStream, Map.class);
             return bodyMap;
         } catch (IOException e) {
             Log.w(Log.TAG_ROUTER, "WARNING: Exception parsing body into dictionary", e);
@@ -499,6 +520,11 @@ public class Router implements Database.ChangeListener {
             }
         }
 
+        if(responseStreamed) {
+            // The handler already sent the headers and wrote the body itself
+            return;
+        }
+
         // Configure response headers:
         if(status.isSuccessful() && connection.getResponseBody() == null && connection.getHeaderField("Content-Type") == null) {
             connection.setResponseBody(new Body("{\"ok\":true}".getBytes()));
@@ -521,16 +547,11 @@ public class Router implements Database.ChangeListener {
         }
 
         // Check for a mismatch between the Accept request header and the response type:
-        String accept = connection.getRequestProperty("Accept");
-        if(accept != null && !"*/*".equals(accept)) {
-            String responseType = connection.getBaseContentType();
-            if(responseType != null && accept.indexOf(responseType) < 0) {
-                Log.e(Log.TAG_ROUTER, "Error 406: Can't satisfy request Accept: %s", accept);
-                status = new Status(Status.NOT_ACCEPTABLE);
-            }
+        if(!isAcceptable(connection.getBaseContentType())) {
+            status = new Status(Status.NOT_ACCEPTABLE);
         }
 
-        connection.getResHeader().add("Server", String.format("Couchbase Lite %s", getVersionString()));
+        addServerHeader();
 
         // If response is ready (nonzero status), tell my client about it:
         if(status.getCode() != 0) {
@@ -553,8 +574,8 @@ public class Router implements Database.ChangeListener {
 
     public void stop() {
         callbackBlock = null;
-        if(db != null) {
-            db.removeChangeListener(this);
+        if(changesFeed != null) {
+            changesFeed.close();
         }
     }
 
@@ -562,6 +583,76 @@ public class Router implements Database.ChangeListener {
         return new Status(Status.NOT_FOUND);
     }
 
+    /**
+     * Whether the request's Accept header allows a response of the given (base) content type.
+     */
+    private boolean isAcceptable(String responseType) {
+        String accept = connection.getRequestProperty("Accept");
+        if(accept != null && !"*/*".equals(accept)) {
+            if(responseType != null && accept.indexOf(responseType) < 0) {
+                Log.e(Log.TAG_ROUTER, "Error 406: Can't satisfy request Accept: %s", accept);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addServerHeader() {
+        connection.getResHeader().add("Server", String.format("Couchbase Lite %s", getVersionString()));
+    }
+
+    /**
+     * Sends a 200 response whose JSON body is generated while it's written to the connection,
+     * so that large results never have to be held in memory. The body is written on a
+     * separate thread, since the response pipe blocks once its buffer is full and the reader
+     * may be the thread that called start(). Returns a zero status, since the response has
+     * already been sent when this returns, or a 406 (without sending anything) if the client
+     * doesn't accept JSON.
+     */
+    private Status sendStreamingResponse(final StreamingBody body) {
+        if(!isAcceptable("application/json")) {
+            return new Status(Status.NOT_ACCEPTABLE);
+        }
+        connection.getResHeader().add("Content-Type", "application/json");
+        addServerHeader();
+        connection.setChunked(true);
+        connection.setResponseCode(Status.OK);
+        responseStreamed = true;
+        final OutputStream os = connection.getResponseOutputStream();
+        sendResponse();
+
+        streamingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeStreamingBody(body, os);
+            }
+        });
+        return new Status(0);
+    }
+
+    private static void writeStreamingBody(StreamingBody body, OutputStream os) {
+        JsonGenerator generator = null;
+        try {
+            generator = Manager.getObjectMapper().getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+            // If writing fails halfway, leave the JSON unterminated so the client can tell
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            body.writeTo(generator);
+            generator.flush();
+        } catch (Exception e) {
+            // The status line is already out, so all we can do is cut the response short
+            Log.e(Log.TAG_ROUTER, "Error writing streamed response", e);
+        } finally {
+            try {
+                if (generator != null) {
+                    generator.close();
+                }
+                os.close();
+            } catch (IOException e) {
+                Log.e(Log.TAG_ROUTER, "Error closing streamed response", e);
+            }
+        }
+    }
+
     /*************************************************************************************************/
     /*** Router+Handlers                                                                         ***/
     /*************************************************************************************************/
@@ -768,21 +859,6 @@ public class Router implements Database.ChangeListener {
         return new Status(Status.OK);
     }
 
-    /**
-     * This is a hack to deal with the fact that there is currently no custom
-     * serializer for QueryRow.  Instead, just convert everything to generic Maps.
-     */
-    private void convertCBLQueryRowsToMaps(Map<String,Object> allDocsResult) {
-        List<Map<String, Object>> rowsAsMaps = new ArrayList<Map<String, Object>>();
-        List<QueryRow> rows = (List<QueryRow>) allDocsResult.get("rows");
-        if (rows != null) {
-            for (QueryRow row : rows) {
-                rowsAsMaps.add(row.asJSONDictionary());
-            }
-        }
-        allDocsResult.put("rows", rowsAsMaps);
-    }
-
     public Status do_POST_Database(Database _db, String _docID, String _attachmentName) {
         Status status = openDB();
         if(!status.isSuccessful()) {
@@ -800,13 +876,7 @@ public class Router implements Database.ChangeListener {
         if(!getQueryOptions(options)) {
             return new Status(Status.BAD_REQUEST);
         }
-        Map<String,Object> result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
-        if(result == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-        connection.setResponseBody(new Body(result));
-        return new Status(Status.OK);
+        return sendAllDocs(options);
     }
 
     public Status do_POST_Document_all_docs(Database _db, String _docID, String _attachmentName) throws CouchbaseLiteException {
@@ -823,15 +893,39 @@ public class Router implements Database.ChangeListener {
         List<Object> keys = (List<Object>) body.get("keys");
         options.setKeys(keys);
 
-        Map<String, Object> result = null;
-        result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
+        return sendAllDocs(options);
+    }
 
-        if (result == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-        connection.setResponseBody(new Body(result));
-        return new Status(Status.OK);
+    /**
+     * Streams an _all_docs response, writing each row as it's read from the database.
+     */
+    private Status sendAllDocs(final QueryOptions options) throws CouchbaseLiteException {
+        final long updateSeq = options.isUpdateSeq() ? db.getLastSequenceNumber() : 0;
+        final QueryEnumerator rows = db.streamAllDocs(options);
+        return sendStreamingResponse(new StreamingBody() {
+            @Override
+            public void writeTo(JsonGenerator generator) throws IOException {
+                int totalRows = 0;
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("rows");
+                try {
+                    while (rows.hasNext()) {
+                        generator.writeObject(rows.next().asJSONDictionary());
+                        totalRows++;
+                    }
+                } finally {
+                    rows.close();
+                }
+                generator.writeEndArray();
+                // total_rows is only known at the end, which JSON doesn't mind
+                generator.writeNumberField("total_rows", totalRows);
+                generator.writeNumberField("offset", options.getSkip());
+                if (updateSeq != 0) {
+                    generator.writeNumberField("update_seq", updateSeq);
+                }
+                generator.writeEndObject();
+            }
+        });
     }
 
     public Status do_POST_facebook_token(Database _db, String _docID, String _attachmentName) {
@@ -931,12 +1025,26 @@ public class Router implements Database.ChangeListener {
         db.beginTransaction();
         List<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
         try {
-            for (Map<String, Object> doc : docs) {
+            // Regular (non-local) new edits are saved with one bulk putRevisions call:
+            RevisionInternal[] bulkRevs = new RevisionInternal[docs.size()];
+            Status[] bulkStatuses = new Status[docs.size()];
+            if (!noNewEdits) {
+                putBulkRevisions(docs, allOrNothing, bulkRevs, bulkStatuses);
+            }
+
+            for (int i = 0; i < docs.size(); i++) {
+                Map<String, Object> doc = docs.get(i);
                 String docID = (String) doc.get("_id");
                 RevisionInternal rev = null;
                 Status status = new Status(Status.OK);
                 Body docBody = new Body(doc);
-                if (noNewEdits) {
+                if (bulkStatuses[i] != null) {
+                    rev = bulkRevs[i];
+                    status = bulkStatuses[i];
+                    if (rev != null) {
+                        docID = rev.getDocId();
+                    }
+                } else if (noNewEdits) {
                     rev = new RevisionInternal(docBody, db);
                     if(rev.getRevId() == null || rev.getDocId() == null || !rev.getDocId().equals(docID)) {
                         status =  new Status(Status.BAD_REQUEST);
@@ -985,6 +1093,42 @@ public class Router implements Database.ChangeListener {
         return new Status(Status.CREATED);
     }
 
+    /**
+     * Saves the new-edit revisions in a _bulk_docs request with a single Database.putRevisions
+     * call, filling in the result and status at each position handled. Local docs and bodies
+     * that update() would reject are left for the per-document path.
+     */
+    private void putBulkRevisions(List<Map<String,Object>> docs, boolean allOrNothing, RevisionInternal[] outRevs, Status[] outStatuses) throws CouchbaseLiteException {
+        List<RevisionInternal> revs = new ArrayList<RevisionInternal>();
+        List<String> prevRevIDs = new ArrayList<String>();
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int i = 0; i < docs.size(); i++) {
+            Map<String, Object> doc = docs.get(i);
+            String docID = (String) doc.get("_id");
+            Boolean deletingBoolean = (Boolean) doc.get("_deleted");
+            boolean deleting = (deletingBoolean != null && deletingBoolean.booleanValue());
+            if ((docID != null && docID.startsWith("_local")) || (docID == null && deleting)) {
+                continue;
+            }
+            RevisionInternal rev = new RevisionInternal(docID, null, deleting, db);
+            rev.setBody(new Body(doc));
+            revs.add(rev);
+            prevRevIDs.add((String) doc.get("_rev"));
+            positions.add(i);
+        }
+        if (revs.isEmpty()) {
+            return;
+        }
+
+        List<Status> statuses = new ArrayList<Status>();
+        // As in update(), all_or_nothing allows conflicts:
+        List<RevisionInternal> results = db.putRevisions(revs, prevRevIDs, allOrNothing, false, statuses);
+        for (int i = 0; i < positions.size(); i++) {
+            outRevs[positions.get(i)] = results.get(i);
+            outStatuses[positions.get(i)] = statuses.get(i);
+        }
+    }
+
     public Status do_POST_Document_revs_diff(Database _db, String _docID, String _attachmentName) {
         // http://wiki.apache.org/couchdb/HttpPostRevsDiff
         // Collect all of the input doc/revision IDs as TDRevisions:
@@ -1111,6 +1255,10 @@ public class Router implements Database.ChangeListener {
     /** CHANGES: **/
 
     public Map<String,Object> changesDictForRevision(RevisionInternal rev) {
+        return changesDictForRevision(rev, changesIncludesDocs);
+    }
+
+    static Map<String,Object> changesDictForRevision(RevisionInternal rev, boolean includeDocs) {
         Map<String,Object> changesDict = new HashMap<String, Object>();
         changesDict.put("rev", rev.getRevId());
 
@@ -1124,7 +1272,7 @@ public class Router implements Database.ChangeListener {
         if(rev.isDeleted()) {
             result.put("deleted", true);
         }
-        if(changesIncludesDocs) {
+        if(includeDocs) {
             result.put("doc", rev.getProperties());
         }
         return result;
@@ -1205,50 +1353,6 @@ public class Router implements Database.ChangeListener {
         }
     }
 
-    @Override
-    public void changed(Database.ChangeEvent event) {
-
-        List<DocumentChange> changes = event.getChanges();
-        for (DocumentChange change : changes) {
-
-            RevisionInternal rev = change.getAddedRevision();
-
-            Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
-            final boolean allowRevision = event.getSource().runFilter(changesFilter, paramsFixMe, rev);
-            if (!allowRevision) {
-                return;
-            }
-
-            if(longpoll) {
-                Log.w(Log.TAG_ROUTER, "Router: Sending longpoll response");
-                sendResponse();
-                List<RevisionInternal> revs = new ArrayList<RevisionInternal>();
-                revs.add(rev);
-                Map<String,Object> body = responseBodyForChanges(revs, 0);
-                if(callbackBlock != null) {
-                    byte[] data = null;
-                    try {
-                        data = Manager.getObjectMapper().writeValueAsBytes(body);
-                    } catch (Exception e) {
-                        Log.w(Log.TAG_ROUTER, "Error serializing JSON", e);
-                    }
-                    OutputStream os = connection.getResponseOutputStream();
-                    try {
-                        os.write(data);
-                        os.close();
-                    } catch (IOException e) {
-                        Log.e(Log.TAG_ROUTER, "IOException writing to internal streams", e);
-                    }
-                }
-            } else {
-                Log.w(Log.TAG_ROUTER, "Router: Sending continous change chunk");
-                sendContinuousChange(rev);
-            }
-
-        }
-
-    }
-
     public Status do_GET_Document_changes(Database _db, String docID, String _attachmentName) {
         // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
         ChangesOptions options = new ChangesOptions();
@@ -1272,36 +1376,86 @@ public class Router implements Database.ChangeListener {
             }
         }
 
+        String feed = getQuery("feed");
+        boolean longpoll = "longpoll".equals(feed);
+        boolean continuous = !longpoll && "continuous".equals(feed);
+
+        if(continuous || longpoll) {
+            // Subscribe before looking up the existing changes, so none are missed in between
+            changesFeed = ChangeFeedBroadcaster.subscribe(db, connection.getResponseOutputStream(),
+                    changesFilter, changesIncludesDocs, longpoll);
+        }
+
         RevisionList changes = db.changesSince(since, options, changesFilter);
 
         if(changes == null) {
+            stopChangesFeed();
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
 
-        String feed = getQuery("feed");
-        longpoll = "longpoll".equals(feed);
-        boolean continuous = !longpoll && "continuous".equals(feed);
-
         if(continuous || (longpoll && changes.size() == 0)) {
             connection.setChunked(true);
             connection.setResponseCode(Status.OK);
             sendResponse();
+            long lastSequence = since;
             if(continuous) {
                 for (RevisionInternal rev : changes) {
                     sendContinuousChange(rev);
+                    lastSequence = Math.max(lastSequence, rev.getSequence());
                 }
             }
-            db.addChangeListener(this);
-         // Don't close connection; more data to come
+            // Don't close connection; more data to come
+            changesFeed.start(lastSequence);
             return new Status(0);
         } else {
-            if(options.isIncludeConflicts()) {
-                connection.setResponseBody(new Body(responseBodyForChangesWithConflicts(changes, since)));
-            } else {
-                connection.setResponseBody(new Body(responseBodyForChanges(changes, since)));
-            }
-            return new Status(Status.OK);
+            stopChangesFeed();
+            return sendChanges(changes, since, options.isIncludeConflicts());
+        }
+    }
+
+    private void stopChangesFeed() {
+        if(changesFeed != null) {
+            changesFeed.cancel();
+            changesFeed = null;
+        }
+    }
+
+    /**
+     * Streams a (normal or longpoll) _changes response, serializing one entry at a time.
+     */
+    private Status sendChanges(final RevisionList changes, final long since, boolean includeConflicts) {
+        if (includeConflicts) {
+            // Conflicting revisions have to be merged into their document's entry first
+            final Map<String, Object> result = responseBodyForChangesWithConflicts(changes, since);
+            return sendStreamingResponse(new StreamingBody() {
+                @Override
+                public void writeTo(JsonGenerator generator) throws IOException {
+                    generator.writeStartObject();
+                    generator.writeArrayFieldStart("results");
+                    for (Object entry : (List<Object>) result.get("results")) {
+                        generator.writeObject(entry);
+                    }
+                    generator.writeEndArray();
+                    generator.writeObjectField("last_seq", result.get("last_seq"));
+                    generator.writeEndObject();
+                }
+            });
         }
+        return sendStreamingResponse(new StreamingBody() {
+            @Override
+            public void writeTo(JsonGenerator generator) throws IOException {
+                long lastSeq = since;
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("results");
+                for (RevisionInternal rev : changes) {
+                    generator.writeObject(changesDictForRevision(rev));
+                    lastSeq = rev.getSequence();
+                }
+                generator.writeEndArray();
+                generator.writeNumberField("last_seq", lastSeq);
+                generator.writeEndObject();
+            }
+        });
     }
 
     /** DOCUMENT REQUESTS: **/
@@ -1361,29 +1515,26 @@ public class Router implements Database.ChangeListener {
 
                 connection.setResponseBody(rev.getBody());
             } else {
-                List<Map<String,Object>> result = null;
+                // The revisions' JSON is spliced into the result as is, without being parsed
+                List<byte[]> result = null;
                 if(openRevsParam.equals("all")) {
                     // Get all conflicting revisions:
                     RevisionList allRevs = db.getAllRevisionsOfDocumentID(docID, true);
-                    result = new ArrayList<Map<String,Object>>(allRevs.size());
+                    result = new ArrayList<byte[]>(allRevs.size());
                     for (RevisionInternal rev : allRevs) {
 
                         try {
                             db.loadRevisionBody(rev, options);
                         } catch (CouchbaseLiteException e) {
                             if (e.getCBLStatus().getCode() != Status.INTERNAL_SERVER_ERROR) {
-                                Map<String, Object> dict = new HashMap<String,Object>();
-                                dict.put("missing", rev.getRevId());
-                                result.add(dict);
+                                result.add(openRevsEntry("missing", revIdJSON(rev.getRevId())));
                             }
                             else {
                                 throw e;
                             }
                         }
 
-                        Map<String, Object> dict = new HashMap<String,Object>();
-                        dict.put("ok", rev.getProperties());
-                        result.add(dict);
+                        result.add(openRevsEntry("ok", rev.getJson()));
 
                     }
                 } else {
@@ -1392,17 +1543,13 @@ public class Router implements Database.ChangeListener {
                     if(openRevs == null) {
                         return new Status(Status.BAD_REQUEST);
                     }
-                    result = new ArrayList<Map<String,Object>>(openRevs.size());
+                    result = new ArrayList<byte[]>(openRevs.size());
                     for (String revID : openRevs) {
                         RevisionInternal rev = db.getDocumentWithIDAndRev(docID, revID, options);
                         if(rev != null) {
-                            Map<String, Object> dict = new HashMap<String,Object>();
-                            dict.put("ok", rev.getProperties());
-                            result.add(dict);
+                            result.add(openRevsEntry("ok", rev.getJson()));
                         } else {
-                            Map<String, Object> dict = new HashMap<String,Object>();
-                            dict.put("missing", revID);
-                            result.add(dict);
+                            result.add(openRevsEntry("missing", revIdJSON(revID)));
                         }
                     }
                 }
@@ -1411,7 +1558,7 @@ public class Router implements Database.ChangeListener {
                     //FIXME figure out support for multipart
                     throw new UnsupportedOperationException();
                 } else {
-                    connection.setResponseBody(new Body(result));
+                    connection.setResponseBody(Body.bodyWithJSONArray(result));
                 }
             }
             return new Status(Status.OK);
@@ -1420,6 +1567,29 @@ public class Router implements Database.ChangeListener {
         }
     }
 
+    /**
+     * Returns the JSON of a one-entry object {"key": value}, given the value's JSON.
+     */
+    private static byte[] openRevsEntry(String key, byte[] valueJSON) {
+        if(valueJSON == null) {
+            valueJSON = "null".getBytes();
+        }
+        byte[] prefix = ("{\"" + key + "\":").getBytes();
+        byte[] entry = new byte[prefix.length + valueJSON.length + 1];
+        System.arraycopy(prefix, 0, entry, 0, prefix.length);
+        System.arraycopy(valueJSON, 0, entry, prefix.length, valueJSON.length);
+        entry[entry.length - 1] = '}';
+        return entry;
+    }
+
+    private static byte[] revIdJSON(String revID) throws CouchbaseLiteException {
+        try {
+            return Manager.getObjectMapper().writeValueAsBytes(revID);
+        } catch (IOException e) {
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     public Status do_GET_Attachment(Database _db, String docID, String _attachmentName) {
         try {
             // http://wiki.apache.org/couchdb/HTTP_Document_API#GET
@@ -1601,7 +1771,7 @@ public class Router implements Database.ChangeListener {
             revID = getRevIDFromIfMatchHeader();
         }
 
-        BlobStoreWriter body = new BlobStoreWriter(db.getAttachments());
+        BlobStoreWriter body = db.getAttachmentWriter(connection.getRequestProperty("content-type"));
         ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
 
         try{
@@ -1653,7 +1823,11 @@ public class Router implements Database.ChangeListener {
         String reduceSource = (String)viewProps.get("reduce");
         Reducer reduceBlock = null;
         if(reduceSource != null) {
-            reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
+            // "_count", "_sum" and "_stats" are built in, whatever the language
+            reduceBlock = BuiltinReducer.forName(reduceSource);
+            if(reduceBlock == null) {
+                reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
+            }
             if(reduceBlock == null) {
                 Log.w(Log.TAG_ROUTER, "View %s has unknown reduce function: %s", viewName, reduceBlock);
                 return null;
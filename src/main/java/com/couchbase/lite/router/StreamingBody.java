@@ -0,0 +1,19 @@
+package com.couchbase.lite.router;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * A JSON response body that is generated as it's sent. Instead of building the whole result
+ * in memory and wrapping it in a Body, a handler passes one of these to the Router, which
+ * writes it straight to the connection's response stream using chunked transfer.
+ */
+interface StreamingBody {
+
+    /**
+     * Writes the entire body, as a single JSON value, to the generator.
+     */
+    void writeTo(JsonGenerator generator) throws IOException;
+
+}
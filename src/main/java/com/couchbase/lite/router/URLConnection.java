@@ -3,17 +3,15 @@ package com.couchbase.lite.router;
 
 import com.couchbase.lite.Database;
 import com.couchbase.lite.internal.Body;
-import com.couchbase.lite.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -27,6 +25,13 @@ import java.util.TreeMap;
 
 public class URLConnection extends HttpURLConnection {
 
+    /**
+     * The default capacity, in bytes, of the buffer streamed responses are passed through.
+     */
+    public static final int DEFAULT_RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile int defaultResponseBufferSize = DEFAULT_RESPONSE_BUFFER_SIZE;
+
     private Header resHeader;
     private boolean sentRequest = false;
     private ByteArrayOutputStream os;
@@ -40,19 +45,59 @@ public class URLConnection extends HttpURLConnection {
     private static final String PUT = "PUT";
     private static final String HEAD = "HEAD";
 
+    private final int responseBufferSize;
+
+    // guarded by this; the pipe between the response streams is created when one is asked for
+    private boolean responsePipeCreated;
     private OutputStream responseOutputStream;
     private InputStream responseInputStream;
 
     private InputStream requestInputStream;
 
     public URLConnection(URL url) {
+        this(url, defaultResponseBufferSize);
+    }
+
+    /**
+     * @param responseBufferSize the capacity, in bytes, of the buffer between the router
+     *                           writing a streamed response and the thread reading it.
+     */
+    public URLConnection(URL url, int responseBufferSize) {
         super(url);
-        responseInputStream = new PipedInputStream();
-        try {
-            responseOutputStream = new PipedOutputStream((PipedInputStream)responseInputStream);
-        } catch (IOException e) {
-            Log.e(Log.TAG_ROUTER, "Exception creating piped output stream", e);
+        this.responseBufferSize = responseBufferSize;
+    }
+
+    /**
+     * Creates the response pipe on first use, so that a connection whose response is never
+     * streamed doesn't allocate its buffer. Streams already set by the caller are kept.
+     */
+    private void createResponsePipeIfNeeded() {
+        if (responsePipeCreated) {
+            return;
+        }
+        responsePipeCreated = true;
+        ResponsePipe pipe = new ResponsePipe(responseBufferSize);
+        if (responseInputStream == null) {
+            responseInputStream = pipe.getInputStream();
         }
+        if (responseOutputStream == null) {
+            responseOutputStream = pipe.getOutputStream();
+        }
+    }
+
+    public static int getDefaultResponseBufferSize() {
+        return defaultResponseBufferSize;
+    }
+
+    /**
+     * Sets the response buffer capacity of connections created from now on. Larger buffers
+     * let the router get further ahead of a slow reader, at the cost of memory per request.
+     */
+    public static void setDefaultResponseBufferSize(int responseBufferSize) {
+        if (responseBufferSize < 1) {
+            throw new IllegalArgumentException("responseBufferSize must be at least 1");
+        }
+        defaultResponseBufferSize = responseBufferSize;
     }
 
     @Override
@@ -174,6 +219,18 @@ public class URLConnection extends HttpURLConnection {
         return this.responseBody;
     }
 
+    /**
+     * Returns the response's JSON body, if it was produced all at once rather than streamed,
+     * as a read-only buffer over the serialized bytes. Writing this straight to a channel
+     * avoids copying the body through getInputStream(). Returns null for streamed responses.
+     */
+    public ByteBuffer getResponseBodyBuffer() {
+        if (responseBody == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(responseBody.getJson()).asReadOnlyBuffer();
+    }
+
     String getBaseContentType() {
         String type = resHeader.get("Content-Type");
         if(type == null) {
@@ -222,25 +279,27 @@ public class URLConnection extends HttpURLConnection {
         return chunked;
     }
 
-    public void setResponseInputStream(InputStream responseInputStream) {
+    public synchronized void setResponseInputStream(InputStream responseInputStream) {
         this.responseInputStream = responseInputStream;
     }
 
-    public InputStream getResponseInputStream() {
+    public synchronized InputStream getResponseInputStream() {
+        createResponsePipeIfNeeded();
         return responseInputStream;
     }
 
-    public void setResponseOutputStream(OutputStream responseOutputStream) {
+    public synchronized void setResponseOutputStream(OutputStream responseOutputStream) {
         this.responseOutputStream = responseOutputStream;
     }
 
-    public OutputStream getResponseOutputStream() {
+    public synchronized OutputStream getResponseOutputStream() {
+        createResponsePipeIfNeeded();
         return responseOutputStream;
     }
 
     @Override
     public InputStream getInputStream() throws IOException {
-        return responseInputStream;
+        return getResponseInputStream();
     }
 
     public InputStream getRequestInputStream() {
@@ -3,51 +3,88 @@ package com.couchbase.lite.support;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility that queues up objects until the queue fills up or a time interval elapses,
  * then passes objects, in groups of its capacity, to a client-supplied processor block.
+ *
+ * Queuing an object takes no locks: objects go into a lock-free ring buffer (spilling into a
+ * linked queue during a burst the ring can't hold), and a single atomic state decides which
+ * caller schedules the processing task, so there's never more than one scheduled or running.
+ * That task drains up to a batch of objects at a time, in the order they were queued.
+ *
+ * Optionally, threads queuing objects can be held back while the queue is over a high-water
+ * mark; see setBackpressure().
  */
 public class Batcher<T> {
 
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int PROCESSING = 2;
+
     private ScheduledExecutorService workExecutor;
 
-    private int capacity;
-    private int delayMs;
-    private int scheduledDelay;
-    private BlockingQueue<T> inbox;
-    private BatchProcessor<T> processor;
-    private boolean scheduled = false;
-    private long lastProcessedTime;
-    private BlockingQueue<ScheduledFuture> pendingFutures;
-    private Lock lock = new ReentrantLock();
+    private final int capacity;
+    private final int delayMs;
+    private final BatchProcessor<T> processor;
+    private final MpscArrayQueue<T> inbox;
+    private final ConcurrentLinkedQueue<T> spill = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private volatile ScheduledFuture<?> pendingFuture;
+    private volatile long lastProcessedTime;
+
+    /**
+     * The thread that last ran the processing task. It's never held back by backpressure,
+     * since the queue can't drain while it waits.
+     */
+    private volatile Thread processingThread;
+
+    private volatile int highWaterMark;
+    private volatile long maxBackpressureWaitMs;
+    private final AtomicInteger backpressureWaiters = new AtomicInteger();
+    private final Object backpressureLock = new Object();
+    private final Object idleLock = new Object();
+
+    // metrics; the batch counters are only written by the processing task
+    private volatile int peakQueueDepth;
+    private volatile long batchCount;
+    private volatile long processedCount;
+    private volatile int maxBatchSize;
+    private volatile long totalProcessingNanos;
+    private volatile long maxProcessingNanos;
+    private final AtomicInteger backpressureWaits = new AtomicInteger();
 
     private Runnable processNowRunnable = new Runnable() {
 
         @Override
         public void run() {
-
+            state.set(PROCESSING);
+            processingThread = Thread.currentThread();
             try {
-                lock.lock();
                 processNow();
             } catch (Exception e) {
                 // we don't want this to crash the batcher
-                com.couchbase.lite.util.Log.e(Log.TAG_BATCHER, this + ": BatchProcessor throw exception", e);
+                Log.e(Log.TAG_BATCHER, Batcher.this + ": BatchProcessor throw exception", e);
             } finally {
-                lock.unlock();
+                state.set(IDLE);
+                // anything queued while processing is scheduled by us, or by whoever queued it
+                // after the state went back to idle
+                if (inboxSize.get() > 0) {
+                    scheduleIfIdle(inboxSize.get() >= capacity ? 0 : delayToUse());
+                } else {
+                    synchronized (idleLock) {
+                        idleLock.notifyAll();
+                    }
+                }
             }
         }
     };
@@ -66,22 +103,22 @@ public class Batcher<T> {
         this.capacity = capacity;
         this.delayMs = delayMs;
         this.processor = processor;
-        this.inbox = new LinkedBlockingQueue<T>();
-        this.pendingFutures = new LinkedBlockingQueue<ScheduledFuture>();
-
+        this.inbox = new MpscArrayQueue<T>(Math.max(capacity * 4, 64));
     }
 
-    private boolean isCurrentlyProcessing() {
-
-        // we'll only get the lock if we ARENT currently processing
-        boolean processingNotInProgress = lock.tryLock();
-        if (processingNotInProgress) {
-            // we don't actually need this lock, so unlock it immediately
-            lock.unlock();
-        }
-        boolean isProcessing = !processingNotInProgress;
-        return isProcessing;
-
+    /**
+     * Holds back threads queuing objects while more than highWaterMark objects are waiting to
+     * be processed, for at most maxWaitMs per call. The thread that last processed a batch is
+     * never held back, and the time limit keeps any other thread of the work executor from
+     * stalling the processing it's waiting for indefinitely. Off by default.
+     *
+     * @param highWaterMark the queue depth at which to start holding back producers, or 0 to
+     *                      turn backpressure off.
+     * @param maxWaitMs the longest a single call to queueObject(s) will wait.
+     */
+    public void setBackpressure(int highWaterMark, long maxWaitMs) {
+        this.maxBackpressureWaitMs = maxWaitMs;
+        this.highWaterMark = highWaterMark;
     }
 
     /**
@@ -89,194 +126,211 @@ public class Batcher<T> {
      */
     public void queueObjects(List<T> objects) {
 
-        Log.v(Log.TAG_BATCHER, "%s: queueObjects called with %d objects. Thread: %s", this, objects.size(), Thread.currentThread());
+        if (Log.isLoggingEnabled(Log.TAG_BATCHER, Log.VERBOSE)) {
+            Log.v(Log.TAG_BATCHER, "%s: queueObjects called with %d objects. Thread: %s", this, objects.size(), Thread.currentThread());
+        }
         if (objects.size() == 0) {
             return;
         }
 
-        Log.v(Log.TAG_BATCHER, "%s: inbox size before adding objects: %d", this, inbox.size());
+        awaitBelowHighWaterMark();
+        // counted before they're queued, so the count never falls below what's in the queue
+        int size = inboxSize.addAndGet(objects.size());
+        for (T object : objects) {
+            enqueue(object);
+        }
+        scheduleForSize(size);
+    }
+
+    /**
+     * Adds an object to the queue.
+     */
+    public void queueObject(T object) {
+        awaitBelowHighWaterMark();
+        int size = inboxSize.incrementAndGet();
+        enqueue(object);
+        scheduleForSize(size);
+    }
 
-        inbox.addAll(objects);
+    private void enqueue(T object) {
+        // once anything has spilled, everything goes to the spill queue until it has been
+        // drained, so that objects are processed in the order they were queued
+        if (!spill.isEmpty() || !inbox.offer(object)) {
+            spill.add(object);
+        }
+    }
 
-        if (inbox.size() >= capacity) {
-            Log.v(Log.TAG_BATCHER, "%s: calling scheduleWithDelay(0)", this);
-            if (!isCurrentlyProcessing()) {
-                // we only want to unschedule and re-schedule immediately if we
-                // aren't currently processing, otherwise we'll end up in a situation where
-                // the things currently processed get interrupted and re-scheduled,
-                // and nothing ever gets done.  at the end of the processNow() method,
-                // it will schedule tasks if more are still pending.
-                unscheduleAllPending();
-                scheduleWithDelay(0);
+    private void scheduleForSize(int size) {
+        if (size >= capacity) {
+            if (Log.isLoggingEnabled(Log.TAG_BATCHER, Log.VERBOSE)) {
+                Log.v(Log.TAG_BATCHER, "%s: inbox size %d reached capacity, processing now", this, size);
+            }
+            if (!scheduleIfIdle(0)) {
+                expedite();
             }
-        } else {
-            int suggestedDelay = delayToUse();
-            Log.v(Log.TAG_BATCHER, "%s: calling scheduleWithDelay(%d)", this, suggestedDelay);
-            scheduleWithDelay(suggestedDelay);
+        } else if (state.get() == IDLE) {
+            scheduleIfIdle(delayToUse());
+        }
+    }
+
+    /**
+     * Schedules the processing task, unless it's already scheduled or running.
+     * @return true if this call scheduled it.
+     */
+    private boolean scheduleIfIdle(int delay) {
+        if (!state.compareAndSet(IDLE, SCHEDULED)) {
+            return false;
         }
+        if (Log.isLoggingEnabled(Log.TAG_BATCHER, Log.VERBOSE)) {
+            Log.v(Log.TAG_BATCHER, "%s: scheduling processing with delayMs: %d ms", this, delay);
+        }
+        pendingFuture = workExecutor.schedule(processNowRunnable, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
+    /**
+     * Brings a delayed processing task forward to run now. A task that's already running is
+     * left alone; it reschedules itself when it finishes if the queue isn't empty.
+     */
+    private void expedite() {
+        ScheduledFuture<?> future = pendingFuture;
+        if (future != null && state.get() == SCHEDULED && future.getDelay(TimeUnit.MILLISECONDS) > 0
+                && future.cancel(false)) {
+            Log.v(Log.TAG_BATCHER, "%s: rescheduling delayed processing to run now", this);
+            pendingFuture = workExecutor.schedule(processNowRunnable, 0, TimeUnit.MILLISECONDS);
+        }
     }
 
+    private void awaitBelowHighWaterMark() {
+        int mark = highWaterMark;
+        if (mark <= 0 || inboxSize.get() <= mark || Thread.currentThread() == processingThread) {
+            return;
+        }
+        backpressureWaits.incrementAndGet();
+        long deadline = System.currentTimeMillis() + maxBackpressureWaitMs;
+        backpressureWaiters.incrementAndGet();
+        try {
+            synchronized (backpressureLock) {
+                long remaining;
+                while (inboxSize.get() > mark && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    backpressureLock.wait(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            backpressureWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until everything queued so far has been processed.
+     */
     public void waitForPendingFutures() {
 
         Log.d(Log.TAG_BATCHER, "%s: waitForPendingFutures", this);
 
         try {
-
-            while (!pendingFutures.isEmpty()) {
-                Future future = pendingFutures.take();
-                try {
-                    Log.d(Log.TAG_BATCHER, "calling future.get() on %s", future);
-                    future.get();
-                    Log.d(Log.TAG_BATCHER, "done calling future.get() on %s", future);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
+            while (state.get() != IDLE || inboxSize.get() > 0) {
+                ScheduledFuture<?> future = pendingFuture;
+                if (future != null && !future.isDone()) {
+                    try {
+                        Log.d(Log.TAG_BATCHER, "calling future.get() on %s", future);
+                        future.get();
+                        Log.d(Log.TAG_BATCHER, "done calling future.get() on %s", future);
+                    } catch (CancellationException e) {
+                        // it was brought forward; wait for its replacement
+                    } catch (ExecutionException e) {
+                        Log.e(Log.TAG_BATCHER, "%s: processing task failed", e, this);
+                    }
+                } else {
+                    // between tasks; the next one is about to be scheduled
+                    synchronized (idleLock) {
+                        if (state.get() != IDLE || inboxSize.get() > 0) {
+                            idleLock.wait(10);
+                        }
+                    }
                 }
             }
-
-        } catch (Exception e) {
-            Log.e(Log.TAG_BATCHER, "Exception waiting for pending futures: %s", e);
+        } catch (InterruptedException e) {
+            Log.e(Log.TAG_BATCHER, "Interrupted waiting for pending futures", e);
+            Thread.currentThread().interrupt();
         }
 
         Log.d(Log.TAG_BATCHER, "%s: /waitForPendingFutures", this);
     }
 
-    /**
-     * Adds an object to the queue.
-     */
-    public void queueObject(T object) {
-        List<T> objects = Arrays.asList(object);
-        queueObjects(objects);
-    }
-
     /**
      * Sends queued objects to the processor block (up to the capacity).
      */
     public void flush() {
-        scheduleWithDelay(delayToUse());
+        if (inboxSize.get() > 0) {
+            scheduleIfIdle(delayToUse());
+        }
     }
 
     public int count() {
-        synchronized(this) {
-            if(inbox == null) {
-                return 0;
-            }
-            return inbox.size();
-        }
+        return inboxSize.get();
     }
 
+    /**
+     * Returns a snapshot of this batcher's queue depth, batch and timing statistics.
+     */
+    public Metrics getMetrics() {
+        return new Metrics(inboxSize.get(), peakQueueDepth, batchCount, processedCount, maxBatchSize,
+                totalProcessingNanos, maxProcessingNanos, backpressureWaits.get());
+    }
 
     private void processNow() {
 
-        Log.v(Log.TAG_BATCHER, this + ": processNow() called");
-
-        scheduled = false;
-        List<T> toProcess = new ArrayList<T>();
-
-        if (inbox == null || inbox.size() == 0) {
-            Log.v(Log.TAG_BATCHER, this + ": processNow() called, but inbox is empty");
-            return;
-        } else if (inbox.size() <= capacity) {
-            Log.v(Log.TAG_BATCHER, "%s: inbox.size() <= capacity, adding %d items from inbox -> toProcess", this, inbox.size());
-            while (inbox.size() > 0) {
-                try {
-                    T t = inbox.take();
-                    toProcess.add(t);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else {
-            Log.v(Log.TAG_BATCHER, "%s: processNow() called, inbox size: %d", this, inbox.size());
-            int i = 0;
-            while (inbox.size() > 0 && i < capacity) {
-                try {
-                    T t = inbox.take();
-                    toProcess.add(t);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                i += 1;
-            }
-
-
-            Log.v(Log.TAG_BATCHER, "%s: inbox.size() > capacity, moving %d items from inbox -> toProcess array", this, toProcess.size());
-
+        boolean verbose = Log.isLoggingEnabled(Log.TAG_BATCHER, Log.VERBOSE);
+        int depth = inboxSize.get();
+        if (depth > peakQueueDepth) {
+            peakQueueDepth = depth;
         }
-
-        if(toProcess != null && toProcess.size() > 0) {
-            Log.v(Log.TAG_BATCHER, "%s: invoking processor %s with %d items ", this, processor, toProcess.size());
-            processor.process(toProcess);
-        } else {
-            Log.v(Log.TAG_BATCHER, "%s: nothing to process", this);
+        if (depth == 0) {
+            Log.v(Log.TAG_BATCHER, "%s: processNow() called, but inbox is empty", this);
+            return;
         }
-        lastProcessedTime = System.currentTimeMillis();
-
-        // in case we ignored any schedule requests while processing, if
-        // we have more items in inbox, lets schedule another processing attempt
-        if (inbox.size() > 0) {
-            Log.v(Log.TAG_BATCHER, "%s: finished processing a batch, but inbox size > 0: %d", this, inbox.size());
-            int delayToUse = delayToUse();
-            Log.v(Log.TAG_BATCHER, "%s: going to process with delay: %d", this, delayToUse);
-            ScheduledFuture pendingFuture = workExecutor.schedule(processNowRunnable, delayToUse, TimeUnit.MILLISECONDS);
-            pendingFutures.add(pendingFuture);
 
+        List<T> toProcess = new ArrayList<T>(Math.min(depth, capacity));
+        int count = inbox.drainTo(toProcess, capacity);
+        T spilled;
+        while (count < capacity && (spilled = spill.poll()) != null) {
+            toProcess.add(spilled);
+            count++;
         }
-    }
-
-    private void scheduleWithDelay(int suggestedDelay) {
-
-        // keep a list of expired pending futures so we can remove them from pendingFutures
-        List<ScheduledFuture> futuresToForget = new ArrayList<ScheduledFuture>();
-
-        // do we already have anything scheduled?  if so, ignore this call to scheduleWithDelay()
-        Iterator<ScheduledFuture> iterator = pendingFutures.iterator();
-        while (iterator.hasNext()) {
-            ScheduledFuture pendingFuture = iterator.next();
-            // if we already have an active pending future, ignore this call
-            if (pendingFuture != null && !pendingFuture.isCancelled() && !pendingFuture.isDone()) {
-                Log.v(Log.TAG_BATCHER, "%s: scheduleWithDelay already has a pending task: %s. ignoring.", this, pendingFuture);
-                return;
-            } else {
-                futuresToForget.add(pendingFuture);
+        inboxSize.addAndGet(-count);
+        if (backpressureWaiters.get() > 0) {
+            synchronized (backpressureLock) {
+                backpressureLock.notifyAll();
             }
         }
-        forgetExpiredFutures(futuresToForget);
-
-
-        Log.v(Log.TAG_BATCHER, "%s: scheduleWithDelay called with delayMs: %d ms", this, suggestedDelay);
-        scheduledDelay = suggestedDelay;
-        Log.v(Log.TAG_BATCHER, "workExecutor.schedule() with delayMs: %d ms", suggestedDelay);
-        ScheduledFuture pendingFuture = workExecutor.schedule(processNowRunnable, suggestedDelay, TimeUnit.MILLISECONDS);
-        Log.v(Log.TAG_BATCHER, "%s: created future: %s", this, pendingFuture);
-        pendingFutures.add(pendingFuture);
-
-    }
 
-    private void forgetExpiredFutures(List<ScheduledFuture> futuresToForget) {
-        // clean out expired futures we no longer care about
-        for (ScheduledFuture futureToForget : futuresToForget) {
-            Log.v(Log.TAG_BATCHER, "%s: forgetting about expired future: %s", this, futureToForget);
-            pendingFutures.remove(futureToForget);
+        if (count == 0) {
+            Log.v(Log.TAG_BATCHER, "%s: nothing to process", this);
+            return;
         }
-    }
 
-    private void unscheduleAllPending() {
-
-        // keep a list of expired pending futures so we can remove them from pendingFutures
-        List<ScheduledFuture> futuresToForget = new ArrayList<ScheduledFuture>();
-
-        Iterator<ScheduledFuture> iterator = pendingFutures.iterator();
-        while (iterator.hasNext()) {
-            ScheduledFuture pendingFuture = iterator.next();
-            pendingFuture.cancel(true);
-            futuresToForget.add(pendingFuture);
+        if (verbose) {
+            Log.v(Log.TAG_BATCHER, "%s: invoking processor %s with %d items (inbox size was %d)", this, processor, count, depth);
+        }
+        long start = System.nanoTime();
+        try {
+            processor.process(toProcess);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            lastProcessedTime = System.currentTimeMillis();
+            batchCount++;
+            processedCount += count;
+            totalProcessingNanos += elapsed;
+            if (count > maxBatchSize) {
+                maxBatchSize = count;
+            }
+            if (elapsed > maxProcessingNanos) {
+                maxProcessingNanos = elapsed;
+            }
         }
-
-        forgetExpiredFutures(futuresToForget);
-
     }
 
     /*
@@ -292,6 +346,7 @@ public class Batcher<T> {
 
         // have we processed anything yet?  if so, check how long its been since we last
         // processed something, and if it was longer than delayMs then use a 0 delay.
+        long lastProcessedTime = this.lastProcessedTime;
         if (lastProcessedTime > 0) {
 
             //get the time interval since the last batch completed to the current system time
@@ -303,11 +358,97 @@ public class Batcher<T> {
                 delayToUse = 0;
             }
 
-            Log.v(Log.TAG_BATCHER, "%s: delayToUse() delta: %d, delayToUse: %d, delayMs: %d", this, delta, delayToUse, delayMs);
+            if (Log.isLoggingEnabled(Log.TAG_BATCHER, Log.VERBOSE)) {
+                Log.v(Log.TAG_BATCHER, "%s: delayToUse() delta: %d, delayToUse: %d, delayMs: %d", this, delta, delayToUse, delayMs);
+            }
 
         }
 
 
         return delayToUse;
     }
+
+    /**
+     * A snapshot of a Batcher's statistics.
+     */
+    public static final class Metrics {
+        private final int queueDepth;
+        private final int peakQueueDepth;
+        private final long batchCount;
+        private final long processedCount;
+        private final int maxBatchSize;
+        private final long totalProcessingNanos;
+        private final long maxProcessingNanos;
+        private final int backpressureWaits;
+
+        private Metrics(int queueDepth, int peakQueueDepth, long batchCount, long processedCount,
+                        int maxBatchSize, long totalProcessingNanos, long maxProcessingNanos,
+                        int backpressureWaits) {
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.batchCount = batchCount;
+            this.processedCount = processedCount;
+            this.maxBatchSize = maxBatchSize;
+            this.totalProcessingNanos = totalProcessingNanos;
+            this.maxProcessingNanos = maxProcessingNanos;
+            this.backpressureWaits = backpressureWaits;
+        }
+
+        /**
+         * The number of objects waiting to be processed.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * The most objects seen waiting when a batch was taken.
+         */
+        public int getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        public long getBatchCount() {
+            return batchCount;
+        }
+
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public double getAverageBatchSize() {
+            return batchCount == 0 ? 0 : (double) processedCount / batchCount;
+        }
+
+        /**
+         * The average time the processor took per batch, in milliseconds.
+         */
+        public double getAverageProcessingTimeMs() {
+            return batchCount == 0 ? 0 : totalProcessingNanos / 1e6 / batchCount;
+        }
+
+        public double getMaxProcessingTimeMs() {
+            return maxProcessingNanos / 1e6;
+        }
+
+        /**
+         * How many times a thread queuing objects was held back by backpressure.
+         */
+        public int getBackpressureWaits() {
+            return backpressureWaits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queueDepth=%d peakQueueDepth=%d batches=%d processed=%d maxBatchSize=%d " +
+                            "avgBatchSize=%.1f avgProcessingMs=%.2f maxProcessingMs=%.2f backpressureWaits=%d",
+                    queueDepth, peakQueueDepth, batchCount, processedCount, maxBatchSize,
+                    getAverageBatchSize(), getAverageProcessingTimeMs(), getMaxProcessingTimeMs(),
+                    backpressureWaits);
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package com.couchbase.lite.support;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default JsonCodec, built on Jackson.
+ *
+ * Values made of Maps, Lists, Strings, Numbers and Booleans -- nearly everything the library
+ * handles -- are read and written token by token with Jackson's streaming API, rather than
+ * going through ObjectMapper's data binding, which looks up a serializer or deserializer for
+ * every value. Serialization reuses a per-thread output buffer. Anything else is handed to
+ * the ObjectMapper, through a reader or writer built once per type.
+ *
+ * The streaming paths produce what an ObjectMapper with the default configuration does:
+ * LinkedHashMaps and ArrayLists, Integers or Longs (or BigIntegers) for integers, Doubles
+ * for other numbers, and map entries in iteration order, null values included.
+ */
+public class JacksonJsonCodec implements JsonCodec {
+
+    /**
+     * Output buffers that grew beyond this many bytes aren't kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ObjectMapper mapper;
+    private final JsonFactory factory;
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    private final ThreadLocal<OutputBuffer> outputBuffers = new ThreadLocal<OutputBuffer>() {
+        @Override
+        protected OutputBuffer initialValue() {
+            return new OutputBuffer();
+        }
+    };
+
+    /**
+     * @param mapper the mapper for values the streaming paths don't handle. It should have the
+     *               default configuration, or the output of the two paths will differ.
+     */
+    public JacksonJsonCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.factory = mapper.getJsonFactory();
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        OutputBuffer buffer = outputBuffers.get();
+        if (buffer.inUse) {
+            // re-entered from a custom serializer; don't clobber the outer call's buffer
+            buffer = new OutputBuffer();
+        }
+        buffer.inUse = true;
+        try {
+            JsonGenerator generator = factory.createJsonGenerator(buffer, JsonEncoding.UTF8);
+            writeValue(generator, value);
+            generator.close();
+            return buffer.toByteArray();
+        } finally {
+            buffer.inUse = false;
+            if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                outputBuffers.remove();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    @Override
+    public String encodeAsString(Object value) throws IOException {
+        return new String(encode(value), UTF8);
+    }
+
+    @Override
+    public <T> T decode(byte[] json, Class<T> type) throws IOException {
+        if (!isStreamable(type)) {
+            return readerFor(type).readValue(json);
+        }
+        JsonParser parser = factory.createJsonParser(json);
+        try {
+            return decode(parser, type);
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Override
+    public <T> T decode(InputStream in, Class<T> type) throws IOException {
+        if (!isStreamable(type)) {
+            return readerFor(type).readValue(in);
+        }
+        JsonParser parser = factory.createJsonParser(in);
+        return decode(parser, type);
+    }
+
+    @Override
+    public <T> T decode(JsonParser parser, Class<T> type) throws IOException {
+        if (!isStreamable(type)) {
+            return readerFor(type).readValue(parser);
+        }
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            token = parser.nextToken();
+            if (token == null) {
+                throw new EOFException("No content to map to Object due to end of input");
+            }
+        }
+        Object value = readValue(parser, token);
+        if (value != null && !type.isInstance(value)) {
+            throw new JsonMappingException("Can not deserialize instance of " + type.getName() +
+                    " out of " + token + " token");
+        }
+        return type.cast(value);
+    }
+
+    private static boolean isStreamable(Class<?> type) {
+        return type == Object.class || type == Map.class || type == List.class;
+    }
+
+    private ObjectReader readerFor(Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = mapper.reader(type);
+            readers.put(type, reader);
+        }
+        return reader;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    map.put(name, readValue(parser, parser.nextToken()));
+                }
+                return map;
+            }
+            case START_ARRAY: {
+                List<Object> list = new ArrayList<Object>();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new EOFException("Unexpected end of input in JSON array");
+                    }
+                    list.add(readValue(parser, token));
+                }
+                return list;
+            }
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return Double.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonMappingException("Unexpected JSON token " + token);
+        }
+    }
+
+    private void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Map && hasStringKeys((Map<?, ?>) value)) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName((String) entry.getKey());
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object item : (Collection<?>) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Object[]) {
+            generator.writeStartArray();
+            for (Object item : (Object[]) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            generator.writeNumber(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            generator.writeNumber(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            generator.writeNumber(((Float) value).floatValue());
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean(((Boolean) value).booleanValue());
+        } else {
+            mapper.writeValue(generator, value);
+        }
+    }
+
+    /**
+     * Maps with other kinds of keys are left to the ObjectMapper, which has its own rules
+     * for turning them into field names.
+     */
+    private static boolean hasStringKeys(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class OutputBuffer extends ByteArrayOutputStream {
+        boolean inUse;
+
+        OutputBuffer() {
+            super(512);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.couchbase.lite.support;
+
+import org.codehaus.jackson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Converts between JSON and the Java objects Couchbase Lite represents it with: Maps (of
+ * String keys), Lists, Strings, Numbers, Booleans and null.
+ *
+ * All of the library's hot paths (document bodies, view keys and values, the change feed)
+ * go through Manager.getJsonCodec(), so a different implementation can be installed with
+ * Manager.setJsonCodec(). An implementation must produce the same bytes as
+ * Manager.getObjectMapper() would, since stored JSON and view keys are compared bytewise.
+ */
+public interface JsonCodec {
+
+    /**
+     * Serializes a value to UTF-8 JSON.
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * Serializes a value to a JSON string.
+     */
+    String encodeAsString(Object value) throws IOException;
+
+    /**
+     * Parses JSON into a value of the given type. With Object.class the result is a Map,
+     * List, String, Number, Boolean or null, depending on the JSON.
+     */
+    <T> T decode(byte[] json, Class<T> type) throws IOException;
+
+    /**
+     * Parses JSON read from a stream, like decode(byte[], Class). The stream isn't closed.
+     */
+    <T> T decode(InputStream in, Class<T> type) throws IOException;
+
+    /**
+     * Parses the next value from a parser, starting at its current token if it has one.
+     */
+    <T> T decode(JsonParser parser, Class<T> type) throws IOException;
+
+}
@@ -36,7 +36,7 @@ public class JsonDocument {
                 tmp = new LazyJsonArray<Object>(json);
             } else {
                 try {
-                    tmp = Manager.getObjectMapper().readValue(json, Object.class);
+                    tmp = Manager.getJsonCodec().decode(json, Object.class);
                 } catch (Exception e) {
                     //cached will remain null
                     Log.w(Database.TAG, "Exception parsing json", e);
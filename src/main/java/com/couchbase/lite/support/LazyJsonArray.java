@@ -102,7 +102,7 @@ public class LazyJsonArray<T> extends AbstractList<T> {
         }
 
         try {
-            List<T> parsedvalues  = (List<T>) Manager.getObjectMapper().readValue(json, Object.class);
+            List<T> parsedvalues  = (List<T>) Manager.getJsonCodec().decode(json, Object.class);
             //Merge parsed values into List, overwriting the values for duplicate keys
             parsedvalues.addAll(cache);
             cache = parsedvalues;
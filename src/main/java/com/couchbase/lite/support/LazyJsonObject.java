@@ -4,31 +4,60 @@ import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.util.Log;
 
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 /*
  * A wrapper object for data representing a JSON object, parsing of the JSON
- * data is delayed until it is accessed via one of the Map methods
+ * data is delayed until it is accessed via one of the Map methods.
+ *
+ * Looking up individual keys with get() or containsKey() doesn't parse the whole object:
+ * the JSON is scanned with the streaming parser, and only the values of the keys asked for
+ * (plus those of the projection given to the constructor, if any) are materialized; the
+ * rest are skipped over. After a few such scans, or on any call that needs every entry,
+ * the whole object is parsed.
  * */
 public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
 
+    /**
+     * The number of partial scans of the JSON after which the whole object is parsed.
+     */
+    private static final int MAX_PROJECTED_SCANS = 3;
+
     private boolean parsed = false;
     private byte[] json;
     private Map<K, V> cache = new HashMap<K, V>();
 
+    private Collection<String> projection;
+    private int projectedScans = 0;
+    private Map<String, Object> projected;  // values scanned out of the JSON
+    private Set<String> absentKeys;         // keys the JSON is known not to have
+
     public LazyJsonObject(byte[] json) {
+        this(json, null);
+    }
+
+    /**
+     * @param projection the top-level keys that are likely to be read, so that the first
+     *                   lookup materializes all of them in one scan. May be null.
+     */
+    public LazyJsonObject(byte[] json, Collection<String> projection) {
         if(json[0] != '{') {
             throw new IllegalArgumentException("data must represent a JSON Object");
         }
         this.json = json;
+        this.projection = projection;
     }
 
 
@@ -43,6 +72,8 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
     public V get(Object key) {
         if(cache.containsKey(key)) {
             return cache.get(key);
+        } else if(scanJsonFor(key)) {
+            return (V) projected.get(key);
         } else {
             parseJson();
             return cache.get(key);
@@ -68,6 +99,8 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
     public boolean containsKey(Object key) {
         if(cache.containsKey(key)) {
             return cache.containsKey(key);
+        } else if(scanJsonFor(key)) {
+            return projected.containsKey(key);
         } else {
             parseJson();
             return cache.containsKey(key);
@@ -107,13 +140,90 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
         return cache.values();
     }
 
+   /**
+    * Makes sure the value of the key, if the JSON has one, is in the projected map, scanning
+    * the JSON for it if necessary. Returns false if the whole object has to be parsed instead.
+    */
+   private boolean scanJsonFor(Object key) {
+       if(parsed || !(key instanceof String)) {
+           return false;
+       }
+       if((projected != null && projected.containsKey(key)) || (absentKeys != null && absentKeys.contains(key))) {
+           return true;
+       }
+       if(projectedScans >= MAX_PROJECTED_SCANS) {
+           return false;
+       }
+       projectedScans++;
+
+       Set<String> wanted = new HashSet<String>();
+       wanted.add((String) key);
+       if(projection != null) {
+           wanted.addAll(projection);
+           projection = null;  // only worth scanning for once
+       }
+       if(projected != null) {
+           wanted.removeAll(projected.keySet());
+       }
+       if(absentKeys != null) {
+           wanted.removeAll(absentKeys);
+       }
+
+       Map<String, Object> found = new HashMap<String, Object>();
+       JsonParser parser = null;
+       try {
+           parser = Manager.getObjectMapper().getJsonFactory().createJsonParser(json);
+           parser.nextToken();  // START_OBJECT
+           int remaining = wanted.size();
+           while(remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+               String name = parser.getCurrentName();
+               parser.nextToken();
+               if(wanted.contains(name) && !found.containsKey(name)) {
+                   found.put(name, Manager.getJsonCodec().decode(parser, Object.class));
+                   remaining--;
+               } else {
+                   parser.skipChildren();
+               }
+           }
+       } catch (Exception e) {
+           Log.w(Database.TAG, this.getClass().getName()+": Failed to scan Json data; parsing all of it", e);
+           return false;
+       } finally {
+           if(parser != null) {
+               try {
+                   parser.close();
+               } catch (Exception e) {
+                   // ignore
+               }
+           }
+       }
+
+       if(projected == null) {
+           projected = new HashMap<String, Object>();
+       }
+       projected.putAll(found);
+       for(String name : wanted) {
+           if(!found.containsKey(name)) {
+               if(absentKeys == null) {
+                   absentKeys = new HashSet<String>();
+               }
+               absentKeys.add(name);
+           }
+       }
+       return true;
+   }
+
    private void parseJson() {
        if(parsed) {
            return;
        }
 
        try {
-           Map<K,V> parsedprops  = (Map<K,V>)Manager.getObjectMapper().readValue(json, Object.class);
+           Map<K,V> parsedprops  = (Map<K,V>)Manager.getJsonCodec().decode(json, Object.class);
+           //Keep the values already handed out by get(), in case they've been modified
+           if(projected != null) {
+               parsedprops.putAll((Map<K,V>) projected);
+           }
            //Merge parsed properties into map, overwriting the values for duplicate keys
            parsedprops.putAll(cache);
            cache = parsedprops;
@@ -122,6 +232,8 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
        } finally {
            parsed = true;
            json = null;
+           projected = null;
+           absentKeys = null;
        }
    }
 
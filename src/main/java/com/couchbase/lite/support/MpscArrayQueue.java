@@ -0,0 +1,113 @@
+package com.couchbase.lite.support;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for any number of producer threads and a single consumer,
+ * backed by a ring of preallocated slots (after Dmitry Vyukov's bounded MPMC queue).
+ *
+ * Each slot carries a sequence number saying whose turn it is: producers claim a slot by
+ * advancing the tail with a CAS, then publish the element by bumping the slot's sequence, so
+ * the consumer never sees a claimed slot before its element is written. Nothing is allocated
+ * per element.
+ *
+ * poll() and drainTo() must only be called from one thread at a time.
+ */
+final class MpscArrayQueue<E> {
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();  // next position to be claimed by a producer
+    private volatile long head;  // next position to be consumed; only written by the consumer
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two.
+     */
+    MpscArrayQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds an element, unless the queue is full.
+     * @return false if the queue was full.
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the slot still holds the element from one lap ago
+                return false;
+            } else {
+                // another producer claimed this position first
+                pos = tail.get();
+            }
+        }
+        elements.lazySet(index, element);
+        // publishes the element: ordered after the write above
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the element at the head of the queue, or null if there's none that
+     * has been published yet.
+     */
+    E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        // hands the slot back to producers for the next lap
+        sequences.lazySet(index, pos + mask + 1);
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Moves up to maxElements published elements to the given list, in order.
+     * @return the number of elements moved.
+     */
+    int drainTo(List<? super E> list, int maxElements) {
+        int count = 0;
+        E element;
+        while (count < maxElements && (element = poll()) != null) {
+            list.add(element);
+            count++;
+        }
+        return count;
+    }
+}
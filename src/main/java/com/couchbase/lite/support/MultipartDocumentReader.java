@@ -176,8 +176,7 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
            jsonBuffer = new ByteArrayBuffer(1024);
         }
         else {
-            curAttachment = database.getAttachmentWriter();
-
+            String name = null;
             String contentDisposition = headers.get("Content-Disposition");
             if (contentDisposition != null && contentDisposition.startsWith("attachment; filename=")) {
                 // TODO: Parse this less simplistically. Right now it assumes it's in exactly the same
@@ -185,11 +184,14 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
                 // output any headers at all on attachments so there's no compatibility issue yet.
 
                 String contentDispositionUnquoted = Misc.unquoteString(contentDisposition);
-                String name = contentDispositionUnquoted.substring(21);
+                name = contentDispositionUnquoted.substring(21);
+            }
 
-                if (name != null) {
-                    attachmentsByName.put(name, curAttachment);
-                }
+            // The content type decides whether the blob gets compressed at rest:
+            curAttachment = database.getAttachmentWriter(contentTypeForPart(headers, name));
+
+            if (name != null) {
+                attachmentsByName.put(name, curAttachment);
             }
         }
 
@@ -198,6 +200,21 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
 
 
 
+    /**
+     * The content type of an attachment's MIME body: its Content-Type header if it has one, else
+     * the content_type of the attachment named by its Content-Disposition in the document JSON.
+     */
+    private String contentTypeForPart(Map<String, String> headers, String name) {
+        String contentType = headers.get("Content-Type");
+        if (contentType == null && name != null) {
+            Map<String, Object> attachments = (Map<String, Object>) document.get("_attachments");
+            if (attachments != null && attachments.get(name) instanceof Map) {
+                contentType = (String) ((Map<String, Object>) attachments.get(name)).get("content_type");
+            }
+        }
+        return contentType;
+    }
+
     @Override
     public void appendToPart(byte[] data) {
         if (jsonBuffer != null) {
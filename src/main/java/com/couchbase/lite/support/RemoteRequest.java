@@ -4,6 +4,7 @@ import com.couchbase.lite.Database;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.auth.Authenticator;
 import com.couchbase.lite.auth.AuthenticatorImpl;
+import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.URIUtils;
 import com.couchbase.lite.util.Utils;
@@ -158,7 +159,12 @@ public class RemoteRequest implements Runnable {
         if (body != null && request instanceof HttpEntityEnclosingRequestBase) {
             byte[] bodyBytes = null;
             try {
-                bodyBytes = Manager.getObjectMapper().writeValueAsBytes(body);
+                if (body instanceof Body) {
+                    // already serialized
+                    bodyBytes = ((Body) body).getJson();
+                } else {
+                    bodyBytes = Manager.getJsonCodec().encode(body);
+                }
             } catch (Exception e) {
                 Log.e(Log.TAG_REMOTE_REQUEST, "Error serializing body of request", e);
             }
@@ -0,0 +1,70 @@
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.Manager;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts revision bodies between JSON and Smile, Jackson's binary encoding of the JSON data
+ * model, in which a database may store them.
+ *
+ * Smile data always starts with the header ":)\n", which JSON never does, so stored bodies
+ * can be told apart without knowing which format they were written in. Conversion works token
+ * by token and preserves the JSON that Couchbase Lite writes exactly.
+ */
+public final class SmileTranscoder {
+
+    private static final SmileFactory smileFactory = new SmileFactory();
+
+    private SmileTranscoder() {
+    }
+
+    /**
+     * Returns true if the data is Smile (starts with the Smile header).
+     */
+    public static boolean isSmile(byte[] data) {
+        return data != null && data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n';
+    }
+
+    public static byte[] jsonToSmile(byte[] json) throws IOException {
+        return transcode(json, Manager.getObjectMapper().getJsonFactory(), smileFactory);
+    }
+
+    public static byte[] smileToJSON(byte[] smile) throws IOException {
+        return transcode(smile, smileFactory, Manager.getObjectMapper().getJsonFactory());
+    }
+
+    /**
+     * Parses Smile data straight into objects, as Manager.getJsonCodec() would parse the
+     * equivalent JSON.
+     */
+    public static <T> T decode(byte[] smile, Class<T> type) throws IOException {
+        JsonParser parser = smileFactory.createJsonParser(smile);
+        try {
+            return Manager.getJsonCodec().decode(parser, type);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static byte[] transcode(byte[] data, JsonFactory from, JsonFactory to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        JsonParser parser = from.createJsonParser(data);
+        try {
+            JsonGenerator generator = to.createJsonGenerator(out, JsonEncoding.UTF8);
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+            generator.close();
+        } finally {
+            parser.close();
+        }
+        return out.toByteArray();
+    }
+}
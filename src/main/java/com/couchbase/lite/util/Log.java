@@ -22,11 +22,6 @@ public class Log {
 
     private static Logger logger = LoggerFactory.createLogger();
 
-    /**
-     * A map of tags and their enabled log level
-     */
-    private static ConcurrentHashMap<String, Integer> enabledTags;
-
     /**
      * Logging tags
      */
@@ -55,20 +50,48 @@ public class Log {
     public static final int ERROR = 6;
     public static final int ASSERT = 7;
 
+    /**
+     * The predefined tags. Their levels are kept in an array rather than a map, and since
+     * callers nearly always pass the constants themselves, a tag is usually found by reference.
+     */
+    private static final String[] knownTags = {
+            TAG, TAG_SYNC, TAG_BATCHER, TAG_SYNC_ASYNC_TASK, TAG_REMOTE_REQUEST, TAG_VIEW,
+            TAG_QUERY, TAG_CHANGE_TRACKER, TAG_ROUTER, TAG_DATABASE, TAG_LISTENER,
+            TAG_MULTI_STREAM_WRITER, TAG_BLOB_STORE
+    };
+
+    /**
+     * The enabled log level of each of knownTags. The array is replaced, never modified, when
+     * a level changes, so it can be read without locking.
+     */
+    private static volatile int[] knownTagLevels;
+
+    /**
+     * A map of any other tags and their enabled log level
+     */
+    private static final ConcurrentHashMap<String, Integer> enabledTags = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The lowest log level enabled for any tag. Anything less urgent is turned down without
+     * looking up the tag, which makes a disabled VERBOSE or DEBUG call cost one volatile read.
+     * Tags without a level of their own log at INFO, so this is never above INFO.
+     */
+    private static volatile int minEnabledLevel = INFO;
+
     static {
-        enabledTags = new ConcurrentHashMap<String, Integer>();
-        enabledTags.put(Log.TAG, WARN);
-        enabledTags.put(Log.TAG_SYNC, WARN);
-        enabledTags.put(Log.TAG_SYNC_ASYNC_TASK, WARN);
-        enabledTags.put(Log.TAG_REMOTE_REQUEST, WARN);
-        enabledTags.put(Log.TAG_VIEW, WARN);
-        enabledTags.put(Log.TAG_QUERY, WARN);
-        enabledTags.put(Log.TAG_CHANGE_TRACKER, WARN);
-        enabledTags.put(Log.TAG_ROUTER, WARN);
-        enabledTags.put(Log.TAG_DATABASE, WARN);
-        enabledTags.put(Log.TAG_LISTENER, WARN);
-        enabledTags.put(Log.TAG_MULTI_STREAM_WRITER, WARN);
-        enabledTags.put(Log.TAG_BLOB_STORE, WARN);
+        int[] levels = new int[knownTags.length];
+        for (int i = 0; i < knownTags.length; i++) {
+            levels[i] = (knownTags[i] == TAG_BATCHER) ? INFO : WARN;
+        }
+        knownTagLevels = levels;
+    }
+
+    /**
+     * A log message that is only built if it's going to be logged. Useful when the message is
+     * expensive to produce; keep an instance in a field to avoid allocating one per call.
+     */
+    public interface LazyMessage {
+        String get();
     }
 
     /**
@@ -78,8 +101,23 @@ public class Log {
      * @param logLevel The loglevel to enable.  Anything matching this loglevel
      *                 or having a more urgent loglevel will be emitted.  Eg, Log.VERBOSE.
      */
-    public static void enableLogging(String tag, int logLevel) {
-        enabledTags.put(tag, logLevel);
+    public static synchronized void enableLogging(String tag, int logLevel) {
+        int index = indexOfKnownTag(tag);
+        if (index >= 0) {
+            int[] levels = knownTagLevels.clone();
+            levels[index] = logLevel;
+            knownTagLevels = levels;
+        } else {
+            enabledTags.put(tag, logLevel);
+        }
+        int min = INFO;
+        for (int level : knownTagLevels) {
+            min = Math.min(min, level);
+        }
+        for (int level : enabledTags.values()) {
+            min = Math.min(min, level);
+        }
+        minEnabledLevel = min;
     }
 
     /**
@@ -91,14 +129,32 @@ public class Log {
      *                 is passed as a paremeter, it will return true.
      * @return boolean indicating whether logging is enabled.
      */
-    /* package */ static boolean isLoggingEnabled(String tag, int logLevel) {
-
-        // this hashmap lookup might be a little expensive, and so it might make
-        // sense to convert this over to a CopyOnWriteArrayList
+    public static boolean isLoggingEnabled(String tag, int logLevel) {
+        if (logLevel < minEnabledLevel) {
+            return false;
+        }
+        int index = indexOfKnownTag(tag);
+        if (index >= 0) {
+            return logLevel >= knownTagLevels[index];
+        }
         Integer logLevelForTag = enabledTags.get(tag);
         return logLevel >= (logLevelForTag == null ? INFO : logLevelForTag);
     }
 
+    private static int indexOfKnownTag(String tag) {
+        for (int i = 0; i < knownTags.length; i++) {
+            if (knownTags[i] == tag) {
+                return i;
+            }
+        }
+        for (int i = 0; i < knownTags.length; i++) {
+            if (knownTags[i].equals(tag)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Send a VERBOSE message.
      * @param tag Used to identify the source of a log message.  It usually identifies
@@ -160,6 +216,82 @@ public class Log {
         }
     }
 
+    /**
+     * Send a VERBOSE message built only if it's going to be logged.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param message Produces the message you would like logged.
+     */
+    public static void v(String tag, LazyMessage message) {
+        if (logger != null && isLoggingEnabled(tag, VERBOSE)) {
+            logger.v(tag, message.get());
+        }
+    }
+
+    /**
+     * Send a VERBOSE message with one format argument, without the varargs array.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg The param to formatString.
+     */
+    public static void v(String tag, String formatString, Object arg) {
+        if (logger != null && isLoggingEnabled(tag, VERBOSE)) {
+            vFormatted(tag, formatString, null, arg);
+        }
+    }
+
+    /**
+     * Send a VERBOSE message with two format arguments, without the varargs array.  As with
+     * v(String, String, Throwable, Object...), a Throwable first argument is logged as the exception.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg1 The first param to formatString.
+     * @param arg2 The second param to formatString.
+     */
+    public static void v(String tag, String formatString, Object arg1, Object arg2) {
+        if (logger != null && isLoggingEnabled(tag, VERBOSE)) {
+            if (arg1 instanceof Throwable) {
+                vFormatted(tag, formatString, (Throwable) arg1, arg2);
+            } else {
+                vFormatted(tag, formatString, null, arg1, arg2);
+            }
+        }
+    }
+
+    /**
+     * Send a VERBOSE message with three format arguments, without the varargs array.  As with
+     * v(String, String, Throwable, Object...), a Throwable first argument is logged as the exception.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg1 The first param to formatString.
+     * @param arg2 The second param to formatString.
+     * @param arg3 The third param to formatString.
+     */
+    public static void v(String tag, String formatString, Object arg1, Object arg2, Object arg3) {
+        if (logger != null && isLoggingEnabled(tag, VERBOSE)) {
+            if (arg1 instanceof Throwable) {
+                vFormatted(tag, formatString, (Throwable) arg1, arg2, arg3);
+            } else {
+                vFormatted(tag, formatString, null, arg1, arg2, arg3);
+            }
+        }
+    }
+
+    private static void vFormatted(String tag, String formatString, Throwable tr, Object... args) {
+        try {
+            if (tr == null) {
+                logger.v(tag, String.format(formatString, args));
+            } else {
+                logger.v(tag, String.format(formatString, args), tr);
+            }
+        } catch (Exception e) {
+            logger.v(tag, String.format("Unable to format log: %s", formatString), e);
+        }
+    }
+
     /**
      * Send a DEBUG message.
      * @param tag Used to identify the source of a log message.  It usually identifies
@@ -221,6 +353,82 @@ public class Log {
     }
 
 
+    /**
+     * Send a DEBUG message built only if it's going to be logged.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param message Produces the message you would like logged.
+     */
+    public static void d(String tag, LazyMessage message) {
+        if (logger != null && isLoggingEnabled(tag, DEBUG)) {
+            logger.d(tag, message.get());
+        }
+    }
+
+    /**
+     * Send a DEBUG message with one format argument, without the varargs array.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg The param to formatString.
+     */
+    public static void d(String tag, String formatString, Object arg) {
+        if (logger != null && isLoggingEnabled(tag, DEBUG)) {
+            dFormatted(tag, formatString, null, arg);
+        }
+    }
+
+    /**
+     * Send a DEBUG message with two format arguments, without the varargs array.  As with
+     * d(String, String, Throwable, Object...), a Throwable first argument is logged as the exception.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg1 The first param to formatString.
+     * @param arg2 The second param to formatString.
+     */
+    public static void d(String tag, String formatString, Object arg1, Object arg2) {
+        if (logger != null && isLoggingEnabled(tag, DEBUG)) {
+            if (arg1 instanceof Throwable) {
+                dFormatted(tag, formatString, (Throwable) arg1, arg2);
+            } else {
+                dFormatted(tag, formatString, null, arg1, arg2);
+            }
+        }
+    }
+
+    /**
+     * Send a DEBUG message with three format arguments, without the varargs array.  As with
+     * d(String, String, Throwable, Object...), a Throwable first argument is logged as the exception.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param formatString The string you would like logged plus format specifiers.
+     * @param arg1 The first param to formatString.
+     * @param arg2 The second param to formatString.
+     * @param arg3 The third param to formatString.
+     */
+    public static void d(String tag, String formatString, Object arg1, Object arg2, Object arg3) {
+        if (logger != null && isLoggingEnabled(tag, DEBUG)) {
+            if (arg1 instanceof Throwable) {
+                dFormatted(tag, formatString, (Throwable) arg1, arg2, arg3);
+            } else {
+                dFormatted(tag, formatString, null, arg1, arg2, arg3);
+            }
+        }
+    }
+
+    private static void dFormatted(String tag, String formatString, Throwable tr, Object... args) {
+        try {
+            if (tr == null) {
+                logger.d(tag, String.format(formatString, args));
+            } else {
+                logger.d(tag, String.format(formatString, args), tr);
+            }
+        } catch (Exception e) {
+            logger.d(tag, String.format("Unable to format log: %s", formatString), e);
+        }
+    }
+
     /**
      * Send an INFO message.
      * @param tag Used to identify the source of a log message.  It usually identifies
@@ -281,6 +489,18 @@ public class Log {
         }
     }
 
+    /**
+     * Send an INFO message built only if it's going to be logged.
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *        the class or activity where the log call occurs.
+     * @param message Produces the message you would like logged.
+     */
+    public static void i(String tag, LazyMessage message) {
+        if (logger != null && isLoggingEnabled(tag, INFO)) {
+            logger.i(tag, message.get());
+        }
+    }
+
     /**
      * Send a WARN message.
      * @param tag Used to identify the source of a log message.  It usually identifies